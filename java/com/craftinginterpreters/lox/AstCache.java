@@ -0,0 +1,286 @@
+package com.craftinginterpreters.lox;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+// The FlatAst of a script saved next to it (foo.lox in foo.loxc), so that the
+// next run of the same script with the flat engine reads the program from
+// there instead of scanning, parsing, resolving, optimizing and flattening it
+// again. The file starts with its key: the version of the format, the passes
+// that were enabled and a hash of the script's bytes. A file with any other
+// key is stale, and is replaced once the script is compiled again.
+// The rest is the symbols the program was compiled with (see Symbols), then
+// the FlatAst's arrays, read from the mapped file in one pass, and last a
+// CRC32 of everything before it, so that a damaged file is a miss as well.
+class AstCache {
+  private static final int MAGIC = 0x4c4f5843; // "LOXC"
+  // bump it when the layout of the FlatAst or of this file changes
+  private static final int VERSION = 1;
+
+  // the kinds of constants
+  private static final byte NIL = 0;
+  private static final byte FALSE = 1;
+  private static final byte TRUE = 2;
+  private static final byte NUMBER = 3;
+  private static final byte STRING = 4;
+  private static final byte GLOBAL = 5; // symbol
+  // arity, frame size, receiver, parameters, count, upvalues...
+  private static final byte FUNCTION = 6;
+
+  private final Path path;
+  private final byte[] key;
+
+  AstCache(Path script, Charset charset, PassManager passes) throws IOException {
+    String name = script.getFileName().toString();
+    path = script.resolveSibling(name.endsWith(".lox") ? name + "c" : name + ".loxc");
+
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    out.writeInt(MAGIC);
+    out.writeInt(VERSION);
+    int enabled = 0;
+    for (PassManager.Pass pass : PassManager.Pass.values()) {
+      if (passes.isEnabled(pass)) enabled |= 1 << pass.ordinal();
+    }
+    out.writeInt(enabled);
+    out.writeUTF(charset.name()); // the script is decoded with it
+    out.write(hash(script));
+    key = bytes.toByteArray();
+  }
+
+  private static byte[] hash(Path script) throws IOException {
+    try (FileChannel channel = FileChannel.open(script, StandardOpenOption.READ)) {
+      MessageDigest digest = MessageDigest.getInstance("SHA-256");
+      digest.update(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+      return digest.digest();
+    } catch (NoSuchAlgorithmException error) {
+      throw new AssertionError(error); // every Java platform has SHA-256
+    }
+  }
+
+  // the saved program, or null if there's none for this key, or the file is
+  // damaged: nothing outside the file changes until all of it has been read
+  FlatAst load(Environment globals) {
+    ByteBuffer bytes;
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+      bytes = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    } catch (IOException error) { // none yet, or it can't be read
+      return null;
+    }
+
+    try {
+      byte[] fileKey = new byte[key.length];
+      bytes.get(fileKey);
+      if (!Arrays.equals(fileKey, key)) return null;
+
+      ByteBuffer checked = bytes.duplicate().position(0).limit(bytes.limit() - 8);
+      CRC32 checksum = new CRC32();
+      checksum.update(checked);
+      if (checksum.getValue() != bytes.getLong(bytes.limit() - 8)) return null;
+
+      List<String> names = new ArrayList<>();
+      int symbols = bytes.getInt();
+      for (int symbol = 0; symbol < symbols; symbol++) {
+        names.add(readString(bytes));
+      }
+      if (!matchSymbols(names)) return null;
+
+      FlatAst ast = new FlatAst();
+      ast.root = bytes.getInt();
+      ast.frameSize = bytes.getInt();
+      ast.count = bytes.getInt();
+      ast.code = readInts(bytes, ast.count);
+      ast.lineCount = bytes.getInt();
+      ast.lineStarts = readInts(bytes, ast.lineCount);
+      ast.lines = readInts(bytes, ast.lineCount);
+      ast.cacheCount = bytes.getInt();
+      ast.caches = new InlineCache[ast.cacheCount];
+      ast.constantCount = bytes.getInt();
+      ast.constants = new Object[ast.constantCount];
+      for (int i = 0; i < ast.constantCount; i++) {
+        ast.constants[i] = readConstant(bytes);
+      }
+      if (bytes.remaining() != 8) return null; // only the checksum is left
+
+      for (String name : names) Symbols.intern(name);
+      for (int i = 0; i < ast.constantCount; i++) {
+        if (ast.constants[i] instanceof Integer) {
+          ast.constants[i] = globals.cell((int)ast.constants[i]);
+        }
+      }
+      return ast;
+    } catch (RuntimeException error) { // cut short, or not a file this wrote
+      return null;
+    }
+  }
+
+  // the symbols in the code only mean the same names if they get the same
+  // numbers in this run: the names already interned must be the first ones
+  // saved, so that the others, all new, are interned next in the same order
+  private static boolean matchSymbols(List<String> names) {
+    int known = Math.min(names.size(), Symbols.count());
+    for (int symbol = 0; symbol < known; symbol++) {
+      if (!names.get(symbol).equals(Symbols.name(symbol))) return false;
+    }
+    return new HashSet<>(names).size() == names.size();
+  }
+
+  private static int[] readInts(ByteBuffer bytes, int count) {
+    int[] ints = new int[count];
+    bytes.asIntBuffer().get(ints);
+    bytes.position(bytes.position() + 4 * count);
+    return ints;
+  }
+
+  private static String readString(ByteBuffer bytes) {
+    byte[] utf8 = new byte[bytes.getInt()];
+    bytes.get(utf8);
+    return new String(utf8, StandardCharsets.UTF_8);
+  }
+
+  private static Object readConstant(ByteBuffer bytes) {
+    switch (bytes.get()) {
+      case NIL: return null;
+      case FALSE: return false;
+      case TRUE: return true;
+      case NUMBER: return bytes.getDouble();
+      case STRING: return readString(bytes);
+      case GLOBAL: return bytes.getInt(); // its symbol, replaced by its cell once all is read
+      case FUNCTION: {
+        // the header the Flattener made (see Flattener.header)
+        int arity = bytes.getInt();
+        Expr.Function function = new Expr.Function(Collections.nCopies(arity, null),
+            Collections.emptyList());
+        function.frameSize = bytes.getInt();
+        function.receiver = readLocal(bytes);
+        function.parameters = new Local[arity];
+        for (int i = 0; i < arity; i++) {
+          function.parameters[i] = readLocal(bytes);
+        }
+        function.upvalues = readInts(bytes, bytes.getInt());
+        return function;
+      }
+      default: throw new IllegalStateException("Unknown kind of constant.");
+    }
+  }
+
+  // a slot, or -1 for none, and whether it's captured
+  private static Local readLocal(ByteBuffer bytes) {
+    int slot = bytes.getInt();
+    boolean captured = bytes.get() != 0;
+    if (slot == -1) return null;
+    Local local = new Local(slot);
+    local.captured = captured;
+    return local;
+  }
+
+  // written to another file first, which then replaces the old one, so a run
+  // at the same time never reads half a program; a cache that can't be saved
+  // (a read-only directory) is only slower
+  void save(FlatAst ast) {
+    Path temporary = path.resolveSibling(
+        path.getFileName() + "." + ProcessHandle.current().pid() + ".tmp");
+    try {
+      CRC32 checksum = new CRC32();
+      try (DataOutputStream out = new DataOutputStream(new CheckedOutputStream(
+          new BufferedOutputStream(Files.newOutputStream(temporary)), checksum))) {
+        write(out, ast);
+        out.writeLong(checksum.getValue());
+      }
+      Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException error) {
+      try {
+        Files.deleteIfExists(temporary);
+      } catch (IOException ignored) {
+      }
+    }
+  }
+
+  private void write(DataOutputStream out, FlatAst ast) throws IOException {
+    out.write(key);
+
+    out.writeInt(Symbols.count());
+    for (int symbol = 0; symbol < Symbols.count(); symbol++) {
+      writeString(out, Symbols.name(symbol));
+    }
+
+    out.writeInt(ast.root);
+    out.writeInt(ast.frameSize);
+    out.writeInt(ast.count);
+    writeInts(out, ast.code, ast.count);
+    out.writeInt(ast.lineCount);
+    writeInts(out, ast.lineStarts, ast.lineCount);
+    writeInts(out, ast.lines, ast.lineCount);
+    out.writeInt(ast.cacheCount);
+    out.writeInt(ast.constantCount);
+    for (int i = 0; i < ast.constantCount; i++) {
+      writeConstant(out, ast.constants[i]);
+    }
+  }
+
+  private static void writeInts(DataOutputStream out, int[] ints, int count)
+      throws IOException {
+    for (int i = 0; i < count; i++) out.writeInt(ints[i]);
+  }
+
+  private static void writeString(DataOutputStream out, String string)
+      throws IOException {
+    byte[] utf8 = string.getBytes(StandardCharsets.UTF_8);
+    out.writeInt(utf8.length);
+    out.write(utf8);
+  }
+
+  private static void writeConstant(DataOutputStream out, Object value)
+      throws IOException {
+    if (value == null) {
+      out.writeByte(NIL);
+    } else if (value instanceof Boolean) {
+      out.writeByte((boolean)value ? TRUE : FALSE);
+    } else if (value instanceof Double) {
+      out.writeByte(NUMBER);
+      out.writeDouble((double)value);
+    } else if (value instanceof String) {
+      out.writeByte(STRING);
+      writeString(out, (String)value);
+    } else if (value instanceof GlobalCell) {
+      out.writeByte(GLOBAL);
+      out.writeInt(((GlobalCell)value).symbol);
+    } else if (value instanceof Expr.Function) {
+      Expr.Function function = (Expr.Function)value;
+      out.writeByte(FUNCTION);
+      out.writeInt(function.params.size());
+      out.writeInt(function.frameSize);
+      writeLocal(out, function.receiver);
+      for (Local parameter : function.parameters) writeLocal(out, parameter);
+      out.writeInt(function.upvalues.length);
+      writeInts(out, function.upvalues, function.upvalues.length);
+    } else {
+      throw new IOException("Can't save the constant " + value + ".");
+    }
+  }
+
+  private static void writeLocal(DataOutputStream out, Local local) throws IOException {
+    out.writeInt(local == null ? -1 : local.slot);
+    out.writeByte(local != null && local.captured ? 1 : 0);
+  }
+}
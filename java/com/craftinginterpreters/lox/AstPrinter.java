@@ -37,6 +37,16 @@ class AstPrinter implements Expr.Visitor<String>, Stmt.Visitor<String> {
 		return parenthesize("group", expr.expression);
 	}
 
+	@Override
+	public String visitInlineExpr(Expr.Inline expr) {
+		return parenthesize2("inline", expr.call, expr.body);
+	}
+
+	@Override
+	public String visitInvariantExpr(Expr.Invariant expr) {
+		return parenthesize("invariant", expr.expression);
+	}
+
 	@Override
 	public String visitLiteralExpr(Expr.Literal expr) {
 		if (expr.value == null) return "nil";
@@ -114,14 +124,14 @@ class AstPrinter implements Expr.Visitor<String>, Stmt.Visitor<String> {
 		StringBuilder builder = new StringBuilder();
 		builder.append("(fun " + stmt.name.lexeme + "(");
 
-		for (Token param : stmt.params) {
-			if (param != stmt.params.get(0)) builder.append(" ");
+		for (Token param : stmt.function.params) {
+			if (param != stmt.function.params.get(0)) builder.append(" ");
 			builder.append(param.lexeme);
 		}
 
 		builder.append(") ");
 
-		for (Stmt body : stmt.body) {
+		for (Stmt body : stmt.function.body) {
 			builder.append(body.accept(this));
 		}
 
@@ -1,7 +0,0 @@
-package com.craftinginterpreters.lox;
-
-class BreakException extends RuntimeException {
-  BreakException() {
-    super(null, null, false, false);
-  }
-}
@@ -0,0 +1,707 @@
+package com.craftinginterpreters.lox;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.craftinginterpreters.lox.OpCode.*;
+
+// Compiles a resolved AST to bytecode for the VM in a single pass, the way
+// clox's compiler does while parsing. Locals live in stack slots and captured
+// variables become upvalues; the Resolver has already reported static errors.
+class BytecodeCompiler implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+  private static final int UINT8_COUNT = 256;
+  private static final int UINT16_COUNT = 65536;
+
+  private enum FunctionType {
+    FUNCTION,
+    INITIALIZER,
+    METHOD,
+    SCRIPT
+  }
+
+  private static class Local {
+    final String name;
+    final int depth;
+    boolean isCaptured = false;
+
+    Local(String name, int depth) {
+      this.name = name;
+      this.depth = depth;
+    }
+  }
+
+  private static class Upvalue {
+    final int index;
+    final boolean isLocal; // captures a local of the enclosing function or one of its upvalues
+
+    Upvalue(int index, boolean isLocal) {
+      this.index = index;
+      this.isLocal = isLocal;
+    }
+  }
+
+  // innermost loop being compiled, for break and continue (the Resolver only
+  // accepts them in a loop of the same function, so there always is one)
+  private static class Loop {
+    final Loop enclosing;
+    final int start;
+    final int scopeDepth;
+    final List<Integer> breakJumps = new ArrayList<>();
+
+    Loop(Loop enclosing, int start, int scopeDepth) {
+      this.enclosing = enclosing;
+      this.start = start;
+      this.scopeDepth = scopeDepth;
+    }
+  }
+
+  // state for each function being compiled, nested functions point to the enclosing one
+  private static class FunctionState {
+    final FunctionState enclosing;
+    final Obj.Function function;
+    final FunctionType type;
+    final List<Local> locals = new ArrayList<>();
+    final List<Upvalue> upvalues = new ArrayList<>();
+    final Map<String, Integer> identifiers = new HashMap<>(); // names already in the constant pool
+    final boolean wideJumps; // every forward jump has a u32 offset
+    boolean jumpTooFar = false; // a forward jump needs one
+    int scopeDepth = 0;
+    Loop loop = null;
+
+    FunctionState(FunctionState enclosing, Obj.Function function, FunctionType type,
+        boolean wideJumps) {
+      this.enclosing = enclosing;
+      this.function = function;
+      this.type = type;
+      this.wideJumps = wideJumps;
+      // slot 0 holds the function being called, or the receiver for methods
+      locals.add(new Local(type == FunctionType.FUNCTION || type == FunctionType.SCRIPT
+          ? "" : "this", 0));
+    }
+  }
+
+  private FunctionState current = null;
+  private int line = 1; // line of the code being compiled
+  private boolean hadError = false;
+
+  // returns null if the program exceeds one of the VM's limits
+  Obj.Function compile(List<Stmt> statements) {
+    Obj.Function script =
+        body(null, Collections.emptyList(), statements, FunctionType.SCRIPT).function;
+    return hadError ? null : script;
+  }
+
+  private void compile(Stmt stmt) {
+    stmt.accept(this);
+  }
+
+  private void compile(Expr expr) {
+    expr.accept(this);
+  }
+
+  private Chunk currentChunk() {
+    return current.function.chunk;
+  }
+
+  private void error(String message) {
+    Lox.error(line, message);
+    hadError = true;
+  }
+
+  // append one byte to the current chunk
+  private void emitByte(int b) {
+    currentChunk().write(b, line);
+  }
+
+  private void emitBytes(int byte1, int byte2) {
+    emitByte(byte1);
+    emitByte(byte2);
+  }
+
+  private void emitShort(int op, int operand) {
+    emitByte(op);
+    emitByte((operand >> 8) & 0xff);
+    emitByte(operand & 0xff);
+  }
+
+  private void emitInt(int operand) {
+    emitByte((operand >> 24) & 0xff);
+    emitByte((operand >> 16) & 0xff);
+    emitByte((operand >> 8) & 0xff);
+    emitByte(operand & 0xff);
+  }
+
+  // an instruction with a u8 operand, or its wide form if it doesn't fit
+  private void emitVariable(int instruction, int wideInstruction, int operand) {
+    if (operand < UINT8_COUNT) {
+      emitBytes(instruction, operand);
+    } else {
+      emitShort(wideInstruction, operand);
+    }
+  }
+
+  private void emitLoop(int loopStart) {
+    // the offset is from the end of the instruction
+    int offset = currentChunk().count - loopStart + 3;
+    if (offset <= 0xffff) {
+      emitShort(OP_LOOP, offset);
+    } else {
+      emitByte(OP_LOOP_LONG);
+      emitInt(offset + 2);
+    }
+  }
+
+  // emit a jump with a placeholder offset and return where to patch it
+  private int emitJump(int instruction) {
+    if (current.wideJumps) {
+      emitByte(instruction == OP_JUMP ? OP_JUMP_LONG : OP_JUMP_IF_FALSE_LONG);
+      emitInt(0xffffffff);
+      return currentChunk().count - 4;
+    }
+    emitShort(instruction, 0xffff);
+    return currentChunk().count - 2;
+  }
+
+  private void patchJump(int offset) {
+    byte[] code = currentChunk().code;
+    if (current.wideJumps) {
+      // -4 to adjust for the bytecode for the jump offset itself
+      int jump = currentChunk().count - offset - 4;
+      code[offset] = (byte)((jump >> 24) & 0xff);
+      code[offset + 1] = (byte)((jump >> 16) & 0xff);
+      code[offset + 2] = (byte)((jump >> 8) & 0xff);
+      code[offset + 3] = (byte)(jump & 0xff);
+      return;
+    }
+
+    int jump = currentChunk().count - offset - 2;
+    if (jump > 0xffff) { // the function is compiled again with wide jumps
+      current.jumpTooFar = true;
+      return;
+    }
+    code[offset] = (byte)((jump >> 8) & 0xff);
+    code[offset + 1] = (byte)(jump & 0xff);
+  }
+
+  private void emitReturn() {
+    if (current.type == FunctionType.INITIALIZER) {
+      emitBytes(OP_GET_LOCAL, 0); // initializers always return "this"
+    } else {
+      emitByte(OP_NIL);
+    }
+    emitByte(OP_RETURN);
+  }
+
+  private int makeConstant(Object value) {
+    int constant = currentChunk().addConstant(value);
+    if (constant > 0xffff) {
+      error("Too many constants in one chunk.");
+      return 0;
+    }
+    return constant;
+  }
+
+  private void emitConstant(Object value) {
+    emitShort(OP_CONSTANT, makeConstant(value));
+  }
+
+  private int identifierConstant(String name) {
+    Integer constant = current.identifiers.get(name);
+    if (constant != null) return constant;
+
+    int index = makeConstant(Symbols.intern(name)); // the VM looks names up by symbol
+    current.identifiers.put(name, index);
+    return index;
+  }
+
+  private Obj.Function endFunction() {
+    emitReturn();
+    Obj.Function function = current.function;
+    function.upvalueCount = current.upvalues.size();
+    current = current.enclosing;
+    return function;
+  }
+
+  private void beginScope() {
+    current.scopeDepth++;
+  }
+
+  private void endScope() {
+    current.scopeDepth--;
+
+    List<Local> locals = current.locals;
+    while (!locals.isEmpty() && locals.get(locals.size() - 1).depth > current.scopeDepth) {
+      emitByte(locals.get(locals.size() - 1).isCaptured ? OP_CLOSE_UPVALUE : OP_POP);
+      locals.remove(locals.size() - 1);
+    }
+  }
+
+  // discard the locals deeper than depth without forgetting them, for jumps out of scopes
+  private void discardLocals(int depth) {
+    for (int i = current.locals.size() - 1; i >= 0 && current.locals.get(i).depth > depth; i--) {
+      emitByte(current.locals.get(i).isCaptured ? OP_CLOSE_UPVALUE : OP_POP);
+    }
+  }
+
+  private void addLocal(String name) {
+    if (current.locals.size() == UINT16_COUNT) {
+      error("Too many local variables in function.");
+      return;
+    }
+    current.locals.add(new Local(name, current.scopeDepth));
+  }
+
+  private static int resolveLocal(FunctionState state, String name) {
+    for (int i = state.locals.size() - 1; i >= 0; i--) {
+      if (state.locals.get(i).name.equals(name)) return i;
+    }
+    return -1;
+  }
+
+  private int addUpvalue(FunctionState state, int index, boolean isLocal) {
+    for (int i = 0; i < state.upvalues.size(); i++) {
+      Upvalue upvalue = state.upvalues.get(i);
+      if (upvalue.index == index && upvalue.isLocal == isLocal) return i;
+    }
+
+    if (state.upvalues.size() == UINT16_COUNT) {
+      error("Too many closure variables in function.");
+      return 0;
+    }
+
+    state.upvalues.add(new Upvalue(index, isLocal));
+    return state.upvalues.size() - 1;
+  }
+
+  private int resolveUpvalue(FunctionState state, String name) {
+    if (state.enclosing == null) return -1;
+
+    int local = resolveLocal(state.enclosing, name);
+    if (local != -1) {
+      state.enclosing.locals.get(local).isCaptured = true;
+      return addUpvalue(state, local, true);
+    }
+
+    int upvalue = resolveUpvalue(state.enclosing, name);
+    if (upvalue != -1) return addUpvalue(state, upvalue, false);
+
+    return -1;
+  }
+
+  private void namedVariable(String name, boolean assign) {
+    int arg = resolveLocal(current, name);
+    if (arg != -1) {
+      if (assign) {
+        emitVariable(OP_SET_LOCAL, OP_SET_LOCAL_LONG, arg);
+      } else {
+        emitVariable(OP_GET_LOCAL, OP_GET_LOCAL_LONG, arg);
+      }
+    } else if ((arg = resolveUpvalue(current, name)) != -1) {
+      if (assign) {
+        emitVariable(OP_SET_UPVALUE, OP_SET_UPVALUE_LONG, arg);
+      } else {
+        emitVariable(OP_GET_UPVALUE, OP_GET_UPVALUE_LONG, arg);
+      }
+    } else {
+      emitShort(assign ? OP_SET_GLOBAL : OP_GET_GLOBAL, identifierConstant(name));
+    }
+  }
+
+  // the value of the new variable is on top of the stack: it's either already
+  // in its local slot or it has to be moved to the globals
+  private void defineVariable(String name) {
+    if (current.scopeDepth > 0) {
+      addLocal(name);
+      return;
+    }
+    emitShort(OP_DEFINE_GLOBAL, identifierConstant(name));
+  }
+
+  private void function(String name, Expr.Function declaration, FunctionType type) {
+    FunctionState state = body(name, declaration.params, declaration.body, type);
+
+    emitShort(OP_CLOSURE, makeConstant(state.function));
+    for (Upvalue upvalue : state.upvalues) {
+      emitByte(upvalue.isLocal ? 1 : 0);
+      emitByte((upvalue.index >> 8) & 0xff);
+      emitByte(upvalue.index & 0xff);
+    }
+  }
+
+  // compile a function (or the script) in a new state, and again with wide
+  // jumps if one of its forward jumps turns out to be too long for a u16,
+  // which is only known once the code it jumps over is compiled (compiling
+  // it again only repeats what it did to the enclosing functions' states)
+  private FunctionState body(String name, List<Token> params, List<Stmt> body,
+      FunctionType type) {
+    boolean wideJumps = false;
+    for (;;) {
+      current = new FunctionState(current, new Obj.Function(name), type, wideJumps);
+      current.function.arity = params.size();
+      if (type != FunctionType.SCRIPT) beginScope();
+      for (Token param : params) {
+        addLocal(param.lexeme);
+      }
+      for (Stmt statement : body) {
+        compile(statement);
+      }
+
+      // no need to end the scope, the frame is discarded on return
+      FunctionState state = current;
+      endFunction();
+      if (!state.jumpTooFar || hadError) return state;
+      wideJumps = true;
+    }
+  }
+
+  @Override
+  public Void visitAssignExpr(Expr.Assign expr) {
+    compile(expr.value);
+    line = expr.name.line;
+    namedVariable(expr.name.lexeme, true);
+    return null;
+  }
+
+  @Override
+  public Void visitBinaryExpr(Expr.Binary expr) {
+    compile(expr.left);
+    if (expr.operator.type == TokenType.COMMA) {
+      emitByte(OP_POP);
+      compile(expr.right);
+      return null;
+    }
+
+    compile(expr.right);
+    line = expr.operator.line;
+    switch (expr.operator.type) {
+      case BANG_EQUAL: emitByte(OP_NOT_EQUAL); break;
+      case EQUAL_EQUAL: emitByte(OP_EQUAL); break;
+      case GREATER: emitByte(OP_GREATER); break;
+      case GREATER_EQUAL: emitByte(OP_GREATER_EQUAL); break;
+      case LESS: emitByte(OP_LESS); break;
+      case LESS_EQUAL: emitByte(OP_LESS_EQUAL); break;
+      case PLUS: emitByte(OP_ADD); break;
+      case MINUS: emitByte(OP_SUBTRACT); break;
+      case STAR: emitByte(OP_MULTIPLY); break;
+      case SLASH: emitByte(OP_DIVIDE); break;
+    }
+    return null;
+  }
+
+  @Override
+  public Void visitCallExpr(Expr.Call expr) {
+    // invoke the method without creating a bound method, once it's been
+    // found, as the other engines do before evaluating the arguments
+    if (expr.callee instanceof Expr.Get) {
+      Expr.Get get = (Expr.Get)expr.callee;
+      compile(get.object);
+      line = get.name.line;
+      emitShort(OP_FIND_METHOD, identifierConstant(get.name.lexeme));
+      compileArguments(expr.arguments);
+      line = expr.paren.line;
+      emitShort(OP_INVOKE, identifierConstant(get.name.lexeme));
+      emitByte(expr.arguments.size());
+      return null;
+    }
+
+    if (expr.callee instanceof Expr.Super) {
+      Expr.Super superExpr = (Expr.Super)expr.callee;
+      line = superExpr.method.line;
+      namedVariable("this", false);
+      namedVariable("super", false);
+      emitShort(OP_FIND_SUPER_METHOD, identifierConstant(superExpr.method.lexeme));
+      compileArguments(expr.arguments);
+      namedVariable("super", false);
+      line = expr.paren.line;
+      emitShort(OP_SUPER_INVOKE, identifierConstant(superExpr.method.lexeme));
+      emitByte(expr.arguments.size());
+      return null;
+    }
+
+    compile(expr.callee);
+    compileArguments(expr.arguments);
+    line = expr.paren.line;
+    emitBytes(OP_CALL, expr.arguments.size());
+    return null;
+  }
+
+  private void compileArguments(List<Expr> arguments) {
+    for (Expr argument : arguments) {
+      compile(argument);
+    }
+  }
+
+  @Override
+  public Void visitFunctionExpr(Expr.Function expr) {
+    function("", expr, FunctionType.FUNCTION);
+    return null;
+  }
+
+  @Override
+  public Void visitGetExpr(Expr.Get expr) {
+    compile(expr.object);
+    line = expr.name.line;
+    emitShort(OP_GET_PROPERTY, identifierConstant(expr.name.lexeme));
+    return null;
+  }
+
+  @Override
+  public Void visitInlineExpr(Expr.Inline expr) {
+    compile(expr.call); // the copied body uses the Resolver's slots
+    return null;
+  }
+
+  @Override
+  public Void visitInvariantExpr(Expr.Invariant expr) {
+    compile(expr.expression); // the VM has no frame slot for it
+    return null;
+  }
+
+  @Override
+  public Void visitGroupingExpr(Expr.Grouping expr) {
+    compile(expr.expression);
+    return null;
+  }
+
+  @Override
+  public Void visitLiteralExpr(Expr.Literal expr) {
+    if (expr.value == null) {
+      emitByte(OP_NIL);
+    } else if (expr.value instanceof Boolean) {
+      emitByte((boolean)expr.value ? OP_TRUE : OP_FALSE);
+    } else {
+      emitConstant(expr.value);
+    }
+    return null;
+  }
+
+  @Override
+  public Void visitLogicalExpr(Expr.Logical expr) {
+    compile(expr.left);
+    line = expr.operator.line;
+
+    if (expr.operator.type == TokenType.AND) {
+      int endJump = emitJump(OP_JUMP_IF_FALSE);
+      emitByte(OP_POP);
+      compile(expr.right);
+      patchJump(endJump);
+    } else {
+      int elseJump = emitJump(OP_JUMP_IF_FALSE);
+      int endJump = emitJump(OP_JUMP);
+      patchJump(elseJump);
+      emitByte(OP_POP);
+      compile(expr.right);
+      patchJump(endJump);
+    }
+    return null;
+  }
+
+  @Override
+  public Void visitSetExpr(Expr.Set expr) {
+    compile(expr.object);
+    compile(expr.value);
+    line = expr.name.line;
+    emitShort(OP_SET_PROPERTY, identifierConstant(expr.name.lexeme));
+    return null;
+  }
+
+  @Override
+  public Void visitSuperExpr(Expr.Super expr) {
+    line = expr.method.line;
+    namedVariable("this", false);
+    namedVariable("super", false);
+    emitShort(OP_GET_SUPER, identifierConstant(expr.method.lexeme));
+    return null;
+  }
+
+  @Override
+  public Void visitTernaryExpr(Expr.Ternary expr) {
+    compile(expr.condition);
+    int elseJump = emitJump(OP_JUMP_IF_FALSE);
+    emitByte(OP_POP);
+    compile(expr.thenBranch);
+    int endJump = emitJump(OP_JUMP);
+    patchJump(elseJump);
+    emitByte(OP_POP);
+    compile(expr.elseBranch);
+    patchJump(endJump);
+    return null;
+  }
+
+  @Override
+  public Void visitThisExpr(Expr.This expr) {
+    line = expr.keyword.line;
+    namedVariable("this", false);
+    return null;
+  }
+
+  @Override
+  public Void visitUnaryExpr(Expr.Unary expr) {
+    compile(expr.right);
+    line = expr.operator.line;
+    emitByte(expr.operator.type == TokenType.BANG ? OP_NOT : OP_NEGATE);
+    return null;
+  }
+
+  @Override
+  public Void visitVariableExpr(Expr.Variable expr) {
+    line = expr.name.line;
+    namedVariable(expr.name.lexeme, false);
+    return null;
+  }
+
+  @Override
+  public Void visitBlockStmt(Stmt.Block stmt) {
+    beginScope();
+    for (Stmt statement : stmt.statements) {
+      compile(statement);
+    }
+    endScope();
+    return null;
+  }
+
+  @Override
+  public Void visitBreakStmt(Stmt.Break stmt) {
+    line = stmt.keyword.line;
+    discardLocals(current.loop.scopeDepth);
+    current.loop.breakJumps.add(emitJump(OP_JUMP));
+    return null;
+  }
+
+  @Override
+  public Void visitClassStmt(Stmt.Class stmt) {
+    line = stmt.name.line;
+    String className = stmt.name.lexeme;
+    int nameConstant = identifierConstant(className);
+
+    emitShort(OP_CLASS, nameConstant);
+    defineVariable(className);
+
+    if (stmt.superclass != null) {
+      compile(stmt.superclass);
+
+      // a local scope with "super" for the methods to capture
+      beginScope();
+      addLocal("super");
+
+      namedVariable(className, false);
+      line = stmt.superclass.name.line;
+      emitByte(OP_INHERIT);
+    }
+
+    namedVariable(className, false); // load the class to bind the methods to it
+    for (Stmt.Function method : stmt.methods) {
+      line = method.name.line;
+      FunctionType type = method.name.lexeme.equals("init")
+          ? FunctionType.INITIALIZER : FunctionType.METHOD;
+      function(method.name.lexeme, method.function, type);
+      emitShort(OP_METHOD, identifierConstant(method.name.lexeme));
+    }
+    emitByte(OP_POP);
+
+    if (stmt.superclass != null) endScope(); // "super" scope
+    return null;
+  }
+
+  @Override
+  public Void visitContinueStmt(Stmt.Continue stmt) {
+    line = stmt.keyword.line;
+    discardLocals(current.loop.scopeDepth);
+    emitLoop(current.loop.start);
+    return null;
+  }
+
+  @Override
+  public Void visitExpressionStmt(Stmt.Expression stmt) {
+    compile(stmt.expression);
+    emitByte(OP_POP);
+    return null;
+  }
+
+  @Override
+  public Void visitFunctionStmt(Stmt.Function stmt) {
+    line = stmt.name.line;
+    if (current.scopeDepth > 0) {
+      // declare the local first so that the function can refer to itself
+      addLocal(stmt.name.lexeme);
+      function(stmt.name.lexeme, stmt.function, FunctionType.FUNCTION);
+    } else {
+      function(stmt.name.lexeme, stmt.function, FunctionType.FUNCTION);
+      defineVariable(stmt.name.lexeme);
+    }
+    return null;
+  }
+
+  @Override
+  public Void visitIfStmt(Stmt.If stmt) {
+    compile(stmt.condition);
+
+    int thenJump = emitJump(OP_JUMP_IF_FALSE);
+    emitByte(OP_POP);
+    compile(stmt.thenBranch);
+
+    int elseJump = emitJump(OP_JUMP);
+    patchJump(thenJump);
+    emitByte(OP_POP);
+
+    if (stmt.elseBranch != null) compile(stmt.elseBranch);
+    patchJump(elseJump);
+    return null;
+  }
+
+  @Override
+  public Void visitPrintStmt(Stmt.Print stmt) {
+    compile(stmt.expression);
+    emitByte(OP_PRINT);
+    return null;
+  }
+
+  @Override
+  public Void visitReturnStmt(Stmt.Return stmt) {
+    line = stmt.keyword.line;
+    if (stmt.value == null) {
+      emitReturn();
+    } else {
+      compile(stmt.value);
+      emitByte(OP_RETURN);
+    }
+    return null;
+  }
+
+  @Override
+  public Void visitVarStmt(Stmt.Var stmt) {
+    if (stmt.initializer == null) {
+      emitByte(OP_NIL);
+    } else {
+      compile(stmt.initializer);
+    }
+    line = stmt.name.line;
+    defineVariable(stmt.name.lexeme);
+    return null;
+  }
+
+  @Override
+  public Void visitWhileStmt(Stmt.While stmt) {
+    Loop loop = new Loop(current.loop, currentChunk().count, current.scopeDepth);
+    current.loop = loop;
+
+    compile(stmt.condition);
+    int exitJump = emitJump(OP_JUMP_IF_FALSE);
+    emitByte(OP_POP);
+    compile(stmt.body);
+    emitLoop(loop.start);
+
+    patchJump(exitJump);
+    emitByte(OP_POP);
+    // the condition has already been popped when breaking out of the body
+    for (int breakJump : loop.breakJumps) {
+      patchJump(breakJump);
+    }
+
+    current.loop = loop.enclosing;
+    return null;
+  }
+}
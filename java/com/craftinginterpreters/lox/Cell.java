@@ -0,0 +1,12 @@
+package com.craftinginterpreters.lox;
+
+// A captured local variable (an upvalue in clox). Each time the declaration
+// runs it gets a new cell, so closures created in different iterations of a
+// loop don't share their variables.
+class Cell {
+  Object value;
+
+  Cell(Object value) {
+    this.value = value;
+  }
+}
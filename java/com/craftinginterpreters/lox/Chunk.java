@@ -0,0 +1,34 @@
+package com.craftinginterpreters.lox;
+
+import java.util.Arrays;
+
+// A sequence of bytecode, the source line of each byte and the constant pool
+// its instructions refer to (see clox's chunk.c).
+class Chunk {
+  byte[] code = new byte[8];
+  int[] lines = new int[8];
+  int count = 0;
+  Object[] constants = new Object[8];
+  int constantCount = 0;
+
+  // append a byte to the chunk
+  void write(int b, int line) {
+    if (count == code.length) { // grow
+      code = Arrays.copyOf(code, count * 2);
+      lines = Arrays.copyOf(lines, count * 2);
+    }
+
+    code[count] = (byte)b;
+    lines[count] = line;
+    count++;
+  }
+
+  int addConstant(Object value) {
+    if (constantCount == constants.length) {
+      constants = Arrays.copyOf(constants, constantCount * 2);
+    }
+
+    constants[constantCount] = value;
+    return constantCount++;
+  }
+}
@@ -0,0 +1,1046 @@
+package com.craftinginterpreters.lox;
+
+import java.util.List;
+
+// Second execution engine: instead of visiting the AST every time a node runs,
+// compile each resolved node once into a Java lambda. Operator choice, variable
+// slots, argument counts and constant operands are decided here at compile time,
+// so running the program is just calling lambdas.
+// The compiled code shares the runtime objects of the Interpreter (globals,
+// frames, functions, classes and instances).
+// It is also the Interpreter's second tier: hot functions and loops are compiled
+// using the types profiled by the Interpreter's node specializations. When one
+// of those speculations turns out wrong the compiled code is thrown away and
+// the Interpreter runs it again.
+class ClosureCompiler implements Expr.Visitor<ClosureCompiler.CompiledExpr>,
+    Stmt.Visitor<ClosureCompiler.CompiledStmt> {
+  interface CompiledExpr {
+    Object evaluate();
+  }
+
+  interface CompiledStmt {
+    Completion execute();
+  }
+
+  // an operand of a numeric operation, which reports a value that isn't a
+  // number the same way as Interpreter.evaluateDouble
+  interface CompiledDouble {
+    double evaluateDouble();
+  }
+
+  private final Interpreter interpreter;
+  // discards the function or loop being compiled, null when not tiering up
+  private Runnable invalidate = null;
+
+  ClosureCompiler(Interpreter interpreter) {
+    this.interpreter = interpreter;
+  }
+
+  void interpret(List<Stmt> statements, int frameSize) {
+    CompiledStmt program = compile(statements);
+    interpreter.pushFrame(frameSize);
+    try {
+      program.execute();
+    } catch (RuntimeError error) {
+      Lox.runtimeError(error);
+    }
+    interpreter.resetStack();
+  }
+
+  CompiledStmt compile(List<Stmt> statements) {
+    CompiledStmt[] compiled = new CompiledStmt[statements.size()];
+    for (int i = 0; i < compiled.length; i++) {
+      compiled[i] = compile(statements.get(i));
+    }
+
+    switch (compiled.length) {
+      case 0:
+        return () -> Completion.NORMAL;
+      case 1:
+        return compiled[0];
+      case 2: {
+        CompiledStmt first = compiled[0];
+        CompiledStmt second = compiled[1];
+        return () -> {
+          Completion completion = first.execute();
+          if (completion != Completion.NORMAL) return completion;
+          return second.execute();
+        };
+      }
+      default:
+        return () -> {
+          for (CompiledStmt statement : compiled) {
+            Completion completion = statement.execute();
+            if (completion != Completion.NORMAL) return completion;
+          }
+          return Completion.NORMAL;
+        };
+    }
+  }
+
+  void tierUp(Expr.Function function) {
+    compileFunction(function);
+  }
+
+  void tierUp(Stmt.While loop) {
+    invalidate = () -> {
+      loop.compiled = null;
+      loop.iterations = 0;
+    };
+    loop.compiled = compile(loop);
+  }
+
+  // every closure created from the declaration runs the compiled body
+  private void compileFunction(Expr.Function function) {
+    if (function.compiled != null) return;
+
+    Runnable enclosing = invalidate;
+    invalidate = () -> {
+      function.compiled = null;
+      function.calls = 0;
+    };
+    function.compiled = compile(function.body);
+    invalidate = enclosing;
+  }
+
+  private CompiledStmt compile(Stmt stmt) {
+    return stmt.accept(this);
+  }
+
+  private CompiledExpr compile(Expr expr) {
+    return expr.accept(this);
+  }
+
+  @Override
+  public CompiledExpr visitAssignExpr(Expr.Assign expr) {
+    CompiledExpr value = compile(expr.value);
+    Token name = expr.name;
+    Local local = expr.local;
+    int upvalue = expr.upvalue;
+    GlobalCell global = expr.global;
+
+    if (local != null) {
+      int slot = local.slot;
+      if (local.captured) {
+        return () -> {
+          Object result = value.evaluate();
+          ((Cell)interpreter.stack[interpreter.fp + slot]).value = result;
+          return result;
+        };
+      }
+      return () -> {
+        Object result = value.evaluate();
+        interpreter.stack[interpreter.fp + slot] = result;
+        return result;
+      };
+    }
+    if (upvalue != -1) {
+      return () -> {
+        Object result = value.evaluate();
+        interpreter.upvalues[upvalue].value = result;
+        return result;
+      };
+    }
+    return () -> {
+      Object result = value.evaluate();
+      global.assign(name, result);
+      return result;
+    };
+  }
+
+  @Override
+  public CompiledExpr visitBinaryExpr(Expr.Binary expr) {
+    Token operator = expr.operator;
+    switch (operator.type) {
+      case MINUS:
+      case SLASH:
+      case STAR: {
+        // these always produce numbers, so nested arithmetic passes unboxed
+        // doubles and only the value of the outermost operation is boxed
+        if (!isUnboxed(expr.left) && !isUnboxed(expr.right)) return boxedArithmetic(expr);
+        CompiledDouble number = arithmetic(expr);
+        return () -> number.evaluateDouble();
+      }
+      case PLUS:
+        if (isNumber(expr) || speculating(expr, Specialization.NUMBER_ADD)) {
+          if (!isUnboxed(expr.left) && !isUnboxed(expr.right)) return boxedArithmetic(expr);
+          CompiledDouble number = arithmetic(expr);
+          return () -> interpreter.box(number.evaluateDouble());
+        }
+        break;
+      case GREATER:
+      case GREATER_EQUAL:
+      case LESS:
+      case LESS_EQUAL:
+        return comparison(expr);
+    }
+
+    CompiledExpr left = compile(expr.left);
+    CompiledExpr right = compile(expr.right);
+    switch (operator.type) {
+      case PLUS:
+        if (speculating(expr, Specialization.STRING_CONCAT)) return concatenation(expr, left, right);
+        return () -> {
+          Object a = left.evaluate();
+          Object b = right.evaluate();
+          if (a instanceof Double && b instanceof Double) return (double)a + (double)b;
+          if (a instanceof String && b instanceof String) return (String)a + (String)b;
+          throw new RuntimeError(operator, "Operands must be two numbers or two strings.");
+        };
+      case BANG_EQUAL:
+        return () -> !Interpreter.isEqual(left.evaluate(), right.evaluate());
+      case EQUAL_EQUAL:
+        return () -> Interpreter.isEqual(left.evaluate(), right.evaluate());
+      case COMMA:
+        return () -> {
+          left.evaluate();
+          return right.evaluate();
+        };
+    }
+
+    throw new IllegalStateException("Unexpected binary operator " + operator.type);
+  }
+
+  // the Interpreter has only seen this type of operands when tiering up
+  private boolean speculating(Expr.Binary expr, Specialization specialization) {
+    return invalidate != null && expr.specialization == specialization;
+  }
+
+  // whether the expression can only produce a number (or a runtime error)
+  private static boolean isNumber(Expr expr) {
+    if (expr instanceof Expr.Literal) return ((Expr.Literal)expr).value instanceof Double;
+    if (expr instanceof Expr.Grouping) return isNumber(((Expr.Grouping)expr).expression);
+    if (expr instanceof Expr.Invariant) return isNumber(((Expr.Invariant)expr).expression);
+    if (expr instanceof Expr.Unary) return ((Expr.Unary)expr).operator.type == TokenType.MINUS;
+    if (expr instanceof Expr.Binary) {
+      Expr.Binary binary = (Expr.Binary)expr;
+      switch (binary.operator.type) {
+        case MINUS:
+        case SLASH:
+        case STAR:
+          return true;
+        case PLUS: // a number can only be added to another number
+          return isNumber(binary.left) || isNumber(binary.right);
+      }
+    }
+    return false;
+  }
+
+  // whether compileDouble computes the expression without boxing its value
+  private boolean isUnboxed(Expr expr) {
+    if (expr instanceof Expr.Grouping) return isUnboxed(((Expr.Grouping)expr).expression);
+    if (expr instanceof Expr.Unary) return ((Expr.Unary)expr).operator.type == TokenType.MINUS;
+    if (expr instanceof Expr.Binary) {
+      Expr.Binary binary = (Expr.Binary)expr;
+      switch (binary.operator.type) {
+        case MINUS:
+        case SLASH:
+        case STAR:
+          return true;
+        case PLUS:
+          return isNumber(binary) || speculating(binary, Specialization.NUMBER_ADD);
+      }
+    }
+    return false;
+  }
+
+  // an arithmetic operation none of whose operands is itself computed unboxed:
+  // there is nothing to leave unboxed, and unboxing an operand such as a call
+  // would put a lambda, and so a Java frame, between the operation and the call
+  private CompiledExpr boxedArithmetic(Expr.Binary expr) {
+    CompiledExpr left = compile(expr.left);
+    CompiledExpr right = compile(expr.right);
+    // a failed speculation is thrown away, anything else is a runtime error
+    Runnable invalidate = speculating(expr, Specialization.NUMBER_ADD) ? this.invalidate : null;
+    Fallback fallback = new Fallback(expr, invalidate, null); // both operands are evaluated
+    switch (expr.operator.type) {
+      case PLUS:
+        return () -> {
+          Object a = left.evaluate();
+          Object b = right.evaluate();
+          if (a instanceof Double && b instanceof Double) return (double)a + (double)b;
+          return fallback.operation(a, b);
+        };
+      case MINUS:
+        return () -> {
+          Object a = left.evaluate();
+          Object b = right.evaluate();
+          if (a instanceof Double && b instanceof Double) return (double)a - (double)b;
+          return fallback.operation(a, b);
+        };
+      case STAR:
+        return () -> {
+          Object a = left.evaluate();
+          Object b = right.evaluate();
+          if (a instanceof Double && b instanceof Double) return (double)a * (double)b;
+          return fallback.operation(a, b);
+        };
+      case SLASH:
+        return () -> {
+          Object a = left.evaluate();
+          Object b = right.evaluate();
+          if (a instanceof Double && b instanceof Double && (double)b != 0) {
+            return (double)a / (double)b;
+          }
+          return fallback.operation(a, b); // also reports a division by zero
+        };
+    }
+
+    throw new IllegalStateException("Unexpected arithmetic operator " + expr.operator.type);
+  }
+
+  private CompiledDouble compileDouble(Expr expr) {
+    if (expr instanceof Expr.Literal && ((Expr.Literal)expr).value instanceof Double) {
+      double value = (double)((Expr.Literal)expr).value;
+      return () -> value;
+    }
+    if (constant(expr) instanceof Double) {
+      double value = (double)constant(expr);
+      return () -> value;
+    }
+    if (expr instanceof Expr.Grouping) return compileDouble(((Expr.Grouping)expr).expression);
+
+    if (expr instanceof Expr.Binary) {
+      Expr.Binary binary = (Expr.Binary)expr;
+      switch (binary.operator.type) {
+        case MINUS:
+        case PLUS: // only reports a string if both operands are strings
+        case SLASH:
+        case STAR:
+          return arithmetic(binary);
+      }
+    } else if (expr instanceof Expr.Unary && ((Expr.Unary)expr).operator.type == TokenType.MINUS) {
+      return negation((Expr.Unary)expr);
+    } else if (expr instanceof Expr.Variable && ((Expr.Variable)expr).local != null
+        && !((Expr.Variable)expr).local.captured) {
+      int slot = ((Expr.Variable)expr).local.slot;
+      return () -> {
+        Object value = interpreter.stack[interpreter.fp + slot];
+        if (value instanceof Double) return (double)value;
+        return interpreter.unexpected(value);
+      };
+    }
+
+    CompiledExpr value = compile(expr);
+    return () -> {
+      Object result = value.evaluate();
+      if (result instanceof Double) return (double)result;
+      return interpreter.unexpected(result);
+    };
+  }
+
+  private CompiledDouble arithmetic(Expr.Binary expr) {
+    CompiledDouble left = compileDouble(expr.left);
+    // a failed speculation is thrown away, anything else is a runtime error
+    Runnable invalidate = speculating(expr, Specialization.NUMBER_ADD) ? this.invalidate : null;
+
+    if (expr.right instanceof Expr.Literal && ((Expr.Literal)expr.right).value instanceof Double) {
+      CompiledDouble constant = arithmeticConstant(expr, left, invalidate,
+          (double)((Expr.Literal)expr.right).value);
+      if (constant != null) return constant;
+    }
+
+    CompiledDouble right = compileDouble(expr.right);
+    Fallback fallback = new Fallback(expr, invalidate, right);
+    switch (expr.operator.type) {
+      case PLUS:
+        return () -> {
+          double a = left.evaluateDouble();
+          if (a != a) return fallback.left();
+          double b = right.evaluateDouble();
+          if (b != b) return fallback.right(a);
+          return a + b;
+        };
+      case MINUS:
+        return () -> {
+          double a = left.evaluateDouble();
+          if (a != a) return fallback.left();
+          double b = right.evaluateDouble();
+          if (b != b) return fallback.right(a);
+          return a - b;
+        };
+      case STAR:
+        return () -> {
+          double a = left.evaluateDouble();
+          if (a != a) return fallback.left();
+          double b = right.evaluateDouble();
+          if (b != b) return fallback.right(a);
+          return a * b;
+        };
+      case SLASH:
+        return () -> {
+          double a = left.evaluateDouble();
+          if (a != a) return fallback.left();
+          double b = right.evaluateDouble();
+          if (b != b) return fallback.right(a);
+          if (b == 0) throw new RuntimeError(expr.operator, "Division by zero.");
+          return a / b;
+        };
+    }
+
+    throw new IllegalStateException("Unexpected arithmetic operator " + expr.operator.type);
+  }
+
+  // the right operand is the number literal b: returns null if there's no
+  // specialized version for the operator
+  private CompiledDouble arithmeticConstant(Expr.Binary expr, CompiledDouble left,
+      Runnable invalidate, double b) {
+    Fallback fallback = new Fallback(expr, invalidate, () -> b);
+    switch (expr.operator.type) {
+      case PLUS:
+        return () -> {
+          double a = left.evaluateDouble();
+          if (a != a) return fallback.left();
+          return a + b;
+        };
+      case MINUS:
+        return () -> {
+          double a = left.evaluateDouble();
+          if (a != a) return fallback.left();
+          return a - b;
+        };
+      case STAR:
+        return () -> {
+          double a = left.evaluateDouble();
+          if (a != a) return fallback.left();
+          return a * b;
+        };
+    }
+    return null;
+  }
+
+  private CompiledExpr comparison(Expr.Binary expr) {
+    CompiledDouble left = compileDouble(expr.left);
+
+    // loop conditions usually compare against a number literal
+    if (expr.right instanceof Expr.Literal && ((Expr.Literal)expr.right).value instanceof Double) {
+      double b = (double)((Expr.Literal)expr.right).value;
+      Fallback fallback = new Fallback(expr, null, () -> b);
+      switch (expr.operator.type) {
+        case GREATER:
+          return () -> {
+            double a = left.evaluateDouble();
+            if (a != a) return fallback.compareLeft();
+            return a > b;
+          };
+        case GREATER_EQUAL:
+          return () -> {
+            double a = left.evaluateDouble();
+            if (a != a) return fallback.compareLeft();
+            return a >= b;
+          };
+        case LESS:
+          return () -> {
+            double a = left.evaluateDouble();
+            if (a != a) return fallback.compareLeft();
+            return a < b;
+          };
+        default: // LESS_EQUAL
+          return () -> {
+            double a = left.evaluateDouble();
+            if (a != a) return fallback.compareLeft();
+            return a <= b;
+          };
+      }
+    }
+
+    CompiledDouble right = compileDouble(expr.right);
+    Fallback fallback = new Fallback(expr, null, right);
+    switch (expr.operator.type) {
+      case GREATER:
+        return () -> {
+          double a = left.evaluateDouble();
+          if (a != a) return fallback.compareLeft();
+          double b = right.evaluateDouble();
+          if (b != b) return fallback.compareRight(a);
+          return a > b;
+        };
+      case GREATER_EQUAL:
+        return () -> {
+          double a = left.evaluateDouble();
+          if (a != a) return fallback.compareLeft();
+          double b = right.evaluateDouble();
+          if (b != b) return fallback.compareRight(a);
+          return a >= b;
+        };
+      case LESS:
+        return () -> {
+          double a = left.evaluateDouble();
+          if (a != a) return fallback.compareLeft();
+          double b = right.evaluateDouble();
+          if (b != b) return fallback.compareRight(a);
+          return a < b;
+        };
+      default: // LESS_EQUAL
+        return () -> {
+          double a = left.evaluateDouble();
+          if (a != a) return fallback.compareLeft();
+          double b = right.evaluateDouble();
+          if (b != b) return fallback.compareRight(a);
+          return a <= b;
+        };
+    }
+  }
+
+  // the slow path of a numeric operation, taken when an operand is NaN, which
+  // is either a number or stands for a value that isn't (keeping everything it
+  // needs in one object keeps the compiled lambdas small)
+  private class Fallback {
+    private final Expr.Binary expr;
+    private final Runnable invalidate; // null unless the operation is speculative
+    private final CompiledDouble right;
+
+    Fallback(Expr.Binary expr, Runnable invalidate, CompiledDouble right) {
+      this.expr = expr;
+      this.invalidate = invalidate;
+      this.right = right;
+    }
+
+    double left() {
+      return number(compareLeft());
+    }
+
+    double right(double a) {
+      return number(compareRight(a));
+    }
+
+    // the left operand was NaN: the right one is still evaluated first
+    Object compareLeft() {
+      Object a = interpreter.box(Double.NaN);
+      return operation(a, interpreter.box(right.evaluateDouble()));
+    }
+
+    Object compareRight(double a) {
+      return operation(a, interpreter.box(Double.NaN));
+    }
+
+    // finish the operation on boxed values, which fails with a runtime error if
+    // an operand isn't a number, unless it's a + between strings
+    Object operation(Object a, Object b) {
+      if (invalidate != null && !(a instanceof Double && b instanceof Double)) {
+        expr.specialization = Specialization.GENERIC; // deoptimize
+        invalidate.run();
+      }
+      return Interpreter.binaryOperation(expr.operator, a, b);
+    }
+
+    private double number(Object result) {
+      if (result instanceof Double) return (double)result;
+      return interpreter.unexpected(result);
+    }
+  }
+
+  private CompiledDouble negation(Expr.Unary expr) {
+    CompiledDouble right = compileDouble(expr.right);
+    Token operator = expr.operator;
+    return () -> {
+      double value = right.evaluateDouble();
+      if (value != value) {
+        Interpreter.checkNumberOperand(operator, interpreter.box(value));
+      }
+      return -value;
+    };
+  }
+
+  // trust the Interpreter's profile and leave numbers to the Interpreter
+  private CompiledExpr concatenation(Expr.Binary expr, CompiledExpr left, CompiledExpr right) {
+    Runnable invalidate = this.invalidate;
+    return () -> {
+      Object a = left.evaluate();
+      Object b = right.evaluate();
+      if (a instanceof String && b instanceof String) return (String)a + (String)b;
+
+      // a speculation failed: throw the compiled code away, the node will stay
+      // generic if it's compiled again
+      expr.specialization = Specialization.GENERIC;
+      invalidate.run();
+      return Interpreter.binaryOperation(expr.operator, a, b);
+    };
+  }
+
+  @Override
+  public CompiledExpr visitCallExpr(Expr.Call expr) {
+    return compileCall(expr, compileArguments(expr));
+  }
+
+  private CompiledExpr[] compileArguments(Expr.Call expr) {
+    CompiledExpr[] arguments = new CompiledExpr[expr.arguments.size()];
+    for (int i = 0; i < arguments.length; i++) {
+      arguments[i] = compile(expr.arguments.get(i));
+    }
+    return arguments;
+  }
+
+  // the call, whose arguments have been compiled
+  private CompiledExpr compileCall(Expr.Call expr, CompiledExpr[] arguments) {
+    Token paren = expr.paren;
+    int argumentCount = arguments.length;
+    boolean tailCall = expr.tailCall;
+    if (expr.callee instanceof Expr.Get) {
+      return invoke((Expr.Get)expr.callee, paren, arguments, tailCall);
+    }
+
+    // a constant global, like a top-level function, is called without any check
+    if (constant(expr.callee) instanceof LoxCallable &&
+        ((LoxCallable)constant(expr.callee)).arity() == argumentCount) {
+      LoxCallable target = (LoxCallable)constant(expr.callee);
+      return call(() -> target, arguments, tailCall);
+    }
+
+    CompiledExpr callee = compile(expr.callee);
+
+    // the Interpreter only ever saw one function here: call it directly
+    if (invalidate != null && expr.specialization == Specialization.MONOMORPHIC &&
+        expr.cachedCallee instanceof LoxFunction) {
+      LoxFunction target = (LoxFunction)expr.cachedCallee;
+      Runnable invalidate = this.invalidate;
+      return call(() -> {
+        Object function = callee.evaluate();
+        if (function == target) return target;
+
+        expr.specialization = Specialization.GENERIC; // deoptimize
+        expr.cachedCallee = null;
+        invalidate.run();
+        return callable(paren, function, arguments);
+      }, arguments, tailCall);
+    }
+
+    return call(() -> callable(paren, callee.evaluate(), arguments), arguments, tailCall);
+  }
+
+  // the call of the LoxCallable the callee lambda returns, whose arity it has
+  // checked: the arguments are passed through the entry point for their
+  // number (LoxCallable.call0...), from the lambda itself rather than from a
+  // method of its own, so that each level of a recursion takes one Java frame
+  // less
+  private CompiledExpr call(CompiledExpr callee, CompiledExpr[] arguments, boolean tailCall) {
+    if (tailCall) {
+      return () -> {
+        LoxCallable callable = (LoxCallable)callee.evaluate();
+        if (callable instanceof LoxFunction) {
+          return interpreter.tailCall((LoxFunction)callable, null, evaluate(arguments));
+        }
+        return callable.call(interpreter, evaluate(arguments));
+      };
+    }
+
+    switch (arguments.length) {
+      case 0:
+        return () -> ((LoxCallable)callee.evaluate()).call0(interpreter);
+      case 1: {
+        CompiledExpr a = arguments[0];
+        return () -> ((LoxCallable)callee.evaluate()).call1(interpreter, a.evaluate());
+      }
+      case 2: {
+        CompiledExpr a = arguments[0];
+        CompiledExpr b = arguments[1];
+        return () -> ((LoxCallable)callee.evaluate()).call2(interpreter, a.evaluate(), b.evaluate());
+      }
+      case 3: {
+        CompiledExpr a = arguments[0];
+        CompiledExpr b = arguments[1];
+        CompiledExpr c = arguments[2];
+        return () -> ((LoxCallable)callee.evaluate()).call3(interpreter, a.evaluate(),
+            b.evaluate(), c.evaluate());
+      }
+      default:
+        return () -> ((LoxCallable)callee.evaluate()).call(interpreter, evaluate(arguments));
+    }
+  }
+
+  // the function, which must be callable with the arguments (if it isn't, the
+  // arguments are still evaluated before the error, as in the Interpreter)
+  private static LoxCallable callable(Token paren, Object function, CompiledExpr[] arguments) {
+    if (!(function instanceof LoxCallable) ||
+        ((LoxCallable)function).arity() != arguments.length) {
+      evaluate(arguments);
+      check(paren, function, arguments.length);
+    }
+    return (LoxCallable)function;
+  }
+
+  private static Object[] evaluate(CompiledExpr[] arguments) {
+    if (arguments.length == 0) return Interpreter.NO_ARGUMENTS;
+    Object[] values = new Object[arguments.length];
+    for (int i = 0; i < arguments.length; i++) {
+      values[i] = arguments[i].evaluate();
+    }
+    return values;
+  }
+
+  private static void check(Token paren, Object function, int count) {
+    if (!(function instanceof LoxCallable)) {
+      throw new RuntimeError(paren, "Can only call functions and classes.");
+    }
+    Interpreter.checkArity(paren, (LoxCallable)function, count);
+  }
+
+  // obj.method(...) calls the method without binding it to the instance first
+  private CompiledExpr invoke(Expr.Get get, Token paren, CompiledExpr[] arguments,
+      boolean tailCall) {
+    CompiledExpr object = compile(get.object);
+    Token name = get.name;
+    InlineCache cache = get.cache;
+    return () -> {
+      Object instance = object.evaluate();
+      if (!(instance instanceof LoxInstance)) {
+        throw new RuntimeError(name, "Only instances have properties.");
+      }
+
+      LoxInstance receiver = (LoxInstance)instance;
+      LoxFunction method = receiver.method(name, cache);
+      Object field = method == null ? receiver.get(name, cache) : null;
+      Object[] values = evaluate(arguments);
+
+      if (method == null) { // a field
+        check(paren, field, values.length);
+        LoxCallable callable = (LoxCallable)field;
+        if (tailCall && callable instanceof LoxFunction) {
+          return interpreter.tailCall((LoxFunction)callable, null, values);
+        }
+        return callable.call(interpreter, values);
+      }
+      Interpreter.checkArity(paren, method, values.length);
+      if (tailCall) return interpreter.tailCall(method, receiver, values);
+      return method.callMethod(interpreter, receiver, values);
+    };
+  }
+
+  @Override
+  public CompiledExpr visitFunctionExpr(Expr.Function expr) {
+    compileFunction(expr);
+    return () -> new LoxFunction("", expr, interpreter.capture(expr), false);
+  }
+
+  @Override
+  public CompiledExpr visitInlineExpr(Expr.Inline expr) {
+    int count = 0;
+    for (Local parameter : expr.parameters) {
+      if (parameter != null) count++;
+    }
+    // the arguments are compiled once, for both the copied body and the call
+    // (compiling them twice would take twice as long at each level of calls
+    // nested in arguments)
+    CompiledExpr[] callArguments = compileArguments(expr.call);
+    int[] slots = new int[count];
+    CompiledExpr[] arguments = new CompiledExpr[count];
+    for (int i = 0, j = 0; i < expr.parameters.length; i++) {
+      if (expr.parameters[i] == null) continue;
+      slots[j] = expr.parameters[i].slot;
+      arguments[j++] = callArguments[i];
+    }
+    CompiledExpr body = compile(expr.body);
+
+    // the function is defined and nothing can replace it: no guard
+    if (expr.global.constant && Interpreter.inlined(expr)) {
+      return () -> {
+        for (int i = 0; i < slots.length; i++) {
+          interpreter.stack[interpreter.fp + slots[i]] = arguments[i].evaluate();
+        }
+        return body.evaluate();
+      };
+    }
+
+    CompiledExpr call = compileCall(expr.call, callArguments);
+    return () -> {
+      if (!Interpreter.inlined(expr)) return call.evaluate();
+      for (int i = 0; i < slots.length; i++) {
+        interpreter.stack[interpreter.fp + slots[i]] = arguments[i].evaluate();
+      }
+      return body.evaluate();
+    };
+  }
+
+  @Override
+  public CompiledExpr visitInvariantExpr(Expr.Invariant expr) {
+    CompiledExpr expression = compile(expr.expression);
+    int slot = expr.local.slot;
+    return () -> {
+      Object value = interpreter.stack[interpreter.fp + slot];
+      if (value == Interpreter.UNEVALUATED) {
+        value = expression.evaluate();
+        interpreter.stack[interpreter.fp + slot] = value;
+      }
+      return value;
+    };
+  }
+
+  @Override
+  public CompiledExpr visitGetExpr(Expr.Get expr) {
+    CompiledExpr object = compile(expr.object);
+    Token name = expr.name;
+    InlineCache cache = expr.cache;
+    return () -> {
+      Object instance = object.evaluate();
+      if (instance instanceof LoxInstance) return ((LoxInstance)instance).get(name, cache);
+      throw new RuntimeError(name, "Only instances have properties.");
+    };
+  }
+
+  @Override
+  public CompiledExpr visitGroupingExpr(Expr.Grouping expr) {
+    return compile(expr.expression);
+  }
+
+  @Override
+  public CompiledExpr visitLiteralExpr(Expr.Literal expr) {
+    Object value = expr.value;
+    return () -> value;
+  }
+
+  @Override
+  public CompiledExpr visitLogicalExpr(Expr.Logical expr) {
+    CompiledExpr left = compile(expr.left);
+    CompiledExpr right = compile(expr.right);
+
+    if (expr.operator.type == TokenType.OR) {
+      return () -> {
+        Object value = left.evaluate();
+        return Interpreter.isTruthy(value) ? value : right.evaluate();
+      };
+    }
+    return () -> {
+      Object value = left.evaluate();
+      return Interpreter.isTruthy(value) ? right.evaluate() : value;
+    };
+  }
+
+  @Override
+  public CompiledExpr visitSetExpr(Expr.Set expr) {
+    CompiledExpr object = compile(expr.object);
+    CompiledExpr value = compile(expr.value);
+    Token name = expr.name;
+    InlineCache cache = expr.cache;
+    return () -> {
+      Object instance = object.evaluate();
+      if (!(instance instanceof LoxInstance)) {
+        throw new RuntimeError(name, "Only instances have fields.");
+      }
+
+      Object result = value.evaluate();
+      ((LoxInstance)instance).set(name, result, cache);
+      return result;
+    };
+  }
+
+  @Override
+  public CompiledExpr visitSuperExpr(Expr.Super expr) {
+    CompiledExpr superclassExpr = variable(expr.keyword, expr.local, expr.upvalue, null);
+    CompiledExpr receiver = compile(expr.receiver);
+    Token method = expr.method;
+    return () -> {
+      LoxClass superclass = (LoxClass)superclassExpr.evaluate();
+      LoxInstance object = (LoxInstance)receiver.evaluate();
+      LoxFunction function = superclass.findMethod(method.symbol);
+      if (function == null) {
+        throw new RuntimeError(method, "Undefined property '" + method.lexeme + "'.");
+      }
+      return function.bind(object);
+    };
+  }
+
+  @Override
+  public CompiledExpr visitTernaryExpr(Expr.Ternary expr) {
+    CompiledExpr condition = compile(expr.condition);
+    CompiledExpr thenBranch = compile(expr.thenBranch);
+    CompiledExpr elseBranch = compile(expr.elseBranch);
+    return () -> Interpreter.isTruthy(condition.evaluate())
+        ? thenBranch.evaluate() : elseBranch.evaluate();
+  }
+
+  @Override
+  public CompiledExpr visitThisExpr(Expr.This expr) {
+    return variable(expr.keyword, expr.local, expr.upvalue, null);
+  }
+
+  @Override
+  public CompiledExpr visitUnaryExpr(Expr.Unary expr) {
+    if (expr.operator.type == TokenType.MINUS) {
+      CompiledDouble number = negation(expr);
+      return () -> number.evaluateDouble();
+    }
+
+    CompiledExpr right = compile(expr.right);
+    return () -> !Interpreter.isTruthy(right.evaluate());
+  }
+
+  @Override
+  public CompiledExpr visitVariableExpr(Expr.Variable expr) {
+    return variable(expr.name, expr.local, expr.upvalue, expr.global);
+  }
+
+  private CompiledExpr variable(Token name, Local local, int upvalue, GlobalCell global) {
+    if (local != null) {
+      int slot = local.slot;
+      if (local.captured) return () -> ((Cell)interpreter.stack[interpreter.fp + slot]).value;
+      return () -> interpreter.stack[interpreter.fp + slot];
+    }
+    if (upvalue != -1) return () -> interpreter.upvalues[upvalue].value;
+    if (global.constant && global.value != GlobalCell.UNDEFINED) { // inline the constant
+      Object value = global.value;
+      return () -> value;
+    }
+    return () -> global.get(name);
+  }
+
+  // the value of a global that can't change anymore: the program defines it
+  // once and never assigns it, and the definition has run (otherwise UNDEFINED)
+  private static Object constant(Expr expr) {
+    if (!(expr instanceof Expr.Variable)) return GlobalCell.UNDEFINED;
+    GlobalCell global = ((Expr.Variable)expr).global;
+    return global != null && global.constant ? global.value : GlobalCell.UNDEFINED;
+  }
+
+  @Override
+  public CompiledStmt visitBlockStmt(Stmt.Block stmt) {
+    return compile(stmt.statements); // the block's locals are in the frame
+  }
+
+  @Override
+  public CompiledStmt visitBreakStmt(Stmt.Break stmt) {
+    return () -> Completion.BREAK;
+  }
+
+  @Override
+  public CompiledStmt visitClassStmt(Stmt.Class stmt) {
+    CompiledExpr superclassExpr = stmt.superclass == null ? null : compile(stmt.superclass);
+    for (Stmt.Function method : stmt.methods) {
+      compileFunction(method.function);
+    }
+
+    return () -> {
+      Object superclass = null;
+      if (superclassExpr != null) {
+        superclass = superclassExpr.evaluate();
+        if (!(superclass instanceof LoxClass)) {
+          throw new RuntimeError(stmt.superclass.name, "Superclass must be a class.");
+        }
+      }
+
+      // the methods capture the class (and "super") as they are created
+      interpreter.define(stmt.name, stmt.local, null);
+      if (superclassExpr != null) {
+        interpreter.define(stmt.superclass.name, stmt.superLocal, superclass);
+      }
+
+      SymbolMap<LoxFunction> methods = new SymbolMap<>();
+      for (Stmt.Function method : stmt.methods) {
+        methods.put(method.name.symbol, new LoxFunction(method.name.lexeme, method.function,
+            interpreter.capture(method.function), method.name.symbol == Symbols.INIT));
+      }
+
+      interpreter.initialize(stmt.name, stmt.local,
+          new LoxClass(stmt.name.lexeme, (LoxClass)superclass, methods));
+      return Completion.NORMAL;
+    };
+  }
+
+  @Override
+  public CompiledStmt visitContinueStmt(Stmt.Continue stmt) {
+    return () -> Completion.CONTINUE;
+  }
+
+  @Override
+  public CompiledStmt visitExpressionStmt(Stmt.Expression stmt) {
+    CompiledExpr expression = compile(stmt.expression);
+    return () -> {
+      expression.evaluate();
+      return Completion.NORMAL;
+    };
+  }
+
+  @Override
+  public CompiledStmt visitFunctionStmt(Stmt.Function stmt) {
+    compileFunction(stmt.function);
+    return () -> {
+      interpreter.define(stmt.name, stmt.local, null); // a recursive function captures itself
+      interpreter.initialize(stmt.name, stmt.local, new LoxFunction(stmt.name.lexeme,
+          stmt.function, interpreter.capture(stmt.function), false));
+      return Completion.NORMAL;
+    };
+  }
+
+  @Override
+  public CompiledStmt visitIfStmt(Stmt.If stmt) {
+    CompiledExpr condition = compile(stmt.condition);
+    CompiledStmt thenBranch = compile(stmt.thenBranch);
+
+    if (stmt.elseBranch == null) {
+      return () -> {
+        if (!Interpreter.isTruthy(condition.evaluate())) return Completion.NORMAL;
+        return thenBranch.execute();
+      };
+    }
+
+    CompiledStmt elseBranch = compile(stmt.elseBranch);
+    return () -> {
+      if (Interpreter.isTruthy(condition.evaluate())) {
+        return thenBranch.execute();
+      } else {
+        return elseBranch.execute();
+      }
+    };
+  }
+
+  @Override
+  public CompiledStmt visitPrintStmt(Stmt.Print stmt) {
+    CompiledExpr expression = compile(stmt.expression);
+    return () -> {
+      System.out.println(Interpreter.stringify(expression.evaluate()));
+      return Completion.NORMAL;
+    };
+  }
+
+  @Override
+  public CompiledStmt visitReturnStmt(Stmt.Return stmt) {
+    if (stmt.value == null) {
+      return () -> {
+        interpreter.returnValue = null;
+        return Completion.RETURN;
+      };
+    }
+
+    CompiledExpr value = compile(stmt.value);
+    return () -> {
+      interpreter.returnValue = value.evaluate();
+      return Completion.RETURN;
+    };
+  }
+
+  @Override
+  public CompiledStmt visitVarStmt(Stmt.Var stmt) {
+    Token name = stmt.name;
+    Local local = stmt.local;
+    CompiledExpr initializer = stmt.initializer == null ? () -> null : compile(stmt.initializer);
+
+    if (local != null && !local.captured) {
+      int slot = local.slot;
+      return () -> {
+        interpreter.stack[interpreter.fp + slot] = initializer.evaluate();
+        return Completion.NORMAL;
+      };
+    }
+    return () -> {
+      interpreter.define(name, local, initializer.evaluate());
+      return Completion.NORMAL;
+    };
+  }
+
+  @Override
+  public CompiledStmt visitWhileStmt(Stmt.While stmt) {
+    CompiledExpr condition = compile(stmt.condition);
+    CompiledStmt body = compile(stmt.body);
+    Local[] invariants = stmt.invariants;
+    return () -> {
+      for (Local invariant : invariants) {
+        interpreter.stack[interpreter.fp + invariant.slot] = Interpreter.UNEVALUATED;
+      }
+      while (Interpreter.isTruthy(condition.evaluate())) {
+        Completion completion = body.execute();
+        if (completion == Completion.BREAK) break;
+        if (completion == Completion.RETURN) return completion;
+      }
+      return Completion.NORMAL;
+    };
+  }
+}
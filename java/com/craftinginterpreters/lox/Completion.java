@@ -0,0 +1,13 @@
+package com.craftinginterpreters.lox;
+
+// How a statement finished executing. Anything but NORMAL stops the enclosing
+// statements, which pass it on until it reaches the loop (BREAK, CONTINUE) or
+// the function call (RETURN) that handles it. The value of a return is left
+// in Interpreter.returnValue, or, for a tail call, the function to call in
+// Interpreter.tailCallee.
+enum Completion {
+  NORMAL,
+  RETURN,
+  BREAK,
+  CONTINUE
+}
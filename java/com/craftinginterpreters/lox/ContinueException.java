@@ -1,8 +0,0 @@
-package com.craftinginterpreters.lox;
-
-class ContinueException extends RuntimeException {
-  ContinueException() {
-    super(null, null, false, false);
-  }
-}
-
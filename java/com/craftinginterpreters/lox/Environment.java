@@ -1,62 +1,23 @@
 package com.craftinginterpreters.lox;
 
-import java.util.HashMap;
-import java.util.Map;
-
+// The global variables. Locals live in the Interpreter's frames at the slots
+// assigned by the Resolver, which also binds each use of a global to its cell.
 class Environment {
-	final Environment enclosing; // reference to parent scope
-	private final Map<String, Object> values = new HashMap<>();
-
-	Environment() { // constructor for global scope
-		enclosing = null;
-	}
-
-	Environment(Environment enclosing) { // local scope
-		this.enclosing = enclosing;
-	}
+	private final SymbolMap<GlobalCell> cells = new SymbolMap<>();
 
-	Object get(Token name) {
-		if (values.containsKey(name.lexeme)) {
-			return values.get(name.lexeme);
+	GlobalCell cell(int symbol) {
+		GlobalCell cell = cells.get(symbol);
+		if (cell == null) {
+			cell = new GlobalCell(symbol);
+			cells.put(symbol, cell);
 		}
-
-		// recursively look inside the enclosing scope
-		if (enclosing != null) return enclosing.get(name);
-
-		throw new RuntimeError(name, "Undefined variable '" + name.lexeme + "'.");
+		return cell;
 	}
 
+	// defines a native: one more definition by the program makes it a variable
 	void define(String name, Object value) {
-		values.put(name, value);
-	}
-
-	Object getAt(int distance, String name) {
-		return ancestor(distance).values.get(name);
-	}
-
-	void assignAt(int distance, Token name, Object value) {
-    ancestor(distance).values.put(name.lexeme, value);
-  }
-
-	Environment ancestor(int distance) {
-		Environment environment = this;
-		for (int i = 0; i < distance; i++) {
-			environment = environment.enclosing;
-		}
-		return environment;
-	}
-
-	void assign(Token name, Object value) {
-		if (values.containsKey(name.lexeme)) {
-			values.put(name.lexeme, value);
-			return;
-		}
-
-		if (enclosing != null) {
-			enclosing.assign(name, value);
-			return;
-		}
-
-		throw new RuntimeError(name, "Undefined variable '" + name.lexeme + "'.");
+		GlobalCell cell = cell(Symbols.intern(name));
+		cell.value = value;
+		cell.declared = true;
 	}
 }
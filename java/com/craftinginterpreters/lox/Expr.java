@@ -10,6 +10,8 @@ abstract class Expr {
 		R visitFunctionExpr(Function expr);
 		R visitGetExpr(Get expr);
 		R visitGroupingExpr(Grouping expr);
+		R visitInlineExpr(Inline expr);
+		R visitInvariantExpr(Invariant expr);
 		R visitLiteralExpr(Literal expr);
 		R visitLogicalExpr(Logical expr);
 		R visitSetExpr(Set expr);
@@ -33,6 +35,9 @@ abstract class Expr {
 
 		final Token name;
 		final Expr value;
+		Local local;
+		int upvalue = -1;
+		GlobalCell global;
 	}
 
 	static class Binary extends Expr {
@@ -50,6 +55,7 @@ abstract class Expr {
 		final Expr left;
 		final Token operator;
 		final Expr right;
+		Specialization specialization = Specialization.UNINITIALIZED;
 	}
 
 	static class Call extends Expr {
@@ -67,6 +73,9 @@ abstract class Expr {
 		final Expr callee;
 		final Token paren;
 		final List<Expr> arguments;
+		boolean tailCall;
+		Specialization specialization = Specialization.UNINITIALIZED;
+		LoxCallable cachedCallee;
 	}
 
 	static class Function extends Expr {
@@ -82,6 +91,13 @@ abstract class Expr {
 
 		final List<Token> params;
 		final List<Stmt> body;
+		int frameSize;
+		Local receiver;
+		Local[] parameters;
+		int[] upvalues;
+		int calls;
+		ClosureCompiler.CompiledStmt compiled;
+		LazyBody lazy;
 	}
 
 	static class Get extends Expr {
@@ -97,6 +113,7 @@ abstract class Expr {
 
 		final Expr object;
 		final Token name;
+		final InlineCache cache = new InlineCache();
 	}
 
 	static class Grouping extends Expr {
@@ -112,6 +129,42 @@ abstract class Expr {
 		final Expr expression;
 	}
 
+	static class Inline extends Expr {
+		Inline(Expr.Call call, GlobalCell global, Expr.Function function, Local[] parameters, Expr body) {
+			this.call = call;
+			this.global = global;
+			this.function = function;
+			this.parameters = parameters;
+			this.body = body;
+		}
+
+		@Override
+		<R> R accept(Visitor<R> visitor) {
+			return visitor.visitInlineExpr(this);
+		}
+
+		final Expr.Call call;
+		final GlobalCell global;
+		final Expr.Function function;
+		final Local[] parameters;
+		final Expr body;
+	}
+
+	static class Invariant extends Expr {
+		Invariant(Expr expression, Local local) {
+			this.expression = expression;
+			this.local = local;
+		}
+
+		@Override
+		<R> R accept(Visitor<R> visitor) {
+			return visitor.visitInvariantExpr(this);
+		}
+
+		final Expr expression;
+		final Local local;
+	}
+
 	static class Literal extends Expr {
 		Literal(Object value) {
 			this.value = value;
@@ -140,6 +193,7 @@ abstract class Expr {
 		final Expr left;
 		final Token operator;
 		final Expr right;
+		Specialization specialization = Specialization.UNINITIALIZED;
 	}
 
 	static class Set extends Expr {
@@ -157,6 +211,7 @@ abstract class Expr {
 		final Expr object;
 		final Token name;
 		final Expr value;
+		final InlineCache cache = new InlineCache();
 	}
 
 	static class Super extends Expr {
@@ -172,6 +227,9 @@ abstract class Expr {
 
 		final Token keyword;
 		final Token method;
+		Local local;
+		int upvalue = -1;
+		Expr.This receiver;
 	}
 
 	static class Ternary extends Expr {
@@ -202,6 +260,8 @@ abstract class Expr {
 		}
 
 		final Token keyword;
+		Local local;
+		int upvalue = -1;
 	}
 
 	static class Unary extends Expr {
@@ -217,6 +277,7 @@ abstract class Expr {
 
 		final Token operator;
 		final Expr right;
+		Specialization specialization = Specialization.UNINITIALIZED;
 	}
 
 	static class Variable extends Expr {
@@ -230,6 +291,9 @@ abstract class Expr {
 		}
 
 		final Token name;
+		Local local;
+		int upvalue = -1;
+		GlobalCell global;
 	}
 
 	abstract <R> R accept(Visitor<R> visitor);
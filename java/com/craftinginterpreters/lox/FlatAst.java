@@ -0,0 +1,136 @@
+package com.craftinginterpreters.lox;
+
+import java.util.Arrays;
+
+// A resolved and optimized program laid out flat (see Flattener): each node is
+// a record in one int array, its kind followed by its operands, and refers to
+// its children by their index in the array. Values the ints can't hold are in
+// a constant pool, names are symbols (see Symbols), and the lines are kept in a
+// run-length table only read to report errors. So the program holds no Token
+// and no node objects, and a walk over it (see FlatInterpreter) reads memory
+// in the order it was written.
+// Children come before their parent, and a list of children (the statements
+// of a block, the arguments of a call) is a count followed by their indexes.
+final class FlatAst {
+  // expressions
+  static final int LITERAL = 0;        // constant
+  static final int LOCAL = 1;          // slot
+  static final int CELL = 2;           // slot (a captured local)
+  static final int UPVALUE = 3;        // index
+  static final int GLOBAL = 4;         // constant (GlobalCell), symbol
+  static final int ASSIGN_LOCAL = 5;   // slot, value
+  static final int ASSIGN_CELL = 6;    // slot, value
+  static final int ASSIGN_UPVALUE = 7; // index, value
+  static final int ASSIGN_GLOBAL = 8;  // constant (GlobalCell), symbol, value
+  static final int BINARY = 9;         // operator (TokenType ordinal), left, right
+  static final int AND = 10;           // left, right
+  static final int OR = 11;            // left, right
+  static final int NOT = 12;           // operand
+  static final int NEGATE = 13;        // operand
+  static final int TERNARY = 14;       // condition, then, else
+  // a call of a GET node calls the method without binding it to the instance
+  static final int CALL = 15;          // tail call (0 or 1), callee, count, arguments...
+  static final int GET = 16;           // symbol, cache, object
+  static final int SET = 17;           // symbol, cache, object, value
+  static final int SUPER = 18;         // symbol, superclass, receiver
+  // a function is the constant of its Expr.Function, which has the layout of
+  // its frame but no body (see Flattener.header), and the BLOCK of its body
+  static final int FUNCTION = 19;      // constant, body
+  // call (the node run when the function isn't the one inlined), constant
+  // (GlobalCell), constant (Expr.Function), body, count, (slot, argument)...
+  static final int INLINE = 20;
+  static final int INVARIANT = 21;     // slot, expression
+  // statements
+  static final int EXPRESSION = 22;    // expression
+  static final int PRINT = 23;         // expression
+  static final int RETURN = 24;        // value or -1
+  static final int BREAK = 25;
+  static final int CONTINUE = 26;
+  static final int BLOCK = 27;         // count, statements...
+  static final int IF = 28;            // condition, then, else or -1
+  static final int WHILE = 29;         // condition, body, count, invariant slots...
+  // the variable a declaration defines is a LOCAL, CELL or GLOBAL followed by
+  // its slot or the constant of its GlobalCell
+  static final int VAR = 30;           // variable, slot or constant, initializer or -1
+  static final int FUN = 31;           // variable, slot or constant, symbol, constant, body
+  // superclass is -1 or the node of its variable, followed by the variable the
+  // methods read it from as "super"
+  static final int CLASS = 32;         // variable, slot or constant, symbol, superclass,
+                                       // [variable, slot], count, (symbol, constant, body)...
+
+  int[] code = new int[64];
+  int count = 0;
+  Object[] constants = new Object[16];
+  int constantCount = 0;
+  // the line of the nodes from lineStarts[i] up to the next start is lines[i]
+  int[] lineStarts = new int[16];
+  int[] lines = new int[16];
+  int lineCount = 0;
+  // the inline caches of the GET and SET nodes, made on their first run
+  InlineCache[] caches = new InlineCache[0];
+  int cacheCount = 0;
+  int root = -1; // the BLOCK of the top-level statements
+  int frameSize = 0; // the number of slots the Resolver gave the top-level code
+
+  // start a node written by the next calls to write (only the nodes that can
+  // fail have a line)
+  int node(int kind) {
+    int node = count;
+    write(kind);
+    return node;
+  }
+
+  int node(int kind, int line) {
+    if (lineCount == 0 || lines[lineCount - 1] != line) {
+      if (lineCount == lines.length) {
+        lineStarts = Arrays.copyOf(lineStarts, lineCount * 2);
+        lines = Arrays.copyOf(lines, lineCount * 2);
+      }
+      lineStarts[lineCount] = count;
+      lines[lineCount] = line;
+      lineCount++;
+    }
+    return node(kind);
+  }
+
+  void write(int operand) {
+    if (count == code.length) code = Arrays.copyOf(code, count * 2);
+    code[count++] = operand;
+  }
+
+  int addConstant(Object value) {
+    if (constantCount == constants.length) {
+      constants = Arrays.copyOf(constants, constantCount * 2);
+    }
+    constants[constantCount] = value;
+    return constantCount++;
+  }
+
+  int addCache() {
+    return cacheCount++;
+  }
+
+  // the line of the node (a binary search: it's only needed for errors)
+  int line(int node) {
+    int low = 0;
+    int high = lineCount - 1;
+    while (low < high) {
+      int middle = (low + high + 1) >>> 1;
+      if (lineStarts[middle] <= node) {
+        low = middle;
+      } else {
+        high = middle - 1;
+      }
+    }
+    return lines[low];
+  }
+
+  // drop the room left for growth once the whole program is written
+  void trim() {
+    code = Arrays.copyOf(code, count);
+    constants = Arrays.copyOf(constants, constantCount);
+    lineStarts = Arrays.copyOf(lineStarts, lineCount);
+    lines = Arrays.copyOf(lines, lineCount);
+    caches = new InlineCache[cacheCount];
+  }
+}
@@ -0,0 +1,403 @@
+package com.craftinginterpreters.lox;
+
+import static com.craftinginterpreters.lox.FlatAst.*;
+
+// Fourth execution engine: walks a FlatAst, switching on the kind of each
+// node, instead of visiting Expr and Stmt objects. It shares the runtime of
+// the Interpreter (globals, frames, functions, classes and instances): the
+// Expr.Function of a function runs the function's body in the FlatAst as its
+// compiled code, the way the ClosureCompiler's functions do.
+// The lines of the nodes are only looked up to report an error, so the fast
+// paths (numbers, cached properties) are handled here before falling back on
+// the Interpreter's helpers, which need the line.
+class FlatInterpreter {
+  private static final TokenType[] TYPES = TokenType.values();
+
+  private final Interpreter interpreter;
+  private final FlatAst ast;
+  private final int[] code;
+  private final Object[] constants;
+
+  FlatInterpreter(Interpreter interpreter, FlatAst ast) {
+    this.interpreter = interpreter;
+    this.ast = ast;
+    this.code = ast.code;
+    this.constants = ast.constants;
+  }
+
+  void interpret() {
+    interpreter.pushFrame(ast.frameSize);
+    try {
+      execute(ast.root);
+    } catch (RuntimeError error) {
+      Lox.runtimeError(error);
+    }
+    interpreter.resetStack();
+  }
+
+  private Object evaluate(int node) {
+    int[] code = this.code;
+    switch (code[node]) {
+      case LITERAL: return constants[code[node + 1]];
+      case LOCAL: return interpreter.stack[interpreter.fp + code[node + 1]];
+      case CELL: return ((Cell)interpreter.stack[interpreter.fp + code[node + 1]]).value;
+      case UPVALUE: return interpreter.upvalues[code[node + 1]].value;
+      case GLOBAL: {
+        GlobalCell global = (GlobalCell)constants[code[node + 1]];
+        Object value = global.value;
+        if (value != GlobalCell.UNDEFINED) return value;
+        return global.get(code[node + 2], ast.line(node)); // reports the error
+      }
+      case ASSIGN_LOCAL: {
+        Object value = evaluate(code[node + 2]);
+        interpreter.stack[interpreter.fp + code[node + 1]] = value;
+        return value;
+      }
+      case ASSIGN_CELL: {
+        Object value = evaluate(code[node + 2]);
+        ((Cell)interpreter.stack[interpreter.fp + code[node + 1]]).value = value;
+        return value;
+      }
+      case ASSIGN_UPVALUE: {
+        Object value = evaluate(code[node + 2]);
+        interpreter.upvalues[code[node + 1]].value = value;
+        return value;
+      }
+      case ASSIGN_GLOBAL: {
+        Object value = evaluate(code[node + 3]);
+        GlobalCell global = (GlobalCell)constants[code[node + 1]];
+        if (global.value != GlobalCell.UNDEFINED) {
+          global.value = value;
+        } else {
+          global.assign(code[node + 2], ast.line(node), value); // reports the error
+        }
+        return value;
+      }
+      case BINARY: {
+        Object left = evaluate(code[node + 2]);
+        Object right = evaluate(code[node + 3]);
+        return binary(node, TYPES[code[node + 1]], left, right);
+      }
+      case AND: {
+        Object left = evaluate(code[node + 1]);
+        if (!Interpreter.isTruthy(left)) return left;
+        return evaluate(code[node + 2]);
+      }
+      case OR: {
+        Object left = evaluate(code[node + 1]);
+        if (Interpreter.isTruthy(left)) return left;
+        return evaluate(code[node + 2]);
+      }
+      case NOT: return !Interpreter.isTruthy(evaluate(code[node + 1]));
+      case NEGATE: {
+        Object right = evaluate(code[node + 1]);
+        if (right instanceof Double) return -(double)right;
+        Interpreter.checkNumberOperand(ast.line(node), right); // reports the error
+        return null; // unreachable
+      }
+      case TERNARY:
+        if (Interpreter.isTruthy(evaluate(code[node + 1]))) return evaluate(code[node + 2]);
+        return evaluate(code[node + 3]);
+      case CALL: {
+        int callee = code[node + 2];
+        // obj.method(...) doesn't bind the method
+        if (code[callee] == GET) return invoke(node, callee);
+        return call(node, evaluate(callee));
+      }
+      case GET: {
+        LoxInstance instance = instance(node, "Only instances have properties.");
+        int symbol = code[node + 1];
+        Object value = instance.get(symbol, cache(code[node + 2]));
+        if (value == LoxInstance.UNDEFINED) throw LoxInstance.undefined(symbol, ast.line(node));
+        return value;
+      }
+      case SET: {
+        LoxInstance instance = instance(node, "Only instances have fields.");
+        Object value = evaluate(code[node + 4]);
+        instance.set(code[node + 1], value, cache(code[node + 2]));
+        return value;
+      }
+      case SUPER: {
+        LoxClass superclass = (LoxClass)evaluate(code[node + 2]);
+        LoxInstance object = (LoxInstance)evaluate(code[node + 3]);
+        LoxFunction method = superclass.findMethod(code[node + 1]);
+        if (method == null) throw LoxInstance.undefined(code[node + 1], ast.line(node));
+        return method.bind(object);
+      }
+      case FUNCTION: {
+        Expr.Function function = function(code[node + 1], code[node + 2]);
+        return new LoxFunction("", function, interpreter.capture(function), false);
+      }
+      case INLINE: return inline(node);
+      case INVARIANT: {
+        int slot = code[node + 1];
+        Object value = interpreter.stack[interpreter.fp + slot];
+        if (value == Interpreter.UNEVALUATED) { // the first time since the loop was entered
+          value = evaluate(code[node + 2]);
+          interpreter.stack[interpreter.fp + slot] = value;
+        }
+        return value;
+      }
+    }
+
+    throw new IllegalStateException("Not an expression: " + code[node]);
+  }
+
+  // numbers, strings and equality are handled here, anything else is an error
+  // the Interpreter reports
+  private Object binary(int node, TokenType operator, Object left, Object right) {
+    if (left instanceof Double && right instanceof Double) {
+      double a = (double)left;
+      double b = (double)right;
+      switch (operator) {
+        case PLUS: return a + b;
+        case MINUS: return a - b;
+        case STAR: return a * b;
+        case SLASH:
+          if (b != 0) return a / b;
+          break; // division by zero
+        case GREATER: return a > b;
+        case GREATER_EQUAL: return a >= b;
+        case LESS: return a < b;
+        case LESS_EQUAL: return a <= b;
+      }
+    }
+
+    switch (operator) {
+      case EQUAL_EQUAL: return Interpreter.isEqual(left, right);
+      case BANG_EQUAL: return !Interpreter.isEqual(left, right);
+      case COMMA: return right;
+      case PLUS:
+        if (left instanceof String && right instanceof String) return (String)left + (String)right;
+        break;
+    }
+    return Interpreter.binaryOperation(operator, ast.line(node), left, right);
+  }
+
+  // the instance a GET or SET node reads or writes a property of
+  private LoxInstance instance(int node, String message) {
+    Object object = evaluate(code[node + 3]);
+    if (object instanceof LoxInstance) return (LoxInstance)object;
+    throw new RuntimeError(ast.line(node), message);
+  }
+
+  private InlineCache cache(int index) {
+    InlineCache cache = ast.caches[index];
+    if (cache == null) {
+      cache = new InlineCache();
+      ast.caches[index] = cache;
+    }
+    return cache;
+  }
+
+  // evaluate the arguments of a CALL node and call the function: the first
+  // three are passed on as they are (see LoxCallable.call0...call3)
+  private Object call(int node, Object function) {
+    int[] code = this.code;
+    int count = code[node + 3];
+    Object a = null, b = null, c = null;
+    Object[] arguments = null;
+    if (count > 3) {
+      arguments = arguments(node);
+    } else {
+      if (count > 0) a = evaluate(code[node + 4]);
+      if (count > 1) b = evaluate(code[node + 5]);
+      if (count > 2) c = evaluate(code[node + 6]);
+    }
+
+    if (!(function instanceof LoxCallable)) { // not callable
+      throw new RuntimeError(ast.line(node), "Can only call functions and classes.");
+    }
+    LoxCallable callable = (LoxCallable)function;
+    if (callable.arity() != count) Interpreter.checkArity(ast.line(node), callable, count);
+
+    if (code[node + 1] != 0 && callable instanceof LoxFunction) { // a tail call
+      if (arguments == null) arguments = Interpreter.arguments(count, a, b, c);
+      return interpreter.tailCall((LoxFunction)callable, null, arguments);
+    }
+
+    switch (count) {
+      case 0: return callable.call0(interpreter);
+      case 1: return callable.call1(interpreter, a);
+      case 2: return callable.call2(interpreter, a, b);
+      case 3: return callable.call3(interpreter, a, b, c);
+      default: return callable.call(interpreter, arguments);
+    }
+  }
+
+  // a CALL node whose callee is the GET node of a method
+  private Object invoke(int node, int get) {
+    LoxInstance instance = instance(get, "Only instances have properties.");
+    int symbol = code[get + 1];
+    InlineCache cache = cache(code[get + 2]);
+    LoxFunction method = instance.method(symbol, cache);
+    if (method == null) { // a field holding the function
+      Object field = instance.get(symbol, cache);
+      if (field == LoxInstance.UNDEFINED) throw LoxInstance.undefined(symbol, ast.line(get));
+      return call(node, field);
+    }
+
+    Object[] arguments = arguments(node);
+    if (method.arity() != arguments.length) {
+      Interpreter.checkArity(ast.line(node), method, arguments.length);
+    }
+    if (code[node + 1] != 0) return interpreter.tailCall(method, instance, arguments);
+    return method.callMethod(interpreter, instance, arguments);
+  }
+
+  private Object[] arguments(int node) {
+    int count = code[node + 3];
+    if (count == 0) return Interpreter.NO_ARGUMENTS;
+    Object[] arguments = new Object[count];
+    for (int i = 0; i < count; i++) {
+      arguments[i] = evaluate(code[node + 4 + i]);
+    }
+    return arguments;
+  }
+
+  private Object inline(int node) {
+    int[] code = this.code;
+    // the copied body is only the call while the global holds the function
+    // (it might not be defined yet, or be declared again in the REPL)
+    Object callee = ((GlobalCell)constants[code[node + 2]]).value;
+    Expr.Function function = (Expr.Function)constants[code[node + 3]];
+    if (!(callee instanceof LoxFunction && ((LoxFunction)callee).isDeclaredBy(function))) {
+      return evaluate(code[node + 1]);
+    }
+
+    // the arguments go to slots of the current frame instead of a new one
+    int count = code[node + 5];
+    for (int i = 0; i < count; i++) {
+      int parameter = node + 6 + 2 * i;
+      Object value = evaluate(code[parameter + 1]);
+      interpreter.stack[interpreter.fp + code[parameter]] = value;
+    }
+    return evaluate(code[node + 4]);
+  }
+
+  // the declaration of a function, which runs its body the first time it's
+  // called
+  private Expr.Function function(int constant, int body) {
+    Expr.Function function = (Expr.Function)constants[constant];
+    if (function.compiled == null) function.compiled = () -> execute(body);
+    return function;
+  }
+
+  private Completion execute(int node) {
+    int[] code = this.code;
+    switch (code[node]) {
+      case EXPRESSION:
+        evaluate(code[node + 1]);
+        return Completion.NORMAL;
+      case PRINT:
+        System.out.println(Interpreter.stringify(evaluate(code[node + 1])));
+        return Completion.NORMAL;
+      case RETURN: {
+        Object value = null;
+        if (code[node + 1] != -1) value = evaluate(code[node + 1]);
+        interpreter.returnValue = value;
+        return Completion.RETURN;
+      }
+      case BREAK: return Completion.BREAK;
+      case CONTINUE: return Completion.CONTINUE;
+      case BLOCK: {
+        int count = code[node + 1];
+        for (int i = 0; i < count; i++) {
+          Completion completion = execute(code[node + 2 + i]);
+          if (completion != Completion.NORMAL) return completion;
+        }
+        return Completion.NORMAL;
+      }
+      case IF:
+        if (Interpreter.isTruthy(evaluate(code[node + 1]))) return execute(code[node + 2]);
+        if (code[node + 3] != -1) return execute(code[node + 3]);
+        return Completion.NORMAL;
+      case WHILE: return loop(node);
+      case VAR: {
+        Object value = null;
+        if (code[node + 3] != -1) value = evaluate(code[node + 3]);
+        define(code[node + 1], code[node + 2], value);
+        return Completion.NORMAL;
+      }
+      case FUN: {
+        define(code[node + 1], code[node + 2], null); // a recursive function captures itself
+        Expr.Function function = function(code[node + 4], code[node + 5]);
+        initialize(code[node + 1], code[node + 2], new LoxFunction(Symbols.name(code[node + 3]),
+            function, interpreter.capture(function), false));
+        return Completion.NORMAL;
+      }
+      case CLASS: return declareClass(node);
+    }
+
+    throw new IllegalStateException("Not a statement: " + code[node]);
+  }
+
+  private Completion loop(int node) {
+    int[] code = this.code;
+    int count = code[node + 3];
+    for (int i = 0; i < count; i++) {
+      interpreter.stack[interpreter.fp + code[node + 4 + i]] = Interpreter.UNEVALUATED;
+    }
+
+    int condition = code[node + 1];
+    int body = code[node + 2];
+    while (Interpreter.isTruthy(evaluate(condition))) {
+      Completion completion = execute(body);
+      if (completion == Completion.BREAK) break;
+      if (completion == Completion.RETURN) return completion;
+      // CONTINUE has already left the body, start executing it again
+    }
+    return Completion.NORMAL;
+  }
+
+  private Completion declareClass(int node) {
+    int[] code = this.code;
+    int superclassNode = code[node + 4];
+    int methods = node + 5; // the count of the methods
+    Object superclass = null;
+    if (superclassNode != -1) {
+      superclass = evaluate(superclassNode);
+      if (!(superclass instanceof LoxClass)) {
+        throw new RuntimeError(ast.line(superclassNode), "Superclass must be a class.");
+      }
+      methods += 2;
+    }
+
+    // the methods capture the class (and "super") as they are created
+    define(code[node + 1], code[node + 2], null);
+    if (superclassNode != -1) define(code[node + 5], code[node + 6], superclass);
+
+    SymbolMap<LoxFunction> functions = new SymbolMap<>();
+    int count = code[methods];
+    for (int i = 0; i < count; i++) {
+      int method = methods + 1 + 3 * i;
+      int symbol = code[method];
+      Expr.Function function = function(code[method + 1], code[method + 2]);
+      functions.put(symbol, new LoxFunction(Symbols.name(symbol), function,
+          interpreter.capture(function), symbol == Symbols.INIT));
+    }
+
+    LoxClass klass = new LoxClass(Symbols.name(code[node + 3]), (LoxClass)superclass, functions);
+    initialize(code[node + 1], code[node + 2], klass);
+    return Completion.NORMAL;
+  }
+
+  // the variable of a declaration is a LOCAL, CELL or GLOBAL and its slot or
+  // constant (see Interpreter.define)
+  private void define(int variable, int operand, Object value) {
+    switch (variable) {
+      case LOCAL: interpreter.stack[interpreter.fp + operand] = value; break;
+      case CELL: interpreter.stack[interpreter.fp + operand] = new Cell(value); break;
+      default: ((GlobalCell)constants[operand]).value = value; break;
+    }
+  }
+
+  // set a variable just defined, after creating the closures that capture it
+  private void initialize(int variable, int operand, Object value) {
+    switch (variable) {
+      case LOCAL: interpreter.stack[interpreter.fp + operand] = value; break;
+      case CELL: ((Cell)interpreter.stack[interpreter.fp + operand]).value = value; break;
+      default: ((GlobalCell)constants[operand]).value = value; break;
+    }
+  }
+}
@@ -0,0 +1,415 @@
+package com.craftinginterpreters.lox;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.craftinginterpreters.lox.FlatAst.*;
+
+// Converts a resolved and optimized program into a FlatAst, after which
+// nothing refers to its Expr and Stmt nodes or their tokens any more. Each
+// visit writes the node's children, then the node, and returns its index.
+// Groupings leave no node, and the nodes the Resolver and the Optimizer left
+// state in (variables, functions, calls) are written as what that state says
+// to do, so the FlatInterpreter has nothing left to look up.
+class Flattener implements Expr.Visitor<Integer>, Stmt.Visitor<Integer> {
+  private final Environment globals;
+  private final FlatAst ast = new FlatAst();
+  // one constant per literal value, global cell or function
+  private final Map<Object, Integer> constants = new HashMap<>();
+  private final Map<Expr.Function, Expr.Function> headers = new IdentityHashMap<>();
+
+  Flattener(Environment globals) {
+    this.globals = globals;
+  }
+
+  FlatAst flatten(List<Stmt> statements, int frameSize) {
+    ast.root = block(statements);
+    ast.frameSize = frameSize;
+    ast.trim();
+    return ast;
+  }
+
+  private int flatten(Stmt stmt) {
+    return stmt.accept(this);
+  }
+
+  private int flatten(Expr expr) {
+    return expr.accept(this);
+  }
+
+  private int block(List<Stmt> statements) {
+    int[] children = new int[statements.size()];
+    for (int i = 0; i < children.length; i++) {
+      children[i] = flatten(statements.get(i));
+    }
+
+    int node = ast.node(BLOCK);
+    ast.write(children.length);
+    for (int child : children) ast.write(child);
+    return node;
+  }
+
+  private int constant(Object value) {
+    Integer constant = constants.get(value);
+    if (constant == null) {
+      constant = ast.addConstant(value);
+      constants.put(value, constant);
+    }
+    return constant;
+  }
+
+  // what the runtime sees of a function in place of its declaration: the
+  // layout of its frame, without the body and the tokens the FlatAst replaces
+  // (only the size of its params, the arity, is ever read)
+  private Expr.Function header(Expr.Function function) {
+    Expr.Function header = headers.get(function);
+    if (header == null) {
+      header = new Expr.Function(Collections.nCopies(function.params.size(), null),
+          Collections.emptyList());
+      header.frameSize = function.frameSize;
+      header.receiver = function.receiver;
+      header.parameters = function.parameters;
+      header.upvalues = function.upvalues;
+      headers.put(function, header);
+    }
+    return header;
+  }
+
+  private int variable(Token name, Local local, int upvalue, GlobalCell global) {
+    int node;
+    if (local != null) {
+      node = ast.node(local.captured ? CELL : LOCAL, name.line);
+      ast.write(local.slot);
+    } else if (upvalue != -1) {
+      node = ast.node(UPVALUE, name.line);
+      ast.write(upvalue);
+    } else {
+      node = ast.node(GLOBAL, name.line);
+      ast.write(constant(global));
+      ast.write(name.symbol);
+    }
+    return node;
+  }
+
+  // the variable a declaration defines: a local's slot or a global's cell
+  private void writeDeclared(Token name, Local local) {
+    if (local == null) {
+      ast.write(GLOBAL);
+      ast.write(constant(globals.cell(name.symbol)));
+    } else {
+      ast.write(local.captured ? CELL : LOCAL);
+      ast.write(local.slot);
+    }
+  }
+
+  @Override
+  public Integer visitAssignExpr(Expr.Assign expr) {
+    int value = flatten(expr.value);
+
+    int node;
+    if (expr.local != null) {
+      node = ast.node(expr.local.captured ? ASSIGN_CELL : ASSIGN_LOCAL, expr.name.line);
+      ast.write(expr.local.slot);
+    } else if (expr.upvalue != -1) {
+      node = ast.node(ASSIGN_UPVALUE, expr.name.line);
+      ast.write(expr.upvalue);
+    } else {
+      node = ast.node(ASSIGN_GLOBAL, expr.name.line);
+      ast.write(constant(expr.global));
+      ast.write(expr.name.symbol);
+    }
+    ast.write(value);
+    return node;
+  }
+
+  @Override
+  public Integer visitBinaryExpr(Expr.Binary expr) {
+    int left = flatten(expr.left);
+    int right = flatten(expr.right);
+
+    int node = ast.node(BINARY, expr.operator.line);
+    ast.write(expr.operator.type.ordinal());
+    ast.write(left);
+    ast.write(right);
+    return node;
+  }
+
+  @Override
+  public Integer visitCallExpr(Expr.Call expr) {
+    int callee = flatten(expr.callee);
+    int[] arguments = new int[expr.arguments.size()];
+    for (int i = 0; i < arguments.length; i++) {
+      arguments[i] = flatten(expr.arguments.get(i));
+    }
+
+    int node = ast.node(CALL, expr.paren.line);
+    ast.write(expr.tailCall ? 1 : 0);
+    ast.write(callee);
+    ast.write(arguments.length);
+    for (int argument : arguments) ast.write(argument);
+    return node;
+  }
+
+  @Override
+  public Integer visitFunctionExpr(Expr.Function expr) {
+    int body = block(expr.body);
+
+    int node = ast.node(FUNCTION);
+    ast.write(constant(header(expr)));
+    ast.write(body);
+    return node;
+  }
+
+  @Override
+  public Integer visitGetExpr(Expr.Get expr) {
+    int object = flatten(expr.object);
+
+    int node = ast.node(GET, expr.name.line);
+    ast.write(expr.name.symbol);
+    ast.write(ast.addCache());
+    ast.write(object);
+    return node;
+  }
+
+  @Override
+  public Integer visitGroupingExpr(Expr.Grouping expr) {
+    return flatten(expr.expression);
+  }
+
+  @Override
+  public Integer visitInlineExpr(Expr.Inline expr) {
+    // the arguments are the call's nodes, read from its record
+    int call = flatten(expr.call);
+    int body = flatten(expr.body);
+
+    int count = 0;
+    for (Local parameter : expr.parameters) {
+      if (parameter != null) count++;
+    }
+
+    int node = ast.node(INLINE);
+    ast.write(call);
+    ast.write(constant(expr.global));
+    ast.write(constant(header(expr.function)));
+    ast.write(body);
+    ast.write(count);
+    for (int i = 0; i < expr.parameters.length; i++) {
+      if (expr.parameters[i] == null) continue;
+      ast.write(expr.parameters[i].slot);
+      ast.write(ast.code[call + 4 + i]);
+    }
+    return node;
+  }
+
+  @Override
+  public Integer visitInvariantExpr(Expr.Invariant expr) {
+    int expression = flatten(expr.expression);
+
+    int node = ast.node(INVARIANT);
+    ast.write(expr.local.slot);
+    ast.write(expression);
+    return node;
+  }
+
+  @Override
+  public Integer visitLiteralExpr(Expr.Literal expr) {
+    int node = ast.node(LITERAL);
+    ast.write(constant(expr.value));
+    return node;
+  }
+
+  @Override
+  public Integer visitLogicalExpr(Expr.Logical expr) {
+    int left = flatten(expr.left);
+    int right = flatten(expr.right);
+
+    int node = ast.node(expr.operator.type == TokenType.OR ? OR : AND);
+    ast.write(left);
+    ast.write(right);
+    return node;
+  }
+
+  @Override
+  public Integer visitSetExpr(Expr.Set expr) {
+    int object = flatten(expr.object);
+    int value = flatten(expr.value);
+
+    int node = ast.node(SET, expr.name.line);
+    ast.write(expr.name.symbol);
+    ast.write(ast.addCache());
+    ast.write(object);
+    ast.write(value);
+    return node;
+  }
+
+  @Override
+  public Integer visitSuperExpr(Expr.Super expr) {
+    int superclass = variable(expr.keyword, expr.local, expr.upvalue, null);
+    int receiver = flatten(expr.receiver);
+
+    int node = ast.node(SUPER, expr.method.line);
+    ast.write(expr.method.symbol);
+    ast.write(superclass);
+    ast.write(receiver);
+    return node;
+  }
+
+  @Override
+  public Integer visitTernaryExpr(Expr.Ternary expr) {
+    int condition = flatten(expr.condition);
+    int thenBranch = flatten(expr.thenBranch);
+    int elseBranch = flatten(expr.elseBranch);
+
+    int node = ast.node(TERNARY);
+    ast.write(condition);
+    ast.write(thenBranch);
+    ast.write(elseBranch);
+    return node;
+  }
+
+  @Override
+  public Integer visitThisExpr(Expr.This expr) {
+    return variable(expr.keyword, expr.local, expr.upvalue, null);
+  }
+
+  @Override
+  public Integer visitUnaryExpr(Expr.Unary expr) {
+    int right = flatten(expr.right);
+
+    int node = expr.operator.type == TokenType.BANG ?
+        ast.node(NOT) : ast.node(NEGATE, expr.operator.line);
+    ast.write(right);
+    return node;
+  }
+
+  @Override
+  public Integer visitVariableExpr(Expr.Variable expr) {
+    return variable(expr.name, expr.local, expr.upvalue, expr.global);
+  }
+
+  @Override
+  public Integer visitBlockStmt(Stmt.Block stmt) {
+    return block(stmt.statements);
+  }
+
+  @Override
+  public Integer visitBreakStmt(Stmt.Break stmt) {
+    return ast.node(BREAK);
+  }
+
+  @Override
+  public Integer visitClassStmt(Stmt.Class stmt) {
+    int superclass = stmt.superclass == null ? -1 : flatten(stmt.superclass);
+    int[] bodies = new int[stmt.methods.size()];
+    for (int i = 0; i < bodies.length; i++) {
+      bodies[i] = block(stmt.methods.get(i).function.body);
+    }
+
+    int node = ast.node(CLASS);
+    writeDeclared(stmt.name, stmt.local);
+    ast.write(stmt.name.symbol);
+    ast.write(superclass);
+    if (superclass != -1) {
+      ast.write(stmt.superLocal.captured ? CELL : LOCAL);
+      ast.write(stmt.superLocal.slot);
+    }
+    ast.write(bodies.length);
+    for (int i = 0; i < bodies.length; i++) {
+      Stmt.Function method = stmt.methods.get(i);
+      ast.write(method.name.symbol);
+      ast.write(constant(header(method.function)));
+      ast.write(bodies[i]);
+    }
+    return node;
+  }
+
+  @Override
+  public Integer visitContinueStmt(Stmt.Continue stmt) {
+    return ast.node(CONTINUE);
+  }
+
+  @Override
+  public Integer visitExpressionStmt(Stmt.Expression stmt) {
+    int expression = flatten(stmt.expression);
+
+    int node = ast.node(EXPRESSION);
+    ast.write(expression);
+    return node;
+  }
+
+  @Override
+  public Integer visitFunctionStmt(Stmt.Function stmt) {
+    int body = block(stmt.function.body);
+
+    int node = ast.node(FUN);
+    writeDeclared(stmt.name, stmt.local);
+    ast.write(stmt.name.symbol);
+    ast.write(constant(header(stmt.function)));
+    ast.write(body);
+
+    // the global no longer keeps the declaration (and its tree) alive: the
+    // Optimizer won't inline calls to it from later input in the REPL
+    if (stmt.local == null) {
+      GlobalCell cell = globals.cell(stmt.name.symbol);
+      if (cell.function == stmt.function) cell.function = null;
+    }
+    return node;
+  }
+
+  @Override
+  public Integer visitIfStmt(Stmt.If stmt) {
+    int condition = flatten(stmt.condition);
+    int thenBranch = flatten(stmt.thenBranch);
+    int elseBranch = stmt.elseBranch == null ? -1 : flatten(stmt.elseBranch);
+
+    int node = ast.node(IF);
+    ast.write(condition);
+    ast.write(thenBranch);
+    ast.write(elseBranch);
+    return node;
+  }
+
+  @Override
+  public Integer visitPrintStmt(Stmt.Print stmt) {
+    int expression = flatten(stmt.expression);
+
+    int node = ast.node(PRINT);
+    ast.write(expression);
+    return node;
+  }
+
+  @Override
+  public Integer visitReturnStmt(Stmt.Return stmt) {
+    int value = stmt.value == null ? -1 : flatten(stmt.value);
+
+    int node = ast.node(RETURN);
+    ast.write(value);
+    return node;
+  }
+
+  @Override
+  public Integer visitVarStmt(Stmt.Var stmt) {
+    int initializer = stmt.initializer == null ? -1 : flatten(stmt.initializer);
+
+    int node = ast.node(VAR);
+    writeDeclared(stmt.name, stmt.local);
+    ast.write(initializer);
+    return node;
+  }
+
+  @Override
+  public Integer visitWhileStmt(Stmt.While stmt) {
+    int condition = flatten(stmt.condition);
+    int body = flatten(stmt.body);
+
+    int node = ast.node(WHILE);
+    ast.write(condition);
+    ast.write(body);
+    ast.write(stmt.invariants.length);
+    for (Local invariant : stmt.invariants) ast.write(invariant.slot);
+    return node;
+  }
+}
@@ -0,0 +1,45 @@
+package com.craftinginterpreters.lox;
+
+// A global variable. The Resolver binds every use of a global name to its
+// cell, so the runtime reads and writes the value without looking it up.
+class GlobalCell {
+  static final Object UNDEFINED = new Object(); // the value before the definition runs
+
+  final int symbol; // the name, by which a saved program refers to it (see AstCache)
+  Object value = UNDEFINED;
+  boolean declared = false;
+  // cleared by the Resolver when the program declares the variable again or
+  // assigns it: otherwise its value never changes once it is defined
+  boolean constant = true;
+  // the function the latest declaration of the variable defines, or null if
+  // it's declared some other way (the Optimizer inlines calls to it)
+  Expr.Function function = null;
+
+  GlobalCell(int symbol) {
+    this.symbol = symbol;
+  }
+
+  Object get(Token name) {
+    return get(name.symbol, name.line);
+  }
+
+  void assign(Token name, Object value) {
+    assign(name.symbol, name.line, value);
+  }
+
+  // the name is only needed for the error, by its symbol and line
+  Object get(int symbol, int line) {
+    Object value = this.value;
+    if (value == UNDEFINED) throw undefined(symbol, line);
+    return value;
+  }
+
+  void assign(int symbol, int line, Object value) {
+    if (this.value == UNDEFINED) throw undefined(symbol, line);
+    this.value = value;
+  }
+
+  private static RuntimeError undefined(int symbol, int line) {
+    return new RuntimeError(line, "Undefined variable '" + Symbols.name(symbol) + "'.");
+  }
+}
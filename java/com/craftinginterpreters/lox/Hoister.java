@@ -0,0 +1,575 @@
+package com.craftinginterpreters.lox;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Hoists the expressions whose value can't change while a loop runs out of
+// the loop. An expression is invariant if it only reads literals, constant
+// globals and locals the loop doesn't assign (or declare: those get a new
+// value each iteration), through operators that have no side effects (calls
+// and property accesses can do anything).
+// The Expr.Invariant replacing it evaluates it the first time the loop gets
+// there and keeps the value in a new slot of the frame, which the While
+// resets each time the loop is entered. So a loop that never gets there
+// doesn't evaluate it, and an error it raises (like adding nil to a number)
+// is still reported when and where the program reaches it.
+// Runs after the Optimizer, rebuilding the nodes whose children change in
+// the same way.
+class Hoister implements Expr.Visitor<Expr>, Stmt.Visitor<Stmt> {
+  private static class Loop {
+    // the writes of the outermost loop around it, and where its own are
+    // among them
+    final Writes writes;
+    final int start;
+    final int end;
+    final List<Local> invariants = new ArrayList<>(); // the slots it resets
+
+    Loop(Writes writes, Stmt.While stmt) {
+      this.writes = writes;
+      int[] range = writes.loops.get(stmt);
+      start = range[0];
+      end = range[1];
+    }
+
+    // whether the loop declares or assigns the local
+    boolean writes(Local local) {
+      return writes.within(local, start, end);
+    }
+  }
+
+  // the loops of the current function around the expression being rewritten,
+  // innermost last
+  private List<Loop> loops = new ArrayList<>();
+  private Expr.Function function = null; // the one being rewritten, null at the top level
+  private int frameSize; // of the top level
+
+  Hoister(int frameSize) {
+    this.frameSize = frameSize;
+  }
+
+  // the size of the top level's frame, with the slots of the hoisted
+  // expressions added to it
+  int frameSize() {
+    return frameSize;
+  }
+
+  void hoist(List<Stmt> statements) {
+    for (int i = 0; i < statements.size(); i++) {
+      statements.set(i, hoist(statements.get(i)));
+    }
+  }
+
+  private Stmt hoist(Stmt stmt) {
+    return stmt.accept(this);
+  }
+
+  private Expr hoist(Expr expr) {
+    // hoisted as far out as it can go: an expression invariant in a loop is
+    // also invariant in the loops inside it, so the outermost loop it's
+    // invariant in is found by bisection
+    int inner = loops.size() - 1;
+    if (inner >= 0 && hasOperator(expr) && isInvariant(expr, loops.get(inner))) {
+      int outer = 0;
+      while (outer < inner) {
+        int middle = (outer + inner) >>> 1;
+        if (isInvariant(expr, loops.get(middle))) {
+          inner = middle;
+        } else {
+          outer = middle + 1;
+        }
+      }
+      Local local = new Local(function == null ? frameSize++ : function.frameSize++);
+      loops.get(inner).invariants.add(local);
+      return new Expr.Invariant(expr, local);
+    }
+    return expr.accept(this);
+  }
+
+  void hoist(Expr.Function function) {
+    List<Loop> enclosingLoops = loops;
+    Expr.Function enclosingFunction = this.function;
+    loops = new ArrayList<>(); // it runs in its own frame
+    this.function = function;
+
+    hoist(function.body);
+
+    loops = enclosingLoops;
+    this.function = enclosingFunction;
+  }
+
+  // whether evaluating it once is worth a slot (a variable or a literal isn't,
+  // and neither is a grouping: what's in it is hoisted instead)
+  private static boolean hasOperator(Expr expr) {
+    return expr instanceof Expr.Binary || expr instanceof Expr.Unary ||
+        expr instanceof Expr.Logical || expr instanceof Expr.Ternary;
+  }
+
+  private static boolean isInvariant(Expr expr, Loop loop) {
+    if (expr instanceof Expr.Literal || expr instanceof Expr.Invariant) return true;
+    if (expr instanceof Expr.Variable) {
+      Expr.Variable variable = (Expr.Variable)expr;
+      if (variable.local != null) {
+        // a closure the loop calls can assign a captured local
+        return !loop.writes(variable.local) &&
+            !(variable.local.captured && variable.local.assigned);
+      }
+      return variable.upvalue == -1 && variable.global.constant;
+    }
+    if (expr instanceof Expr.Grouping) {
+      return isInvariant(((Expr.Grouping)expr).expression, loop);
+    }
+    if (expr instanceof Expr.Unary) return isInvariant(((Expr.Unary)expr).right, loop);
+    if (expr instanceof Expr.Binary) {
+      Expr.Binary binary = (Expr.Binary)expr;
+      return isInvariant(binary.left, loop) && isInvariant(binary.right, loop);
+    }
+    if (expr instanceof Expr.Logical) {
+      Expr.Logical logical = (Expr.Logical)expr;
+      return isInvariant(logical.left, loop) && isInvariant(logical.right, loop);
+    }
+    if (expr instanceof Expr.Ternary) {
+      Expr.Ternary ternary = (Expr.Ternary)expr;
+      return isInvariant(ternary.condition, loop) &&
+          isInvariant(ternary.thenBranch, loop) && isInvariant(ternary.elseBranch, loop);
+    }
+    return false;
+  }
+
+  @Override
+  public Expr visitAssignExpr(Expr.Assign expr) {
+    Expr value = hoist(expr.value);
+    if (value == expr.value) return expr;
+
+    Expr.Assign assign = new Expr.Assign(expr.name, value);
+    assign.local = expr.local;
+    assign.upvalue = expr.upvalue;
+    assign.global = expr.global;
+    return assign;
+  }
+
+  @Override
+  public Expr visitBinaryExpr(Expr.Binary expr) {
+    Expr left = hoist(expr.left);
+    Expr right = hoist(expr.right);
+    if (left == expr.left && right == expr.right) return expr;
+    return new Expr.Binary(left, expr.operator, right);
+  }
+
+  @Override
+  public Expr visitCallExpr(Expr.Call expr) {
+    Expr callee = hoist(expr.callee);
+    for (int i = 0; i < expr.arguments.size(); i++) {
+      expr.arguments.set(i, hoist(expr.arguments.get(i)));
+    }
+
+    if (callee == expr.callee) return expr;
+    Expr.Call call = new Expr.Call(callee, expr.paren, expr.arguments);
+    call.tailCall = expr.tailCall;
+    return call;
+  }
+
+  @Override
+  public Expr visitFunctionExpr(Expr.Function expr) {
+    hoist(expr);
+    return expr;
+  }
+
+  @Override
+  public Expr visitGetExpr(Expr.Get expr) {
+    Expr object = hoist(expr.object);
+    if (object == expr.object) return expr;
+    return new Expr.Get(object, expr.name);
+  }
+
+  @Override
+  public Expr visitGroupingExpr(Expr.Grouping expr) {
+    Expr expression = hoist(expr.expression);
+    if (expression == expr.expression) return expr;
+    return new Expr.Grouping(expression);
+  }
+
+  @Override
+  public Expr visitInlineExpr(Expr.Inline expr) {
+    // the arguments are shared with the call, which runs if the guard fails
+    for (int i = 0; i < expr.call.arguments.size(); i++) {
+      expr.call.arguments.set(i, hoist(expr.call.arguments.get(i)));
+    }
+
+    Expr body = hoist(expr.body);
+    if (body == expr.body) return expr;
+    return new Expr.Inline(expr.call, expr.global, expr.function, expr.parameters, body);
+  }
+
+  @Override
+  public Expr visitInvariantExpr(Expr.Invariant expr) {
+    return expr;
+  }
+
+  @Override
+  public Expr visitLiteralExpr(Expr.Literal expr) {
+    return expr;
+  }
+
+  @Override
+  public Expr visitLogicalExpr(Expr.Logical expr) {
+    Expr left = hoist(expr.left);
+    Expr right = hoist(expr.right);
+    if (left == expr.left && right == expr.right) return expr;
+    return new Expr.Logical(left, expr.operator, right);
+  }
+
+  @Override
+  public Expr visitSetExpr(Expr.Set expr) {
+    Expr object = hoist(expr.object);
+    Expr value = hoist(expr.value);
+    if (object == expr.object && value == expr.value) return expr;
+    return new Expr.Set(object, expr.name, value);
+  }
+
+  @Override
+  public Expr visitSuperExpr(Expr.Super expr) {
+    return expr;
+  }
+
+  @Override
+  public Expr visitTernaryExpr(Expr.Ternary expr) {
+    Expr condition = hoist(expr.condition);
+    Expr thenBranch = hoist(expr.thenBranch);
+    Expr elseBranch = hoist(expr.elseBranch);
+    if (condition == expr.condition && thenBranch == expr.thenBranch &&
+        elseBranch == expr.elseBranch) {
+      return expr;
+    }
+    return new Expr.Ternary(condition, thenBranch, elseBranch);
+  }
+
+  @Override
+  public Expr visitThisExpr(Expr.This expr) {
+    return expr;
+  }
+
+  @Override
+  public Expr visitUnaryExpr(Expr.Unary expr) {
+    Expr right = hoist(expr.right);
+    if (right == expr.right) return expr;
+    return new Expr.Unary(expr.operator, right);
+  }
+
+  @Override
+  public Expr visitVariableExpr(Expr.Variable expr) {
+    return expr;
+  }
+
+  @Override
+  public Stmt visitBlockStmt(Stmt.Block stmt) {
+    hoist(stmt.statements);
+    return stmt;
+  }
+
+  @Override
+  public Stmt visitBreakStmt(Stmt.Break stmt) {
+    return stmt;
+  }
+
+  @Override
+  public Stmt visitClassStmt(Stmt.Class stmt) {
+    for (Stmt.Function method : stmt.methods) {
+      hoist(method.function);
+    }
+    return stmt;
+  }
+
+  @Override
+  public Stmt visitContinueStmt(Stmt.Continue stmt) {
+    return stmt;
+  }
+
+  @Override
+  public Stmt visitExpressionStmt(Stmt.Expression stmt) {
+    Expr expression = hoist(stmt.expression);
+    if (expression == stmt.expression) return stmt;
+    return new Stmt.Expression(expression);
+  }
+
+  @Override
+  public Stmt visitFunctionStmt(Stmt.Function stmt) {
+    hoist(stmt.function);
+    return stmt;
+  }
+
+  @Override
+  public Stmt visitIfStmt(Stmt.If stmt) {
+    Expr condition = hoist(stmt.condition);
+    Stmt thenBranch = hoist(stmt.thenBranch);
+    Stmt elseBranch = stmt.elseBranch == null ? null : hoist(stmt.elseBranch);
+    if (condition == stmt.condition && thenBranch == stmt.thenBranch &&
+        elseBranch == stmt.elseBranch) {
+      return stmt;
+    }
+    return new Stmt.If(condition, thenBranch, elseBranch);
+  }
+
+  @Override
+  public Stmt visitPrintStmt(Stmt.Print stmt) {
+    Expr expression = hoist(stmt.expression);
+    if (expression == stmt.expression) return stmt;
+    return new Stmt.Print(expression);
+  }
+
+  @Override
+  public Stmt visitReturnStmt(Stmt.Return stmt) {
+    if (stmt.value == null) return stmt;
+    Expr value = hoist(stmt.value);
+    if (value == stmt.value) return stmt;
+    return new Stmt.Return(stmt.keyword, value);
+  }
+
+  @Override
+  public Stmt visitVarStmt(Stmt.Var stmt) {
+    if (stmt.initializer == null) return stmt;
+    Expr initializer = hoist(stmt.initializer);
+    if (initializer == stmt.initializer) return stmt;
+
+    Stmt.Var var = new Stmt.Var(stmt.name, initializer);
+    var.local = stmt.local;
+    return var;
+  }
+
+  @Override
+  public Stmt visitWhileStmt(Stmt.While stmt) {
+    // the outermost loop numbers the writes of the loops in it too
+    Writes writes;
+    if (loops.isEmpty()) {
+      writes = new Writes();
+      writes.write(stmt);
+    } else {
+      writes = loops.get(loops.size() - 1).writes;
+    }
+    Loop loop = new Loop(writes, stmt);
+    loops.add(loop);
+
+    Expr condition = hoist(stmt.condition);
+    Stmt body = hoist(stmt.body);
+
+    loops.remove(loops.size() - 1);
+    Stmt.While result = stmt;
+    if (condition != stmt.condition || body != stmt.body) {
+      result = new Stmt.While(condition, body);
+    }
+    result.invariants = loop.invariants.toArray(new Local[0]);
+    return result;
+  }
+
+  // numbers the declarations and assignments of locals in a loop in the order
+  // they come, not counting what the functions declared in it do (those can
+  // only assign captured locals), and keeps the range of the numbers of those
+  // of each loop in it: so the loops nested in it don't each walk their
+  // bodies again, which would take time and space growing with the square of
+  // how deep they nest
+  private static class Writes implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+    private final Map<Local, List<Integer>> locals = new HashMap<>(); // the numbers of each local's
+    final Map<Stmt.While, int[]> loops = new HashMap<>(); // from the first to past the last
+    private int count = 0;
+
+    // whether the local is written from the first number to before the last
+    boolean within(Local local, int start, int end) {
+      List<Integer> numbers = locals.get(local);
+      if (numbers == null) return false;
+      int index = Collections.binarySearch(numbers, start);
+      if (index < 0) index = -index - 1;
+      return index < numbers.size() && numbers.get(index) < end;
+    }
+
+    void write(Stmt stmt) {
+      stmt.accept(this);
+    }
+
+    private void write(Expr expr) {
+      expr.accept(this);
+    }
+
+    private void write(Local local) {
+      if (local != null) locals.computeIfAbsent(local, key -> new ArrayList<>()).add(count++);
+    }
+
+    @Override
+    public Void visitAssignExpr(Expr.Assign expr) {
+      write(expr.value);
+      write(expr.local);
+      return null;
+    }
+
+    @Override
+    public Void visitBinaryExpr(Expr.Binary expr) {
+      write(expr.left);
+      write(expr.right);
+      return null;
+    }
+
+    @Override
+    public Void visitCallExpr(Expr.Call expr) {
+      write(expr.callee);
+      for (Expr argument : expr.arguments) {
+        write(argument);
+      }
+      return null;
+    }
+
+    @Override
+    public Void visitFunctionExpr(Expr.Function expr) {
+      return null;
+    }
+
+    @Override
+    public Void visitGetExpr(Expr.Get expr) {
+      write(expr.object);
+      return null;
+    }
+
+    @Override
+    public Void visitGroupingExpr(Expr.Grouping expr) {
+      write(expr.expression);
+      return null;
+    }
+
+    @Override
+    public Void visitInlineExpr(Expr.Inline expr) {
+      write(expr.call);
+      write(expr.body);
+      for (Local parameter : expr.parameters) {
+        write(parameter);
+      }
+      return null;
+    }
+
+    @Override
+    public Void visitInvariantExpr(Expr.Invariant expr) {
+      write(expr.expression);
+      return null;
+    }
+
+    @Override
+    public Void visitLiteralExpr(Expr.Literal expr) {
+      return null;
+    }
+
+    @Override
+    public Void visitLogicalExpr(Expr.Logical expr) {
+      write(expr.left);
+      write(expr.right);
+      return null;
+    }
+
+    @Override
+    public Void visitSetExpr(Expr.Set expr) {
+      write(expr.object);
+      write(expr.value);
+      return null;
+    }
+
+    @Override
+    public Void visitSuperExpr(Expr.Super expr) {
+      return null;
+    }
+
+    @Override
+    public Void visitTernaryExpr(Expr.Ternary expr) {
+      write(expr.condition);
+      write(expr.thenBranch);
+      write(expr.elseBranch);
+      return null;
+    }
+
+    @Override
+    public Void visitThisExpr(Expr.This expr) {
+      return null;
+    }
+
+    @Override
+    public Void visitUnaryExpr(Expr.Unary expr) {
+      write(expr.right);
+      return null;
+    }
+
+    @Override
+    public Void visitVariableExpr(Expr.Variable expr) {
+      return null;
+    }
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+      for (Stmt statement : stmt.statements) {
+        write(statement);
+      }
+      return null;
+    }
+
+    @Override
+    public Void visitBreakStmt(Stmt.Break stmt) {
+      return null;
+    }
+
+    @Override
+    public Void visitClassStmt(Stmt.Class stmt) {
+      write(stmt.local);
+      write(stmt.superLocal);
+      return null;
+    }
+
+    @Override
+    public Void visitContinueStmt(Stmt.Continue stmt) {
+      return null;
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+      write(stmt.expression);
+      return null;
+    }
+
+    @Override
+    public Void visitFunctionStmt(Stmt.Function stmt) {
+      write(stmt.local);
+      return null;
+    }
+
+    @Override
+    public Void visitIfStmt(Stmt.If stmt) {
+      write(stmt.condition);
+      write(stmt.thenBranch);
+      if (stmt.elseBranch != null) write(stmt.elseBranch);
+      return null;
+    }
+
+    @Override
+    public Void visitPrintStmt(Stmt.Print stmt) {
+      write(stmt.expression);
+      return null;
+    }
+
+    @Override
+    public Void visitReturnStmt(Stmt.Return stmt) {
+      if (stmt.value != null) write(stmt.value);
+      return null;
+    }
+
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt) {
+      if (stmt.initializer != null) write(stmt.initializer);
+      write(stmt.local);
+      return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt) {
+      int start = count;
+      write(stmt.condition);
+      write(stmt.body);
+      loops.put(stmt, new int[] {start, count});
+      return null;
+    }
+  }
+}
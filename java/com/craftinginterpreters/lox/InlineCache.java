@@ -0,0 +1,56 @@
+package com.craftinginterpreters.lox;
+
+// The shapes a Get or Set node has seen, each with the index of the property
+// in instances of that shape (or, for a Get, the class's method if the shape
+// has no such field), so the next access to an instance of a known shape
+// skips the lookup. A node that has seen one shape is monomorphic, up
+// to POLYMORPHIC_LIMIT it is polymorphic, and past that (megamorphic) the new
+// shapes aren't cached and their properties are looked up on every access.
+class InlineCache {
+  static final int POLYMORPHIC_LIMIT = 4;
+
+  private final Shape[] shapes = new Shape[POLYMORPHIC_LIMIT];
+  private final int[] indexes = new int[POLYMORPHIC_LIMIT];
+  // the shape of the instance after a Set, which differs if it added the field
+  private final Shape[] transitions = new Shape[POLYMORPHIC_LIMIT];
+  // the method found in the class when the index is -1 (shapes belong to one class)
+  private final LoxFunction[] methods = new LoxFunction[POLYMORPHIC_LIMIT];
+  private int size = 0;
+
+  // returns the entry for the shape, or -1 if it isn't cached
+  int find(Shape shape) {
+    for (int i = 0; i < size; i++) {
+      if (shapes[i] == shape) return i;
+    }
+    return -1;
+  }
+
+  int index(int entry) {
+    return indexes[entry];
+  }
+
+  Shape transition(int entry) {
+    return transitions[entry];
+  }
+
+  LoxFunction method(int entry) {
+    return methods[entry];
+  }
+
+  void add(Shape shape, int index, Shape transition) {
+    add(shape, index, transition, null);
+  }
+
+  void add(Shape shape, LoxFunction method) {
+    add(shape, -1, shape, method);
+  }
+
+  private void add(Shape shape, int index, Shape transition, LoxFunction method) {
+    if (size == POLYMORPHIC_LIMIT) return; // megamorphic
+    shapes[size] = shape;
+    indexes[size] = index;
+    transitions[size] = transition;
+    methods[size] = method;
+    size++;
+  }
+}
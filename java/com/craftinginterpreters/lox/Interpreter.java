@@ -1,14 +1,34 @@
 package com.craftinginterpreters.lox;
 
-import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Map;
 
-class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
+class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Completion> {
+  // calls and loop iterations after which the ClosureCompiler takes over
+  static final int CALL_THRESHOLD = 100;
+  static final int LOOP_THRESHOLD = 1000;
+
   final Environment globals = new Environment();
-  private Environment environment = globals;
-  private final Map<Expr, Integer> locals = new HashMap<>();
+  // the locals of every active call live in one stack of frames, laid out by
+  // the Resolver: the current frame starts at fp, and the next call's at top
+  Object[] stack = new Object[256];
+  int fp = 0;
+  private int top = 0;
+  Cell[] upvalues = new Cell[0]; // the variables the running closure captured
+  Object returnValue = null; // set by a statement that completes with RETURN
+  // a call in tail position to make in place of the running function (see
+  // tailCall), with the receiver if it's a method called on an instance
+  LoxFunction tailCallee = null;
+  LoxInstance tailReceiver = null;
+  Object[] tailArguments = null;
+  // numeric nodes evaluated as unboxed doubles report a value that isn't a
+  // number as NaN, with the value itself left here for the caller to box
+  // (NONE when there's none: the value can be nil)
+  private static final Object NONE = new Object();
+  private Object unexpected = NONE;
+  // the value of a hoisted expression before the loop evaluates it
+  static final Object UNEVALUATED = new Object();
+  static final Object[] NO_ARGUMENTS = new Object[0];
 
   Interpreter() {
     // native function clock() to tell the time
@@ -17,8 +37,12 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
       public int arity() { return 0; }
 
       @Override
-      public Object call(Interpreter interpreter,
-        List<Object> arguments) {
+      public Object call(Interpreter interpreter, Object[] arguments) {
+        return call0(interpreter);
+      }
+
+      @Override
+      public Object call0(Interpreter interpreter) {
         return (double)System.currentTimeMillis() / 1000.0;
       }
 
@@ -29,7 +53,8 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
   @Override
   public Object visitFunctionExpr(Expr.Function expr) {
-    return new LoxFunction("", expr.params, expr.body, environment, false);
+    if (expr.lazy != null) Lox.parseBody(expr); // evaluated for the first time
+    return new LoxFunction("", expr, capture(expr), false);
   }
 
   @Override
@@ -42,6 +67,26 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
     Object left = evaluate(expr.left);
 
     // evaluate the right operand only if needed
+    switch (expr.specialization) {
+      case BOOLEAN_OR:
+        if (left instanceof Boolean) return (boolean)left ? left : evaluate(expr.right);
+        expr.specialization = Specialization.GENERIC; // deoptimize
+        break;
+      case BOOLEAN_AND:
+        if (left instanceof Boolean) return (boolean)left ? evaluate(expr.right) : left;
+        expr.specialization = Specialization.GENERIC; // deoptimize
+        break;
+      case UNINITIALIZED:
+        if (!(left instanceof Boolean)) {
+          expr.specialization = Specialization.GENERIC;
+        } else if (expr.operator.type == TokenType.OR) {
+          expr.specialization = Specialization.BOOLEAN_OR;
+        } else {
+          expr.specialization = Specialization.BOOLEAN_AND;
+        }
+        break;
+    }
+
     if (expr.operator.type == TokenType.OR) {
       if (isTruthy(left)) return left;
     } else {
@@ -60,18 +105,16 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
     }
 
     Object value = evaluate(expr.value);
-  ((LoxInstance)object).set(expr.name, value);
+    ((LoxInstance)object).set(expr.name, value, expr.cache);
     return value;
   }
 
   @Override
   public Object visitSuperExpr(Expr.Super expr) {
-    int distance = locals.get(expr);
-    LoxClass superclass = (LoxClass)environment.getAt(distance, "super");
-    // get the instance from "this" environment (inside "super" env)
-    LoxInstance object = (LoxInstance)environment.getAt(distance - 1, "this");
+    LoxClass superclass = (LoxClass)lookUpVariable(expr.keyword, expr.local, expr.upvalue, null);
+    LoxInstance object = (LoxInstance)visitThisExpr(expr.receiver);
 
-    LoxFunction method = superclass.findMethod(expr.method.lexeme);
+    LoxFunction method = superclass.findMethod(expr.method.symbol);
     if (method == null) {
       throw new RuntimeError(expr.method, "Undefined property '" + expr.method.lexeme + "'.");
     }
@@ -81,7 +124,7 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
   @Override
   public Object visitThisExpr(Expr.This expr) {
-    return lookUpVariable(expr.keyword, expr);
+    return lookUpVariable(expr.keyword, expr.local, expr.upvalue, null);
   }
 
   @Override
@@ -95,8 +138,23 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
   @Override
   public Object visitUnaryExpr(Expr.Unary expr) {
+    if (expr.specialization == Specialization.NUMBER_NEGATE) return evaluateNegation(expr);
     Object right = evaluate(expr.right);
 
+    switch (expr.specialization) {
+      case NOT:
+        return !isTruthy(right);
+      case UNINITIALIZED:
+        if (expr.operator.type == TokenType.BANG) {
+          expr.specialization = Specialization.NOT;
+        } else if (right instanceof Double) {
+          expr.specialization = Specialization.NUMBER_NEGATE;
+        } else {
+          expr.specialization = Specialization.GENERIC;
+        }
+        break;
+    }
+
     switch (expr.operator.type) {
       case BANG:
 	return !isTruthy(right);
@@ -108,7 +166,7 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
     return null; // unreachable.
   }
   
-  private boolean isTruthy(Object object) {
+  static boolean isTruthy(Object object) {
     if (object == null) return false;
     if (object instanceof Boolean) return (boolean)object;
     return true; // everything is true except nil and false
@@ -116,24 +174,198 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
   @Override
   public Object visitBinaryExpr(Expr.Binary expr) {
+    // numeric nodes pass unboxed doubles to each other: only the value of the
+    // outermost one is boxed
+    switch (expr.specialization) {
+      case NUMBER_ADD:
+      case NUMBER_SUBTRACT:
+      case NUMBER_MULTIPLY:
+      case NUMBER_DIVIDE:
+        // with no numeric node among the operands there's nothing to leave
+        // unboxed, and unboxing a call would put two more Java frames under it
+        if (isUnboxed(expr.left) || isUnboxed(expr.right)) return box(evaluateArithmetic(expr));
+        break;
+      case NUMBER_GREATER:
+      case NUMBER_GREATER_EQUAL:
+      case NUMBER_LESS:
+      case NUMBER_LESS_EQUAL:
+        return evaluateComparison(expr);
+    }
+
     Object left = evaluate(expr.left);
     Object right = evaluate(expr.right);
 
-    switch (expr.operator.type) {
+    // fast paths for the specialized variants, guarded by the operand types
+    switch (expr.specialization) {
+      case NUMBER_ADD:
+        if (left instanceof Double && right instanceof Double) return (double)left + (double)right;
+        break;
+      case NUMBER_SUBTRACT:
+        if (left instanceof Double && right instanceof Double) return (double)left - (double)right;
+        break;
+      case NUMBER_MULTIPLY:
+        if (left instanceof Double && right instanceof Double) return (double)left * (double)right;
+        break;
+      case NUMBER_DIVIDE:
+        if (left instanceof Double && right instanceof Double) {
+          if ((double)right == 0) throw new RuntimeError(expr.operator, "Division by zero.");
+          return (double)left / (double)right;
+        }
+        break;
+      case STRING_CONCAT:
+        if (left instanceof String && right instanceof String) return (String)left + (String)right;
+        break;
+      case EQUAL: return isEqual(left, right);
+      case NOT_EQUAL: return !isEqual(left, right);
+      case COMMA: return right;
+      case UNINITIALIZED:
+        expr.specialization = specialize(expr.operator.type, left, right);
+        return binaryOperation(expr.operator, left, right);
+      case GENERIC:
+        return binaryOperation(expr.operator, left, right);
+    }
+
+    // a type guard failed, the node won't be specialized again
+    expr.specialization = Specialization.GENERIC; // deoptimize
+    return binaryOperation(expr.operator, left, right);
+  }
+
+  // evaluate an operand of a numeric node without boxing it if it's a number
+  // literal, an arithmetic node specialized for numbers or a negation
+  private double evaluateDouble(Expr expr) {
+    Object value;
+    if (expr instanceof Expr.Variable) { // the most common operands skip the visitor
+      Expr.Variable variable = (Expr.Variable)expr;
+      value = lookUpVariable(variable.name, variable.local, variable.upvalue, variable.global);
+    } else if (expr instanceof Expr.Literal) {
+      value = ((Expr.Literal)expr).value;
+    } else if (expr instanceof Expr.Binary && isArithmetic(((Expr.Binary)expr).specialization)) {
+      return evaluateArithmetic((Expr.Binary)expr);
+    } else if (expr instanceof Expr.Unary &&
+        ((Expr.Unary)expr).specialization == Specialization.NUMBER_NEGATE) {
+      return evaluateNegation((Expr.Unary)expr);
+    } else if (expr instanceof Expr.Grouping) {
+      return evaluateDouble(((Expr.Grouping)expr).expression);
+    } else {
+      value = evaluate(expr);
+    }
+
+    if (value instanceof Double) return (double)value;
+    return unexpected(value);
+  }
+
+  // whether evaluateDouble computes the expression without boxing its value
+  private static boolean isUnboxed(Expr expr) {
+    if (expr instanceof Expr.Binary) return isArithmetic(((Expr.Binary)expr).specialization);
+    if (expr instanceof Expr.Unary) {
+      return ((Expr.Unary)expr).specialization == Specialization.NUMBER_NEGATE;
+    }
+    if (expr instanceof Expr.Grouping) return isUnboxed(((Expr.Grouping)expr).expression);
+    return false;
+  }
+
+  double unexpected(Object value) {
+    unexpected = value;
+    return Double.NaN;
+  }
+
+  // NaN is also a valid result of arithmetic, which leaves nothing behind
+  private boolean isUnexpected(double value) {
+    return value != value && unexpected != NONE;
+  }
+
+  Object box(double value) {
+    if (!isUnexpected(value)) return value;
+    Object result = unexpected;
+    unexpected = NONE;
+    return result;
+  }
+
+  private static boolean isArithmetic(Specialization specialization) {
+    return specialization == Specialization.NUMBER_ADD ||
+        specialization == Specialization.NUMBER_SUBTRACT ||
+        specialization == Specialization.NUMBER_MULTIPLY ||
+        specialization == Specialization.NUMBER_DIVIDE;
+  }
+
+  private double evaluateArithmetic(Expr.Binary expr) {
+    double left = evaluateDouble(expr.left);
+    if (isUnexpected(left)) return deoptimize(expr, box(left), evaluate(expr.right));
+    double right = evaluateDouble(expr.right);
+    if (isUnexpected(right)) return deoptimize(expr, left, box(right));
+
+    switch (expr.specialization) {
+      case NUMBER_ADD: return left + right;
+      case NUMBER_SUBTRACT: return left - right;
+      case NUMBER_MULTIPLY: return left * right;
+      case NUMBER_DIVIDE:
+        if (right == 0) throw new RuntimeError(expr.operator, "Division by zero.");
+        return left / right;
+    }
+    // deoptimized while evaluating the operands (e.g. by a recursive call)
+    return deoptimize(expr, left, right);
+  }
+
+  // an operand of an arithmetic node wasn't a number: finish the operation on
+  // boxed values, which fails unless it was a + between strings
+  private double deoptimize(Expr.Binary expr, Object left, Object right) {
+    expr.specialization = Specialization.GENERIC;
+    Object result = binaryOperation(expr.operator, left, right);
+    if (result instanceof Double) return (double)result;
+    return unexpected(result);
+  }
+
+  private Object evaluateComparison(Expr.Binary expr) {
+    double left = evaluateDouble(expr.left);
+    if (isUnexpected(left)) {
+      expr.specialization = Specialization.GENERIC; // deoptimize
+      return binaryOperation(expr.operator, box(left), evaluate(expr.right));
+    }
+    double right = evaluateDouble(expr.right);
+    if (isUnexpected(right)) {
+      expr.specialization = Specialization.GENERIC; // deoptimize
+      return binaryOperation(expr.operator, left, box(right));
+    }
+
+    switch (expr.specialization) {
+      case NUMBER_GREATER: return left > right;
+      case NUMBER_GREATER_EQUAL: return left >= right;
+      case NUMBER_LESS: return left < right;
+      case NUMBER_LESS_EQUAL: return left <= right;
+    }
+    return binaryOperation(expr.operator, left, right);
+  }
+
+  private double evaluateNegation(Expr.Unary expr) {
+    double value = evaluateDouble(expr.right);
+    if (isUnexpected(value)) {
+      expr.specialization = Specialization.GENERIC; // deoptimize
+      checkNumberOperand(expr.operator, box(value));
+    }
+    return -value;
+  }
+
+  static Object binaryOperation(Token operator, Object left, Object right) {
+    return binaryOperation(operator.type, operator.line, left, right);
+  }
+
+  // the same for the FlatInterpreter, which keeps the operator's type and line
+  static Object binaryOperation(TokenType operator, int line, Object left, Object right) {
+    switch (operator) {
       case GREATER:
-	checkNumberOperands(expr.operator, left, right);
+	checkNumberOperands(line, left, right);
         return (double)left > (double)right;
       case GREATER_EQUAL:
-	checkNumberOperands(expr.operator, left, right);
+	checkNumberOperands(line, left, right);
         return (double)left >= (double)right;
       case LESS:
-	checkNumberOperands(expr.operator, left, right);
+	checkNumberOperands(line, left, right);
         return (double)left < (double)right;
       case LESS_EQUAL:
-	checkNumberOperands(expr.operator, left, right);
+	checkNumberOperands(line, left, right);
         return (double)left <= (double)right;
       case MINUS:
-	checkNumberOperands(expr.operator, left, right);
+	checkNumberOperands(line, left, right);
         return (double)left - (double)right; 
       case PLUS:
         if (left instanceof Double && right instanceof Double) {
@@ -142,15 +374,15 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 	if (left instanceof String && right instanceof String) { // overloaded for strings
           return (String)left + (String)right;
         }
-	throw new RuntimeError(expr.operator, "Operands must be two numbers or two strings.");
+	throw new RuntimeError(line, "Operands must be two numbers or two strings.");
       case SLASH:
-	checkNumberOperands(expr.operator, left, right);
+	checkNumberOperands(line, left, right);
         if ((double)right == 0) {
-          throw new RuntimeError(expr.operator, "Division by zero.");
+          throw new RuntimeError(line, "Division by zero.");
         }
         return (double)left / (double)right;
       case STAR:
-	checkNumberOperands(expr.operator, left, right);
+	checkNumberOperands(line, left, right);
         return (double)left * (double)right;
       case BANG_EQUAL: return !isEqual(left, right);
       case EQUAL_EQUAL: return isEqual(left, right);
@@ -160,35 +392,183 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
     return null; // unreachable.
   }
 
+  // pick the variant of a binary operator for the operand types seen
+  private Specialization specialize(TokenType operator, Object left, Object right) {
+    switch (operator) {
+      case BANG_EQUAL: return Specialization.NOT_EQUAL;
+      case EQUAL_EQUAL: return Specialization.EQUAL;
+      case COMMA: return Specialization.COMMA;
+    }
+
+    if (left instanceof String && right instanceof String && operator == TokenType.PLUS) {
+      return Specialization.STRING_CONCAT;
+    }
+    if (!(left instanceof Double && right instanceof Double)) return Specialization.GENERIC;
+
+    switch (operator) {
+      case PLUS: return Specialization.NUMBER_ADD;
+      case MINUS: return Specialization.NUMBER_SUBTRACT;
+      case STAR: return Specialization.NUMBER_MULTIPLY;
+      case SLASH: return Specialization.NUMBER_DIVIDE;
+      case GREATER: return Specialization.NUMBER_GREATER;
+      case GREATER_EQUAL: return Specialization.NUMBER_GREATER_EQUAL;
+      case LESS: return Specialization.NUMBER_LESS;
+      case LESS_EQUAL: return Specialization.NUMBER_LESS_EQUAL;
+    }
+    return Specialization.GENERIC;
+  }
+
   @Override
   public Object visitCallExpr(Expr.Call expr) {
-    Object callee = evaluate(expr.callee);
-    List<Object> arguments = new ArrayList<>();
+    Object callee;
+    if (expr.callee instanceof Expr.Get) { // obj.method(...) doesn't bind the method
+      Expr.Get get = (Expr.Get)expr.callee;
+      LoxInstance instance = instance(get);
+      LoxFunction method = instance.method(get.name, get.cache);
+      if (method != null) {
+        int count = expr.arguments.size();
+        Object[] arguments = count == 0 ? NO_ARGUMENTS : new Object[count];
+        for (int i = 0; i < count; i++) {
+          arguments[i] = evaluate(expr.arguments.get(i));
+        }
 
-    for (Expr argument : expr.arguments) { // evaluate each argument
-      arguments.add(evaluate(argument));
+        checkArity(expr.paren, method, count);
+        if (expr.tailCall) return tailCall(method, instance, arguments);
+        return method.callMethod(this, instance, arguments);
+      }
+      callee = instance.get(get.name, get.cache); // a field
+    } else {
+      callee = evaluate(expr.callee);
     }
 
-    if (!(callee instanceof LoxCallable)) { // not callable
-      throw new RuntimeError(expr.paren, "Can only call functions and classes.");
+    // evaluate each argument: the first three are passed on as they are (see
+    // LoxCallable.call0...call3), only longer calls need an array
+    int count = expr.arguments.size();
+    Object a = null, b = null, c = null;
+    Object[] arguments = null;
+    if (count > 3) {
+      arguments = new Object[count];
+      for (int i = 0; i < count; i++) {
+        arguments[i] = evaluate(expr.arguments.get(i));
+      }
+    } else {
+      if (count > 0) a = evaluate(expr.arguments.get(0));
+      if (count > 1) b = evaluate(expr.arguments.get(1));
+      if (count > 2) c = evaluate(expr.arguments.get(2));
+    }
+
+    LoxCallable function;
+    if (expr.specialization == Specialization.MONOMORPHIC && callee == expr.cachedCallee) {
+      // same callee as last time: its type and arity have already been checked
+      function = expr.cachedCallee;
+    } else {
+      if (expr.specialization == Specialization.MONOMORPHIC) {
+        expr.specialization = Specialization.GENERIC; // deoptimize
+        expr.cachedCallee = null;
+      }
+
+      if (!(callee instanceof LoxCallable)) { // not callable
+        throw new RuntimeError(expr.paren, "Can only call functions and classes.");
+      }
+
+      function = (LoxCallable)callee;
+      checkArity(expr.paren, function, count);
+
+      if (expr.specialization == Specialization.UNINITIALIZED) {
+        expr.specialization = Specialization.MONOMORPHIC;
+        expr.cachedCallee = function;
+      }
+    }
+
+    // the call is made here rather than in a method of its own, so that each
+    // level of a recursion takes one Java frame less
+    if (expr.tailCall && function instanceof LoxFunction) {
+      if (arguments == null) arguments = arguments(count, a, b, c);
+      return tailCall((LoxFunction)function, null, arguments);
+    }
+
+    switch (count) {
+      case 0: return function.call0(this);
+      case 1: return function.call1(this, a);
+      case 2: return function.call2(this, a, b);
+      case 3: return function.call3(this, a, b, c);
+      default: return function.call(this, arguments);
     }
+  }
+
+  // the array of a call with up to three arguments
+  static Object[] arguments(int count, Object a, Object b, Object c) {
+    switch (count) {
+      case 0: return NO_ARGUMENTS;
+      case 1: return new Object[] {a};
+      case 2: return new Object[] {a, b};
+      default: return new Object[] {a, b, c};
+    }
+  }
 
-    LoxCallable function = (LoxCallable)callee;
-    if (arguments.size() != function.arity()) {
-      throw new RuntimeError(expr.paren, "Expected " +
+  // a Lox function called in tail position isn't called here: the call is left
+  // for the LoxFunction.call running the current function, which returns, and
+  // makes the call in its place, in the same frame. So the Java stack doesn't
+  // grow with each call of a tail recursion.
+  Object tailCall(LoxFunction function, LoxInstance receiver, Object[] arguments) {
+    tailCallee = function;
+    tailReceiver = receiver;
+    tailArguments = arguments;
+    return null; // the return value is the callee's
+  }
+
+  static void checkArity(Token paren, LoxCallable function, int count) {
+    checkArity(paren.line, function, count);
+  }
+
+  static void checkArity(int line, LoxCallable function, int count) {
+    if (count != function.arity()) {
+      throw new RuntimeError(line, "Expected " +
           function.arity() + " arguments but got " +
-          arguments.size() + ".");
+          count + ".");
     }
+  }
+
+  @Override
+  public Object visitInlineExpr(Expr.Inline expr) {
+    // the copied body is only the call while the global holds the function
+    // (it might not be defined yet, or be declared again in the REPL)
+    if (!inlined(expr)) return visitCallExpr(expr.call);
+
+    // the arguments go to slots of the current frame instead of a new one
+    for (int i = 0; i < expr.parameters.length; i++) {
+      Local parameter = expr.parameters[i];
+      if (parameter != null) stack[fp + parameter.slot] = evaluate(expr.call.arguments.get(i));
+    }
+    return evaluate(expr.body);
+  }
 
-    return function.call(this, arguments);
+  static boolean inlined(Expr.Inline expr) {
+    Object callee = expr.global.value;
+    return callee instanceof LoxFunction && ((LoxFunction)callee).isDeclaredBy(expr.function);
+  }
+
+  @Override
+  public Object visitInvariantExpr(Expr.Invariant expr) {
+    int slot = fp + expr.local.slot;
+    Object value = stack[slot];
+    if (value == UNEVALUATED) { // the first time since the loop was entered
+      value = evaluate(expr.expression);
+      stack[slot] = value;
+    }
+    return value;
   }
 
   @Override
   public Object visitGetExpr(Expr.Get expr) {
+    return instance(expr).get(expr.name, expr.cache);
+  }
+
+  private LoxInstance instance(Expr.Get expr) {
     Object object = evaluate(expr.object);
 
     if (object instanceof LoxInstance) {
-      return ((LoxInstance) object).get(expr.name);
+      return (LoxInstance)object;
     }
 
     throw new RuntimeError(expr.name, "Only instances have properties.");
@@ -203,25 +583,31 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
   }
 
   // check if the operand is a number or throw an error
-  private void checkNumberOperand(Token operator, Object operand) {
+  static void checkNumberOperand(Token operator, Object operand) {
+    checkNumberOperand(operator.line, operand);
+  }
+
+  static void checkNumberOperand(int line, Object operand) {
     if (operand instanceof Double) return;
-    throw new RuntimeError(operator, "Operand must be a number.");
+    throw new RuntimeError(line, "Operand must be a number.");
   }
 
   // check if all operands are numbers or throw an error
-  private void checkNumberOperands(Token operator, Object left, Object right) {
+  private static void checkNumberOperands(int line, Object left, Object right) {
     if (left instanceof Double && right instanceof Double) return;
    
-    throw new RuntimeError(operator, "Operands must be numbers.");
+    throw new RuntimeError(line, "Operands must be numbers.");
   }
 
-   private boolean isEqual(Object a, Object b) {
+  static boolean isEqual(Object a, Object b) {
     if (a == null && b == null) return true;
     if (a == null) return false;
     return a.equals(b);
   }
 
-  void interpret(List<Stmt> statements) {
+  // frameSize is the number of slots the Resolver gave the top-level code
+  void interpret(List<Stmt> statements, int frameSize) {
+    pushFrame(frameSize);
     try {
       for (Stmt statement : statements) {
         execute(statement);
@@ -229,31 +615,88 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
     } catch (RuntimeError error) {
       Lox.runtimeError(error);
     }
+    resetStack();
   }
 
-  private void execute(Stmt stmt) {
-    stmt.accept(this);
+  private Completion execute(Stmt stmt) {
+    return stmt.accept(this);
   }
 
-  void resolve(Expr expr, int depth) {
-    locals.put(expr, depth);
+  Completion executeBlock(List<Stmt> statements) {
+    for (Stmt statement : statements) {
+      Completion completion = execute(statement);
+      if (completion != Completion.NORMAL) return completion;
+    }
+    return Completion.NORMAL;
   }
 
-  void executeBlock(List<Stmt> statements, Environment environment) {
-    Environment previous = this.environment;
-    try {
-      // execute the statements inside a given environment (scope)
-      this.environment = environment;
-      for (Stmt statement : statements) {
-        execute(statement);
-      }
-    } finally {
-      // restore the previous environment
-      this.environment = previous;
+  // start a frame of size slots above the current one and return the
+  // caller's frame pointer, which popFrame restores
+  int pushFrame(int size) {
+    int callerFrame = fp;
+    fp = top;
+    top += size;
+    if (top > stack.length) stack = Arrays.copyOf(stack, Math.max(top, stack.length * 2));
+    return callerFrame;
+  }
+
+  // the frame of a function taking over the frame of the one calling it
+  void reuseFrame(int size) {
+    Arrays.fill(stack, fp, top, null);
+    top = fp + size;
+    if (top > stack.length) stack = Arrays.copyOf(stack, Math.max(top, stack.length * 2));
+  }
+
+  void popFrame(int callerFrame) {
+    Arrays.fill(stack, fp, top, null); // don't keep the values alive
+    top = fp;
+    fp = callerFrame;
+  }
+
+  // drop every frame, and what a runtime error left behind
+  void resetStack() {
+    Arrays.fill(stack, 0, top, null);
+    fp = 0;
+    top = 0;
+    upvalues = new Cell[0];
+    tailCallee = null;
+    tailReceiver = null;
+    tailArguments = null;
+  }
+
+  // the cells of the variables a closure of the function captures
+  Cell[] capture(Expr.Function function) {
+    Cell[] cells = new Cell[function.upvalues.length];
+    for (int i = 0; i < cells.length; i++) {
+      int source = function.upvalues[i];
+      cells[i] = source >= 0 ? (Cell)stack[fp + source] : upvalues[-1 - source];
+    }
+    return cells;
+  }
+
+  // a null local is a global
+  void define(Token name, Local local, Object value) {
+    if (local == null) {
+      globals.cell(name.symbol).value = value;
+    } else if (local.captured) {
+      stack[fp + local.slot] = new Cell(value);
+    } else {
+      stack[fp + local.slot] = value;
     }
   }
 
-  private String stringify(Object object) {
+  // set a variable just defined, after creating the closures that capture it
+  void initialize(Token name, Local local, Object value) {
+    if (local == null) {
+      globals.cell(name.symbol).value = value;
+    } else if (local.captured) {
+      ((Cell)stack[fp + local.slot]).value = value;
+    } else {
+      stack[fp + local.slot] = value;
+    }
+  }
+
+  static String stringify(Object object) {
     if (object == null) return "nil";
     if (object instanceof Double) {
       String text = object.toString();
@@ -266,13 +709,13 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
   }
 
   @Override
-  public Void visitBlockStmt(Stmt.Block stmt) {
-    executeBlock(stmt.statements, new Environment(environment));
-    return null;
+  public Completion visitBlockStmt(Stmt.Block stmt) {
+    // the block's locals have slots in the frame, so there's nothing to create
+    return executeBlock(stmt.statements);
   }
 
   @Override
-  public Void visitClassStmt(Stmt.Class stmt) {
+  public Completion visitClassStmt(Stmt.Class stmt) {
     Object superclass = null;
     if (stmt.superclass != null) {
       superclass = evaluate(stmt.superclass);
@@ -281,125 +724,135 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
       }
     }
 
-    environment.define(stmt.name.lexeme, null);
+    // the methods capture the class (and "super") as they are created
+    define(stmt.name, stmt.local, null);
+    if (stmt.superclass != null) define(stmt.superclass.name, stmt.superLocal, superclass);
 
-    if (stmt.superclass != null) { // create the environment to bind "super" to the superclass
-      environment = new Environment(environment);
-      environment.define("super", superclass);
-    }
-
-    Map<String, LoxFunction> methods = new HashMap<>();
+    SymbolMap<LoxFunction> methods = new SymbolMap<>();
     for (Stmt.Function method : stmt.methods) {
-      LoxFunction function = new LoxFunction(method.name.lexeme, method.params, method.body, environment,
-        method.name.lexeme.equals("init"));
-      methods.put(method.name.lexeme, function);
+      LoxFunction function = new LoxFunction(method.name.lexeme, method.function,
+        capture(method.function), method.name.symbol == Symbols.INIT);
+      methods.put(method.name.symbol, function);
     }
 
     LoxClass klass = new LoxClass(stmt.name.lexeme, (LoxClass)superclass, methods);
-
-    if (superclass != null) { // pop "super" environment
-      environment = environment.enclosing;
-    }
-
-    environment.assign(stmt.name, klass);
-    return null;
+    initialize(stmt.name, stmt.local, klass);
+    return Completion.NORMAL;
   }
 
   @Override
-  public Void visitExpressionStmt(Stmt.Expression stmt) {
+  public Completion visitExpressionStmt(Stmt.Expression stmt) {
     evaluate(stmt.expression);
-    return null;
+    return Completion.NORMAL;
   }
 
   @Override
-  public Void visitFunctionStmt(Stmt.Function stmt) {
-    LoxFunction function = new LoxFunction(stmt.name.lexeme, stmt.params, stmt.body, environment, false);
-    environment.define(stmt.name.lexeme, function);
-    return null;
+  public Completion visitFunctionStmt(Stmt.Function stmt) {
+    define(stmt.name, stmt.local, null); // a recursive function captures itself
+    LoxFunction function = new LoxFunction(stmt.name.lexeme, stmt.function,
+      capture(stmt.function), false);
+    initialize(stmt.name, stmt.local, function);
+    return Completion.NORMAL;
   }
 
   @Override
-  public Void visitIfStmt(Stmt.If stmt) {
+  public Completion visitIfStmt(Stmt.If stmt) {
     if (isTruthy(evaluate(stmt.condition))) {
-      execute(stmt.thenBranch);
+      return execute(stmt.thenBranch);
     } else if (stmt.elseBranch != null) {
-      execute(stmt.elseBranch);
+      return execute(stmt.elseBranch);
     }
-    return null;
+    return Completion.NORMAL;
   }
 
   @Override
-  public Void visitPrintStmt(Stmt.Print stmt) {
+  public Completion visitPrintStmt(Stmt.Print stmt) {
     Object value = evaluate(stmt.expression);
     System.out.println(stringify(value));
-    return null;
+    return Completion.NORMAL;
   }
 
   @Override
-  public Void visitReturnStmt(Stmt.Return stmt) {
+  public Completion visitReturnStmt(Stmt.Return stmt) {
     Object value = null;
     if (stmt.value != null) value = evaluate(stmt.value);
-    throw new ReturnException(value);
+    returnValue = value;
+    return Completion.RETURN;
   }
 
   @Override
-  public Void visitWhileStmt(Stmt.While stmt) {
-    while (isTruthy(evaluate(stmt.condition))) {
-      try {
-        execute(stmt.body);
-      } catch (BreakException breakException) {
-        break;
-      } catch (ContinueException continueException) {
-        // exit out of the block and start executing it again
-      }
+  public Completion visitWhileStmt(Stmt.While stmt) {
+    for (Local invariant : stmt.invariants) {
+      stack[fp + invariant.slot] = UNEVALUATED;
+    }
+
+    while (stmt.compiled == null) {
+      if (!isTruthy(evaluate(stmt.condition))) return Completion.NORMAL;
+      Completion completion = execute(stmt.body);
+      if (completion == Completion.BREAK) return Completion.NORMAL;
+      if (completion == Completion.RETURN) return completion;
+      // CONTINUE has already left the body, start executing it again
+
+      if (++stmt.iterations == LOOP_THRESHOLD) new ClosureCompiler(this).tierUp(stmt);
     }
-    return null;
+
+    // a hot loop continues in compiled code from the next iteration: both
+    // share the same frame, so no state needs to be transferred
+    return stmt.compiled.execute();
   }
 
   @Override
-  public Void visitBreakStmt(Stmt.Break stmt) {
-    throw new BreakException();
+  public Completion visitBreakStmt(Stmt.Break stmt) {
+    return Completion.BREAK;
   }
 
   @Override
-  public Void visitContinueStmt(Stmt.Continue stmt) {
-    throw new ContinueException();
+  public Completion visitContinueStmt(Stmt.Continue stmt) {
+    return Completion.CONTINUE;
   }
 
   @Override
-  public Void visitVarStmt(Stmt.Var stmt) {
+  public Completion visitVarStmt(Stmt.Var stmt) {
     Object value = null;
     if (stmt.initializer != null) { // the variable has an initializer
       value = evaluate(stmt.initializer);
     }
 
-    environment.define(stmt.name.lexeme, value);
-    return null;
+    define(stmt.name, stmt.local, value);
+    return Completion.NORMAL;
   }
  
   @Override
   public Object visitVariableExpr(Expr.Variable expr) {
-    return lookUpVariable(expr.name, expr);
+    return lookUpVariable(expr.name, expr.local, expr.upvalue, expr.global);
   }
 
-  private Object lookUpVariable(Token name, Expr expr) {
-    Integer distance = locals.get(expr);
-    if (distance != null) {
-      return environment.getAt(distance, name.lexeme);
+  private Object lookUpVariable(Token name, Local local, int upvalue, GlobalCell global) {
+    if (local != null) {
+      Object value = stack[fp + local.slot];
+      return local.captured ? ((Cell)value).value : value;
+    } else if (upvalue != -1) {
+      return upvalues[upvalue].value;
     } else {
-      return globals.get(name);
+      return global.get(name);
     }
   }
 
   @Override
   public Object visitAssignExpr(Expr.Assign expr) {
     Object value = evaluate(expr.value);
-    
-    Integer distance = locals.get(expr);
-    if (distance != null) {
-      environment.assignAt(distance, expr.name, value);
+
+    Local local = expr.local;
+    if (local != null) {
+      if (local.captured) {
+        ((Cell)stack[fp + local.slot]).value = value;
+      } else {
+        stack[fp + local.slot] = value;
+      }
+    } else if (expr.upvalue != -1) {
+      upvalues[expr.upvalue].value = value;
     } else {
-      globals.assign(expr.name, value);
+      expr.global.assign(expr.name, value);
     }
 
     return value;
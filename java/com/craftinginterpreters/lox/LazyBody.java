@@ -0,0 +1,36 @@
+package com.craftinginterpreters.lox;
+
+import java.io.StringReader;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+// What the Parser keeps of the body of a function declared at the top level
+// when it only pre-parses it (see Parser.skipBody): its source, which is
+// parsed, resolved and optimized the first time the function runs (see
+// Lox.parseBody), and what the scan of it found that can't wait until then.
+// Such a function can only see globals, so nothing outside it depends on
+// how its body is resolved, but for these.
+class LazyBody {
+  String source; // from the '{' to the '}'
+  int line; // of the '{'
+  // the body may have an error the Resolver reports, so the Resolver parses
+  // and resolves it where it meets the function, as if it weren't lazy
+  boolean suspect = false;
+  // the symbols of the variables it assigns (the globals among them aren't
+  // constant)
+  final Set<Integer> assigned = new HashSet<>();
+  // the body is a single return, which the Optimizer may inline (it parses
+  // the body to see)
+  boolean returnsOnly = false;
+
+  // where the Resolver met the function, to resolve the body there later
+  Resolver.FunctionType type;
+  Resolver.ClassType enclosingClass;
+
+  // the statements of the body (the scan has reported its syntax errors)
+  List<Stmt> parse() {
+    Scanner scanner = new Scanner(new StringReader(source), line);
+    return new Parser(scanner.tokens()).body();
+  }
+}
@@ -0,0 +1,18 @@
+package com.craftinginterpreters.lox;
+
+// A local variable, as the Resolver lays it out: its slot in the frame of the
+// function declaring it (blocks share their function's frame), and whether a
+// closure captures it. A captured variable's slot holds a Cell instead of the
+// value, so the closures and the frame see the same variable.
+class Local {
+  final int slot;
+  boolean captured = false;
+  // the Optimizer replaces reads of a local that is never assigned after its
+  // declaration with the value it was initialized to, if that's a constant
+  boolean assigned = false;
+  boolean defined = false; // only used while resolving
+
+  Local(int slot) {
+    this.slot = slot;
+  }
+}
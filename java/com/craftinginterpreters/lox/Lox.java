@@ -3,30 +3,108 @@ package com.craftinginterpreters.lox;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringReader;
 import java.nio.charset.Charset;
-import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.List;
 
 public class Lox {
   private static final Interpreter interpreter = new Interpreter();
+  private static final VM vm = new VM();
   static boolean hadError = false;
   static boolean hadRuntimeError = false;
 
-  public static void main(String[] args) throws IOException {
-    if (args.length > 1) {
-      System.out.println("Usage: jlox [script]");
-      System.exit(64);
-    } else if (args.length == 1) { // run file
-      runFile(args[0]);
+  private enum Engine {
+    TREE, // walk the AST with the Interpreter
+    CLOSURE, // compile the AST to lambdas with the ClosureCompiler
+    VM, // compile the AST to bytecode and run it on the VM
+    FLAT // flatten the AST into arrays and walk those with the FlatInterpreter
+  }
+  private static Engine engine = Engine.TREE;
+  private static boolean dumpAst = false; // print the optimized AST before running it
+  private static final PassManager passes = new PassManager();
+  private static boolean useCache = true; // see AstCache
+  private static AstCache cache = null; // where the flat engine saves the script's program
+  // The script runs on a thread of its own, with a Java stack of this size
+  // rather than the JVM's (1 MB by default, or -Xss): the Parser, the
+  // Resolver, the passes and the engines all walk the tree recursively, and
+  // each level of a Lox recursion takes a few Java frames, so this bounds how
+  // deep a tree may nest (see Parser.MAX_NESTING) and how deep a recursion
+  // goes, whatever the JVM was started with.
+  static final long STACK_SIZE = 32L * 1024 * 1024;
+
+  public static void main(String[] args) throws Throwable {
+    Throwable[] failure = new Throwable[1];
+    Thread thread = new Thread(null, () -> {
+      try {
+        start(args);
+      } catch (Throwable error) {
+        failure[0] = error;
+      }
+    }, "lox", STACK_SIZE);
+    thread.start();
+    thread.join();
+    if (failure[0] != null) throw failure[0]; // as if thrown on this thread
+  }
+
+  private static void start(String[] args) throws IOException {
+    int argument = 0;
+    for (; argument < args.length && args[argument].startsWith("--"); argument++) {
+      switch (args[argument]) {
+        case "--engine=tree": engine = Engine.TREE; break;
+        case "--engine=closure": engine = Engine.CLOSURE; break;
+        case "--engine=vm": engine = Engine.VM; break;
+        case "--engine=flat": engine = Engine.FLAT; break;
+        case "--dump-ast": dumpAst = true; break;
+        case "--no-cache": useCache = false; break;
+        default:
+          if (!args[argument].startsWith("--no-")) usage();
+          disablePass(args[argument].substring("--no-".length()));
+      }
+    }
+
+    if (args.length - argument > 1) {
+      usage();
+    } else if (args.length - argument == 1) { // run file
+      runFile(args[argument]);
     } else { // run in interactive mode (REPL)
       runPrompt();
     }
   }
 
+  private static void usage() {
+    System.out.println("Usage: jlox [--engine=tree|closure|vm|flat] [--dump-ast] " +
+        "[--no-cache] [--no-fold] [--no-inline] [--no-dce] [--no-tailrec] [--no-licm] [script]");
+    System.exit(64);
+  }
+
+  private static void disablePass(String name) {
+    for (PassManager.Pass pass : PassManager.Pass.values()) {
+      if (pass.name().toLowerCase().equals(name)) {
+        passes.disable(pass);
+        return;
+      }
+    }
+    usage();
+  }
+
   private static void runFile(String path) throws IOException {
-    byte[] bytes = Files.readAllBytes(Paths.get(path));
-    run(new String(bytes, Charset.defaultCharset()));
+    Path script = Paths.get(path);
+    Charset charset = Charset.defaultCharset();
+    // the flat engine runs the program it saved the last time, if the script
+    // hasn't changed since
+    if (engine == Engine.FLAT && !dumpAst && useCache) {
+      cache = new AstCache(script, charset, passes);
+    }
+    FlatAst ast = cache == null ? null : cache.load(interpreter.globals);
+    if (ast != null) {
+      new FlatInterpreter(interpreter, ast).interpret();
+    } else {
+      // the file is decoded and scanned as the Parser reads it
+      run(new MappedReader(script, charset), false);
+    }
     // exit on error
     if (hadError) System.exit(65); 
     if (hadRuntimeError) System.exit(70);
@@ -39,34 +117,61 @@ public class Lox {
       System.out.print("> ");
       String line = reader.readLine();
       if (line == null) break;
-      run(line);
+      run(new StringReader(line), true);
       hadError = false;
     }
   }
 
   // core function (runFile and runPrompt are wrappers)
-  private static void run(String source) {
+  private static void run(Reader source, boolean interactive) {
     Scanner scanner = new Scanner(source);
-    List<Token> tokens = scanner.scanTokens();
-
-    Parser parser = new Parser(tokens);
+    // the bodies of the functions declared at the top level are parsed when
+    // they first run, but for the engines that compile the whole program
+    // first (and the REPL, where they're short)
+    boolean lazy = engine == Engine.TREE && !dumpAst && !interactive;
+    Parser parser = new Parser(scanner.tokens(), lazy);
     List<Stmt> statements = parser.parse();
 
     // stop if there was a syntax error.
     if (hadError) return;
-    
-    // for debugging
-    for (int i = 0; i < statements.size(); i++) {
-      System.out.println(new AstPrinter().print(statements.get(i)));
-    }
-    
-    Resolver resolver = new Resolver(interpreter);
+
+    Resolver resolver = new Resolver(interpreter.globals, interactive);
     resolver.resolve(statements);
 
     // stop if there was a resolution error.
     if (hadError) return;
 
-    interpreter.interpret(statements);
+    int frameSize = passes.run(statements, resolver.frameSize());
+
+    if (dumpAst) { // for debugging
+      for (Stmt statement : statements) {
+        System.out.println(new AstPrinter().print(statement));
+      }
+    }
+
+    switch (engine) {
+      case TREE: interpreter.interpret(statements, frameSize); break;
+      case CLOSURE:
+        new ClosureCompiler(interpreter).interpret(statements, frameSize);
+        break;
+      case VM: vm.interpret(statements); break;
+      case FLAT: {
+        FlatAst ast = new Flattener(interpreter.globals).flatten(statements, frameSize);
+        statements = null; // the tree isn't needed any more
+        if (cache != null) cache.save(ast);
+        new FlatInterpreter(interpreter, ast).interpret();
+        break;
+      }
+    }
+  }
+
+  // the rest of run for the body of a function the Parser skipped, the first
+  // time the function runs: the Parser's scan of it has already reported its
+  // syntax errors, and found none the Resolver would, so it has none
+  static void parseBody(Expr.Function function) {
+    function.body.addAll(function.lazy.parse());
+    new Resolver(interpreter.globals, false).resolveBody(function);
+    passes.run(function);
   }
 
   // error handling
@@ -75,7 +180,7 @@ public class Lox {
   }
 
   static void runtimeError(RuntimeError error) {
-    System.err.println(error.getMessage() + "\n[line " + error.token.line + "]");
+    System.err.println(error.getMessage() + "\n[line " + error.line + "]");
     hadRuntimeError = true;
   }
 
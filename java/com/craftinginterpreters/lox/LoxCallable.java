@@ -1,8 +1,26 @@
 package com.craftinginterpreters.lox;
 
-import java.util.List;
-
 interface LoxCallable {
 	int arity();
-	Object call(Interpreter interpreter, List<Object> arguments);
+
+	// the arity has been checked, and the array isn't kept by the callee
+	Object call(Interpreter interpreter, Object[] arguments);
+
+	// the engines call these when the call has that many arguments, so a callable
+	// that overrides the one matching its arity is called without any allocation
+	default Object call0(Interpreter interpreter) {
+		return call(interpreter, Interpreter.NO_ARGUMENTS);
+	}
+
+	default Object call1(Interpreter interpreter, Object a) {
+		return call(interpreter, new Object[] {a});
+	}
+
+	default Object call2(Interpreter interpreter, Object a, Object b) {
+		return call(interpreter, new Object[] {a, b});
+	}
+
+	default Object call3(Interpreter interpreter, Object a, Object b, Object c) {
+		return call(interpreter, new Object[] {a, b, c});
+	}
 }
@@ -1,29 +1,28 @@
 package com.craftinginterpreters.lox;
 
-import java.util.List;
-import java.util.Map;
-
 class LoxClass implements LoxCallable {
   final String name;
   final LoxClass superclass;
-  Map<String, LoxFunction> methods;
-
-  LoxClass(String name, LoxClass superclass, Map<String, LoxFunction> methods) {
+  // the class's own methods and the ones it inherits, so a lookup costs the
+  // same however deep the hierarchy is (classes can't change once created)
+  private final SymbolMap<LoxFunction> methods;
+  private final LoxFunction initializer; // null if the class has no init()
+  final Shape shape = new Shape(); // of its instances before they get any field
+  int fieldCount = 0; // the most fields an instance has had so far
+
+  LoxClass(String name, LoxClass superclass, SymbolMap<LoxFunction> methods) {
     this.name = name;
     this.superclass = superclass;
-    this.methods = methods;
-  }
-
-  LoxFunction findMethod(String name) {
-    if (methods.containsKey(name)) {
-      return methods.get(name);
-    }
-
+    this.methods = new SymbolMap<>();
     if (superclass != null) { // inherit methods from superclass
-      return superclass.findMethod(name);
+      this.methods.putAll(superclass.methods);
     }
+    this.methods.putAll(methods);
+    initializer = this.methods.get(Symbols.INIT);
+  }
 
-    return null;
+  LoxFunction findMethod(int symbol) {
+    return methods.get(symbol);
   }
 
   @Override
@@ -32,11 +31,10 @@ class LoxClass implements LoxCallable {
   }
 
   @Override
-  public Object call(Interpreter interpreter, List<Object> arguments) {
+  public Object call(Interpreter interpreter, Object[] arguments) {
     LoxInstance instance = new LoxInstance(this);
-    LoxFunction initializer = findMethod("init");
     if (initializer != null) {
-      initializer.bind(instance).call(interpreter, arguments);
+      initializer.callMethod(interpreter, instance, arguments);
     }
 
     return instance;
@@ -44,7 +42,6 @@ class LoxClass implements LoxCallable {
 
   @Override
   public int arity() {
-    LoxFunction initializer = findMethod("init");
     if (initializer == null) return 0;
     return initializer.arity();
   }
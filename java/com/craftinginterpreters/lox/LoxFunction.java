@@ -1,53 +1,163 @@
 package com.craftinginterpreters.lox;
 
-import java.util.List;
-
-class LoxFunction implements LoxCallable {  
+class LoxFunction implements LoxCallable {
 	private final String name;
-	private final List<Token> params;
-	private final List<Stmt> body;
-	private final Environment closure;
+	private final Expr.Function declaration; // shared by every closure created from it
+	private final Cell[] upvalues; // the captured variables
 	private final boolean isInitializer;
+	private final LoxInstance receiver; // "this" of a bound method, otherwise null
+
+	LoxFunction(String name, Expr.Function declaration, Cell[] upvalues, boolean isInitializer) {
+		this(name, declaration, upvalues, isInitializer, null);
+	}
 
-	LoxFunction(String name, List<Token> params, List<Stmt> body, Environment closure, boolean isInitializer) {
+	private LoxFunction(String name, Expr.Function declaration, Cell[] upvalues,
+			boolean isInitializer, LoxInstance receiver) {
 		this.name = name;
-		this.closure = closure;
-		this.params = params;
-		this.body = body;
+		this.declaration = declaration;
+		this.upvalues = upvalues;
 		this.isInitializer = isInitializer;
+		this.receiver = receiver;
 	}
 
-	// create a new enviroment and bind 'this' to the object's instance
+	// bind 'this' to the object's instance
 	LoxFunction bind(LoxInstance instance) {
-		Environment environment = new Environment(closure);
-		environment.define("this", instance);
-		return new LoxFunction(name, params, body, environment, isInitializer);
+		return new LoxFunction(name, declaration, upvalues, isInitializer, instance);
+	}
+
+	// whether this is a closure created from the declaration
+	boolean isDeclaredBy(Expr.Function declaration) {
+		return this.declaration == declaration;
 	}
 
 	@Override
 	public int arity() {
-		return params.size();
+		return declaration.params.size();
+	}
+
+	@Override
+	public Object call(Interpreter interpreter, Object[] arguments) {
+		return callMethod(interpreter, receiver, arguments);
+	}
+
+	// the fixed arity calls bind their arguments straight into the new frame
+
+	@Override
+	public Object call0(Interpreter interpreter) {
+		Cell[] callerUpvalues = interpreter.upvalues;
+		int callerFrame = enter(interpreter, receiver);
+		return run(interpreter, receiver, callerFrame, callerUpvalues);
+	}
+
+	@Override
+	public Object call1(Interpreter interpreter, Object a) {
+		Cell[] callerUpvalues = interpreter.upvalues;
+		int callerFrame = enter(interpreter, receiver);
+		bind(interpreter, 0, a);
+		return run(interpreter, receiver, callerFrame, callerUpvalues);
+	}
+
+	@Override
+	public Object call2(Interpreter interpreter, Object a, Object b) {
+		Cell[] callerUpvalues = interpreter.upvalues;
+		int callerFrame = enter(interpreter, receiver);
+		bind(interpreter, 0, a);
+		bind(interpreter, 1, b);
+		return run(interpreter, receiver, callerFrame, callerUpvalues);
 	}
 
 	@Override
-	public Object call(Interpreter interpreter, List<Object> arguments) {
-		// define all paramethers inside a new scope and assign values passed as arguments
-		Environment environment = new Environment(closure);
-		for (int i = 0; i < params.size(); i++) {
-			environment.define(params.get(i).lexeme, arguments.get(i));
+	public Object call3(Interpreter interpreter, Object a, Object b, Object c) {
+		Cell[] callerUpvalues = interpreter.upvalues;
+		int callerFrame = enter(interpreter, receiver);
+		bind(interpreter, 0, a);
+		bind(interpreter, 1, b);
+		bind(interpreter, 2, c);
+		return run(interpreter, receiver, callerFrame, callerUpvalues);
+	}
+
+	// call a method on an instance without creating the bound function first
+	Object callMethod(Interpreter interpreter, LoxInstance instance, Object[] arguments) {
+		Cell[] callerUpvalues = interpreter.upvalues;
+		int callerFrame = enter(interpreter, instance);
+		for (int i = 0; i < arguments.length; i++) {
+			bind(interpreter, i, arguments[i]);
 		}
+		return run(interpreter, instance, callerFrame, callerUpvalues);
+	}
 
-		try {
-			interpreter.executeBlock(body, environment);
-		} catch (ReturnException returnException) {
-			if (isInitializer) return closure.getAt(0, "this");
-			return returnException.value;
+	// the locals get a frame on the interpreter's stack, so a call allocates
+	// nothing but the cells of the variables its closures capture
+	private int enter(Interpreter interpreter, LoxInstance instance) {
+		if (declaration.lazy != null) Lox.parseBody(declaration); // the first call
+		int callerFrame = interpreter.pushFrame(declaration.frameSize);
+		interpreter.upvalues = upvalues;
+		bindReceiver(interpreter, instance);
+		return callerFrame;
+	}
+
+	private void bindReceiver(Interpreter interpreter, LoxInstance instance) {
+		if (declaration.receiver != null) { // "this" is in slot 0 of a method
+			interpreter.stack[interpreter.fp] =
+					declaration.receiver.captured ? new Cell(instance) : instance;
 		}
+	}
+
+	private void bind(Interpreter interpreter, int index, Object argument) {
+		Local parameter = declaration.parameters[index];
+		interpreter.stack[interpreter.fp + parameter.slot] =
+				parameter.captured ? new Cell(argument) : argument;
+	}
+
+	// run the body in the frame enter pushed, and pop the frame when the body
+	// is done, or fails with a runtime error
+	private Object run(Interpreter interpreter, LoxInstance instance, int callerFrame,
+			Cell[] callerUpvalues) {
+		LoxFunction function = this;
+		try {
+			while (true) {
+				Expr.Function declaration = function.declaration;
+				// hot functions are handed over to the ClosureCompiler
+				if (declaration.compiled == null && ++declaration.calls == Interpreter.CALL_THRESHOLD) {
+					new ClosureCompiler(interpreter).tierUp(declaration);
+				}
+
+				Completion completion;
+				if (declaration.compiled != null) {
+					completion = declaration.compiled.execute();
+				} else {
+					completion = interpreter.executeBlock(declaration.body);
+				}
+
+				if (interpreter.tailCallee == null) {
+					if (function.isInitializer) { // initializers always return "this"
+						return instance;
+					}
+					return completion == Completion.RETURN ? interpreter.returnValue : null;
+				}
+
+				// the function returned a call in tail position (see
+				// Interpreter.tailCall): the callee runs in the same frame, and so
+				// on until one returns a value
+				function = interpreter.tailCallee;
+				instance = interpreter.tailReceiver != null ? interpreter.tailReceiver : function.receiver;
+				Object[] arguments = interpreter.tailArguments;
+				interpreter.tailCallee = null;
+				interpreter.tailReceiver = null;
+				interpreter.tailArguments = null;
 
-		if (isInitializer) { // initializers always return "this"
-			return closure.getAt(0, "this");
+				if (function.declaration.lazy != null) Lox.parseBody(function.declaration);
+				interpreter.reuseFrame(function.declaration.frameSize);
+				interpreter.upvalues = function.upvalues;
+				function.bindReceiver(interpreter, instance);
+				for (int i = 0; i < arguments.length; i++) {
+					function.bind(interpreter, i, arguments[i]);
+				}
+			}
+		} finally {
+			interpreter.popFrame(callerFrame);
+			interpreter.upvalues = callerUpvalues;
 		}
-		return null;
 	}
 
 	@Override
@@ -1,14 +1,19 @@
 package com.craftinginterpreters.lox;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Arrays;
 
 class LoxInstance {
   private LoxClass klass;
-  private final Map<String, Object> fields = new HashMap<>();
+  // the shape tells which index of fields holds each field, until the instance
+  // gets more than Shape.MAX_FIELDS fields and switches to the dictionary
+  private Shape shape;
+  private Object[] fields;
+  private SymbolMap<Object> dictionary = null;
 
   LoxInstance(LoxClass klass) {
     this.klass = klass;
+    shape = klass.shape;
+    fields = new Object[klass.fieldCount];
   }
 
   @Override
@@ -16,21 +21,121 @@ class LoxInstance {
     return klass.name + " instance";
   }
 
-  Object get(Token name) {
+  // the value of a property with no field or method of that name
+  static final Object UNDEFINED = new Object();
+
+  // the cache is the Get node's, filled in when the property is found
+  Object get(Token name, InlineCache cache) {
+    Object value = get(name.symbol, cache);
+    if (value == UNDEFINED) throw undefined(name.symbol, name.line);
+    return value;
+  }
+
+  // the same by the name's symbol, returning UNDEFINED instead of throwing an
+  // error (for the FlatInterpreter, which only looks up the line on errors)
+  Object get(int symbol, InlineCache cache) {
+    int entry = cache.find(shape);
+    if (entry != -1) {
+      int index = cache.index(entry);
+      if (index != -1) return fields[index];
+      return cache.method(entry).bind(this);
+    }
+
     // look for a field
-    if (fields.containsKey(name.lexeme)) {
-      return fields.get(name.lexeme);
+    if (shape != null) {
+      int index = shape.indexOf(symbol);
+      if (index != -1) {
+        cache.add(shape, index, shape);
+        return fields[index];
+      }
+    } else if (dictionary.containsKey(symbol)) {
+      return dictionary.get(symbol);
     }
 
     // look for a method in the instance's class
-    LoxFunction method = klass.findMethod(name.lexeme);
-    if (method != null) return method.bind(this);
+    LoxFunction method = findMethod(symbol, cache);
+    if (method == null) return UNDEFINED;
+    return method.bind(this);
+  }
+
+  // the callee of a method call: the method is returned without binding it to
+  // the instance, or null if the property is a field or isn't defined (which
+  // get returns or reports)
+  LoxFunction method(Token name, InlineCache cache) {
+    return method(name.symbol, cache);
+  }
+
+  LoxFunction method(int symbol, InlineCache cache) {
+    int entry = cache.find(shape);
+    if (entry != -1) return cache.method(entry);
+
+    if (shape != null) {
+      if (shape.indexOf(symbol) != -1) return null;
+    } else if (dictionary.containsKey(symbol)) {
+      return null;
+    }
+    return findMethod(symbol, cache);
+  }
+
+  private LoxFunction findMethod(int symbol, InlineCache cache) {
+    LoxFunction method = klass.findMethod(symbol);
+    if (method != null && shape != null) cache.add(shape, method);
+    return method;
+  }
 
-    // throw an error if no property with this name is found
-    throw new RuntimeError(name, "Undefined property '" + name.lexeme + "'.");
+  static RuntimeError undefined(int symbol, int line) {
+    return new RuntimeError(line, "Undefined property '" + Symbols.name(symbol) + "'.");
   }
 
-  void set(Token name, Object value) {
-    fields.put(name.lexeme, value);
+  // the cache is the Set node's, which also remembers the shape transitions
+  void set(Token name, Object value, InlineCache cache) {
+    set(name.symbol, value, cache);
+  }
+
+  void set(int symbol, Object value, InlineCache cache) {
+    int entry = cache.find(shape);
+    if (entry != -1) {
+      store(cache.index(entry), cache.transition(entry), value);
+      return;
+    }
+
+    if (shape == null) {
+      dictionary.put(symbol, value);
+      return;
+    }
+
+    int index = shape.indexOf(symbol);
+    Shape transition = shape;
+    if (index == -1) { // add the field
+      if (shape.size() == Shape.MAX_FIELDS) {
+        toDictionary();
+        dictionary.put(symbol, value);
+        return;
+      }
+      index = shape.size();
+      transition = shape.withField(symbol);
+      // later instances of the class are allocated with room for all the fields
+      if (transition.size() > klass.fieldCount) klass.fieldCount = transition.size();
+    }
+
+    cache.add(shape, index, transition);
+    store(index, transition, value);
+  }
+
+  private void store(int index, Shape transition, Object value) {
+    if (index >= fields.length) {
+      fields = Arrays.copyOf(fields, Math.max(index + 1, fields.length * 2));
+    }
+    fields[index] = value;
+    shape = transition;
+  }
+
+  private void toDictionary() {
+    dictionary = new SymbolMap<>();
+    for (int symbol : shape.symbols()) {
+      dictionary.put(symbol, fields[shape.indexOf(symbol)]);
+    }
+    shape = null;
+    fields = null;
   }
 }
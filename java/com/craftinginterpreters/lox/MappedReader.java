@@ -0,0 +1,63 @@
+package com.craftinginterpreters.lox;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+// A script file mapped into memory instead of being read into a byte array,
+// and decoded as the Scanner reads it instead of all at once into a String:
+// the text is only ever in memory as chars a buffer at a time.
+class MappedReader extends Reader {
+  private static final int CHUNK_SIZE = 8192;
+
+  private final ByteBuffer bytes;
+  // the bytes being decoded, copied from the mapping to a heap buffer, which
+  // the decoders have a much faster path for
+  private final ByteBuffer chunk = ByteBuffer.allocate(CHUNK_SIZE).flip();
+  private final CharsetDecoder decoder;
+  private boolean finished = false;
+
+  MappedReader(Path path, Charset charset) throws IOException {
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+      bytes = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    }
+    // bad bytes are replaced, as new String(bytes, charset) does
+    decoder = charset.newDecoder()
+        .onMalformedInput(CodingErrorAction.REPLACE)
+        .onUnmappableCharacter(CodingErrorAction.REPLACE);
+  }
+
+  @Override
+  public int read(char[] buffer, int offset, int length) {
+    if (length == 0) return 0; // as the Reader contract says, even at the end
+    CharBuffer chars = CharBuffer.wrap(buffer, offset, length);
+    while (chars.position() == offset && !finished) {
+      // the next bytes go after the ones the decoder left (the start of a
+      // character cut by the end of the chunk)
+      chunk.compact();
+      int count = Math.min(chunk.remaining(), bytes.remaining());
+      bytes.get(chunk.array(), chunk.position(), count);
+      chunk.position(chunk.position() + count).flip();
+
+      boolean last = !bytes.hasRemaining();
+      CoderResult result = decoder.decode(chunk, chars, last);
+      if (last && result.isUnderflow() && decoder.flush(chars).isUnderflow()) finished = true;
+    }
+
+    int read = chars.position() - offset;
+    return read == 0 ? -1 : read;
+  }
+
+  @Override
+  public void close() {
+    // the mapping goes away with the buffer
+  }
+}
@@ -0,0 +1,115 @@
+package com.craftinginterpreters.lox;
+
+
+// Heap objects of the bytecode VM (see object.h in the book's clox). Numbers,
+// strings, booleans and nil are the same Java objects the Interpreter uses.
+final class Obj {
+  private Obj() {}
+
+  static class Function {
+    final String name; // null for the top-level script
+    int arity = 0;
+    int upvalueCount = 0;
+    final Chunk chunk = new Chunk();
+
+    Function(String name) {
+      this.name = name;
+    }
+
+    @Override
+    public String toString() {
+      if (name == null) return "<script>";
+      return "<fn " + name + ">";
+    }
+  }
+
+  // the arguments are read where the VM pushed them, stack[first] onwards
+  interface NativeFn {
+    Object call(Object[] stack, int first);
+  }
+
+  static class Native {
+    final int arity;
+    final NativeFn function;
+
+    Native(int arity, NativeFn function) {
+      this.arity = arity;
+      this.function = function;
+    }
+
+    @Override
+    public String toString() {
+      return "<native fn>";
+    }
+  }
+
+  // a variable captured by a closure: it lives on the VM stack while the
+  // enclosing function runs, then it is moved inside the upvalue
+  static class Upvalue {
+    int slot; // index in the VM stack, -1 once closed
+    Object closed;
+    Upvalue next; // open upvalues are kept in a list sorted by slot
+
+    Upvalue(int slot) {
+      this.slot = slot;
+    }
+  }
+
+  static class Closure {
+    final Function function;
+    final Upvalue[] upvalues;
+
+    Closure(Function function) {
+      this.function = function;
+      this.upvalues = new Upvalue[function.upvalueCount];
+    }
+
+    @Override
+    public String toString() {
+      return function.toString();
+    }
+  }
+
+  static class Class {
+    final String name;
+    final SymbolMap<Closure> methods = new SymbolMap<>();
+
+    Class(String name) {
+      this.name = name;
+    }
+
+    @Override
+    public String toString() {
+      return name;
+    }
+  }
+
+  static class Instance {
+    final Class klass;
+    final SymbolMap<Object> fields = new SymbolMap<>();
+
+    Instance(Class klass) {
+      this.klass = klass;
+    }
+
+    @Override
+    public String toString() {
+      return klass.name + " instance";
+    }
+  }
+
+  static class BoundMethod {
+    final Object receiver;
+    final Closure method;
+
+    BoundMethod(Object receiver, Closure method) {
+      this.receiver = receiver;
+      this.method = method;
+    }
+
+    @Override
+    public String toString() {
+      return method.toString();
+    }
+  }
+}
@@ -0,0 +1,65 @@
+package com.craftinginterpreters.lox;
+
+// Instructions of the bytecode VM (see clox's chunk.h). Each is one byte,
+// followed by its operands: "u8" is a one-byte operand, "u16" a two-byte
+// big-endian one, usually an index in the chunk's constant pool, and "u32" a
+// four-byte one.
+final class OpCode {
+  static final byte OP_CONSTANT = 0;       // u16 constant
+  static final byte OP_NIL = 1;
+  static final byte OP_TRUE = 2;
+  static final byte OP_FALSE = 3;
+  static final byte OP_POP = 4;
+  static final byte OP_GET_LOCAL = 5;      // u8 slot
+  static final byte OP_SET_LOCAL = 6;      // u8 slot
+  static final byte OP_GET_GLOBAL = 7;     // u16 name
+  static final byte OP_DEFINE_GLOBAL = 8;  // u16 name
+  static final byte OP_SET_GLOBAL = 9;     // u16 name
+  static final byte OP_GET_UPVALUE = 10;   // u8 index
+  static final byte OP_SET_UPVALUE = 11;   // u8 index
+  static final byte OP_GET_PROPERTY = 12;  // u16 name
+  static final byte OP_SET_PROPERTY = 13;  // u16 name
+  static final byte OP_GET_SUPER = 14;     // u16 name
+  static final byte OP_EQUAL = 15;
+  static final byte OP_NOT_EQUAL = 16;
+  static final byte OP_GREATER = 17;
+  static final byte OP_GREATER_EQUAL = 18;
+  static final byte OP_LESS = 19;
+  static final byte OP_LESS_EQUAL = 20;
+  static final byte OP_ADD = 21;
+  static final byte OP_SUBTRACT = 22;
+  static final byte OP_MULTIPLY = 23;
+  static final byte OP_DIVIDE = 24;
+  static final byte OP_NOT = 25;
+  static final byte OP_NEGATE = 26;
+  static final byte OP_PRINT = 27;
+  static final byte OP_JUMP = 28;          // u16 forward offset
+  static final byte OP_JUMP_IF_FALSE = 29; // u16 forward offset
+  static final byte OP_LOOP = 30;          // u16 backward offset
+  static final byte OP_CALL = 31;          // u8 argument count
+  static final byte OP_INVOKE = 32;        // u16 method name, u8 argument count
+  static final byte OP_SUPER_INVOKE = 33;  // u16 method name, u8 argument count
+  static final byte OP_CLOSURE = 34;       // u16 function, then u8 isLocal + u16 index per upvalue
+  static final byte OP_CLOSE_UPVALUE = 35;
+  static final byte OP_RETURN = 36;
+  static final byte OP_CLASS = 37;         // u16 name
+  static final byte OP_INHERIT = 38;
+  static final byte OP_METHOD = 39;        // u16 name
+  // the checks of an invoke, run before its arguments: the receiver on top of
+  // the stack is an instance and has the property (OP_INVOKE's name), or the
+  // superclass on top of the stack, which is popped, has the method
+  static final byte OP_FIND_METHOD = 40;   // u16 name
+  static final byte OP_FIND_SUPER_METHOD = 41; // u16 name
+  // the wide forms, for the slots and indexes past 255 and the jumps past 64K
+  // (a function whose forward jumps don't all fit in a u16 uses the wide
+  // ones for all of them, see BytecodeCompiler.function)
+  static final byte OP_GET_LOCAL_LONG = 42;      // u16 slot
+  static final byte OP_SET_LOCAL_LONG = 43;      // u16 slot
+  static final byte OP_GET_UPVALUE_LONG = 44;    // u16 index
+  static final byte OP_SET_UPVALUE_LONG = 45;    // u16 index
+  static final byte OP_JUMP_LONG = 46;           // u32 forward offset
+  static final byte OP_JUMP_IF_FALSE_LONG = 47;  // u32 forward offset
+  static final byte OP_LOOP_LONG = 48;           // u32 backward offset
+
+  private OpCode() {}
+}
@@ -0,0 +1,683 @@
+package com.craftinginterpreters.lox;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// Rewrites the resolved AST before any engine runs it. Operations whose
+// operands are all literals are folded into a literal, and reads of a local
+// that is initialized to a constant and never assigned are replaced with the
+// constant, so that more operations fold. An operation that would fail at
+// runtime (like a division by zero) is left as it is, so the error is still
+// reported when and where the program reaches it.
+// Nodes whose children change are rebuilt (their fields are final), keeping
+// what the Resolver filled in; lists of statements and arguments are updated
+// in place, so functions and classes keep their identity.
+// A call to a small global function is inlined: the callee's body is copied
+// into the caller as an Expr.Inline, whose arguments go to new slots of the
+// caller's frame, and which runs the call instead if the global doesn't hold
+// the function when the program gets there.
+// Code that can't run is removed: the statements after one that always
+// returns, breaks or continues, and the branch an if or a ?: with a constant
+// condition never takes.
+// A global function that returns a call to itself runs as a loop, which
+// assigns the arguments to the parameters and starts the body again.
+// Each of these (folding, inlining, dead code removal and tail recursion) is
+// a pass of the PassManager, which can turn it off.
+class Optimizer implements Expr.Visitor<Expr>, Stmt.Visitor<Stmt> {
+  // the cost model: only a function whose body returns an expression of at
+  // most INLINE_SIZE nodes is inlined, and inlining makes a function (or the
+  // top level) grow by at most INLINE_BUDGET nodes
+  private static final int INLINE_SIZE = 16;
+  private static final int INLINE_BUDGET = 64;
+
+  // the values of the constant locals declared so far
+  private final Map<Local, Object> constants = new HashMap<>();
+  // the functions being optimized or inlined, which aren't inlined into
+  // themselves (so recursion is never unrolled)
+  private final Set<Expr.Function> enclosing = new HashSet<>();
+  private Expr.Function function = null; // the one being optimized, null at the top level
+  private int frameSize; // of the top level
+  private int budget = INLINE_BUDGET;
+  private final boolean fold;
+  private final boolean inline;
+  private final boolean deadCode;
+  private final boolean tailRecursion;
+
+  Optimizer(PassManager passes, int frameSize) {
+    this.frameSize = frameSize;
+    fold = passes.isEnabled(PassManager.Pass.FOLD);
+    inline = passes.isEnabled(PassManager.Pass.INLINE);
+    deadCode = passes.isEnabled(PassManager.Pass.DCE);
+    tailRecursion = passes.isEnabled(PassManager.Pass.TAILREC);
+  }
+
+  // the size of the top level's frame, with the slots inlining added to it
+  int frameSize() {
+    return frameSize;
+  }
+
+  void optimize(List<Stmt> statements) {
+    for (int i = 0; i < statements.size(); i++) {
+      Stmt statement = optimize(statements.get(i));
+      statements.set(i, statement);
+      // the rest can't run (the last statement has no rest, and isn't
+      // checked: blocks nested in blocks would each check those in them again)
+      if (deadCode && i + 1 < statements.size() && isAbrupt(statement)) {
+        statements.subList(i + 1, statements.size()).clear();
+      }
+    }
+  }
+
+  // whether the statement never completes normally (it returns, breaks or
+  // continues however it runs)
+  private static boolean isAbrupt(Stmt stmt) {
+    if (stmt instanceof Stmt.Return || stmt instanceof Stmt.Break ||
+        stmt instanceof Stmt.Continue) {
+      return true;
+    }
+    if (stmt instanceof Stmt.Block) { // the statements after an abrupt one are gone
+      List<Stmt> statements = ((Stmt.Block)stmt).statements;
+      return !statements.isEmpty() && isAbrupt(statements.get(statements.size() - 1));
+    }
+    if (stmt instanceof Stmt.If) {
+      Stmt.If ifStmt = (Stmt.If)stmt;
+      return ifStmt.elseBranch != null && isAbrupt(ifStmt.thenBranch) &&
+          isAbrupt(ifStmt.elseBranch);
+    }
+    return false;
+  }
+
+  private Stmt optimize(Stmt stmt) {
+    return stmt.accept(this);
+  }
+
+  private Expr optimize(Expr expr) {
+    return expr.accept(this);
+  }
+
+  void optimize(Expr.Function function) {
+    if (function.lazy != null) return; // optimized once it's parsed
+
+    Expr.Function enclosingFunction = this.function;
+    int enclosingBudget = budget;
+    this.function = function;
+    budget = INLINE_BUDGET;
+    enclosing.add(function);
+
+    optimize(function.body);
+    if (tailRecursion) loop(function);
+
+    enclosing.remove(function);
+    this.function = enclosingFunction;
+    budget = enclosingBudget;
+  }
+
+  // a function whose tail calls to itself go through a global that can't
+  // change becomes "while (true) { body; break; }", where each of these calls
+  // assigns the parameters and continues the loop, so tail recursion costs as
+  // much as a while loop (other tail calls run in the caller's frame, in the
+  // loop of LoxFunction.run)
+  private void loop(Expr.Function function) {
+    for (Local parameter : function.parameters) {
+      if (parameter.captured) return; // each call needs its own cells
+    }
+
+    Token keyword = loop(function, function.body);
+    if (keyword == null) return;
+    List<Stmt> body = new ArrayList<>(function.body);
+    if (body.isEmpty() || !isAbrupt(body.get(body.size() - 1))) {
+      body.add(new Stmt.Break(new Token(TokenType.BREAK, "break", null, keyword.line)));
+    }
+    function.body.clear();
+    function.body.add(new Stmt.While(new Expr.Literal(true), new Stmt.Block(body)));
+  }
+
+  // replaces the tail calls to the function itself in the statements (but not
+  // in the loops and functions among them, where "continue" means something
+  // else), and returns the keyword of one of their returns, or null if none
+  private Token loop(Expr.Function function, List<Stmt> statements) {
+    Token keyword = null;
+    for (int i = 0; i < statements.size(); i++) {
+      Stmt statement = statements.get(i);
+      if (statement instanceof Stmt.Block) {
+        Token found = loop(function, ((Stmt.Block)statement).statements);
+        if (found != null) keyword = found;
+      } else if (statement instanceof Stmt.If) {
+        Stmt.If ifStmt = (Stmt.If)statement;
+        List<Stmt> branches = new ArrayList<>();
+        branches.add(ifStmt.thenBranch);
+        branches.add(ifStmt.elseBranch);
+        Token found = loop(function, branches);
+        if (found != null) {
+          keyword = found;
+          statements.set(i, new Stmt.If(ifStmt.condition, branches.get(0), branches.get(1)));
+        }
+      } else if (isSelfTailCall(function, statement)) {
+        keyword = ((Stmt.Return)statement).keyword;
+        statements.set(i, jump(function, (Expr.Call)((Stmt.Return)statement).value, keyword));
+      }
+    }
+    return keyword;
+  }
+
+  private static boolean isSelfTailCall(Expr.Function function, Stmt stmt) {
+    if (!(stmt instanceof Stmt.Return) || !(((Stmt.Return)stmt).value instanceof Expr.Call)) {
+      return false;
+    }
+    Expr.Call call = (Expr.Call)((Stmt.Return)stmt).value;
+    if (!call.tailCall || !(call.callee instanceof Expr.Variable)) return false;
+    GlobalCell global = ((Expr.Variable)call.callee).global;
+    return global != null && global.constant && global.function == function &&
+        call.arguments.size() == function.parameters.length;
+  }
+
+  // the parameters get the arguments, through a temporary if a later argument
+  // still reads the parameter, and the loop starts again
+  private Stmt jump(Expr.Function function, Expr.Call call, Token keyword) {
+    List<Stmt> statements = new ArrayList<>();
+    List<Stmt> assignments = new ArrayList<>();
+    for (int i = 0; i < call.arguments.size(); i++) {
+      Local parameter = function.parameters[i];
+      Token name = function.params.get(i);
+      Expr argument = call.arguments.get(i);
+      if (argument instanceof Expr.Variable && ((Expr.Variable)argument).local == parameter) {
+        continue; // passed on unchanged
+      }
+
+      boolean readLater = false;
+      for (int j = i + 1; j < call.arguments.size(); j++) {
+        if (reads(call.arguments.get(j), parameter)) readLater = true;
+      }
+
+      Expr value = argument;
+      if (readLater) {
+        // a name that can't clash with the program's (the VM looks names up)
+        Token temporary = new Token(TokenType.IDENTIFIER, name.lexeme + " argument",
+            null, name.line);
+        Stmt.Var var = new Stmt.Var(temporary, argument);
+        var.local = new Local(function.frameSize++);
+        statements.add(var);
+        Expr.Variable variable = new Expr.Variable(temporary);
+        variable.local = var.local;
+        value = variable;
+      }
+
+      Expr.Assign assign = new Expr.Assign(name, value);
+      assign.local = parameter;
+      parameter.assigned = true;
+      (readLater ? assignments : statements).add(new Stmt.Expression(assign));
+    }
+
+    statements.addAll(assignments);
+    statements.add(new Stmt.Continue(keyword));
+    return new Stmt.Block(statements);
+  }
+
+  // whether evaluating the expression can read the local (anything but the
+  // simplest expressions is assumed to)
+  private static boolean reads(Expr expr, Local local) {
+    if (expr instanceof Expr.Literal) return false;
+    if (expr instanceof Expr.Variable) return ((Expr.Variable)expr).local == local;
+    if (expr instanceof Expr.Grouping) return reads(((Expr.Grouping)expr).expression, local);
+    if (expr instanceof Expr.Unary) return reads(((Expr.Unary)expr).right, local);
+    if (expr instanceof Expr.Binary) {
+      Expr.Binary binary = (Expr.Binary)expr;
+      return reads(binary.left, local) || reads(binary.right, local);
+    }
+    if (expr instanceof Expr.Logical) {
+      Expr.Logical logical = (Expr.Logical)expr;
+      return reads(logical.left, local) || reads(logical.right, local);
+    }
+    return true;
+  }
+
+  private static boolean isLiteral(Expr expr) {
+    return expr instanceof Expr.Literal;
+  }
+
+  private static Object valueOf(Expr expr) {
+    return ((Expr.Literal)expr).value;
+  }
+
+  @Override
+  public Expr visitAssignExpr(Expr.Assign expr) {
+    Expr value = optimize(expr.value);
+    if (value == expr.value) return expr;
+
+    Expr.Assign assign = new Expr.Assign(expr.name, value);
+    assign.local = expr.local;
+    assign.upvalue = expr.upvalue;
+    assign.global = expr.global;
+    return assign;
+  }
+
+  @Override
+  public Expr visitBinaryExpr(Expr.Binary expr) {
+    Expr left = optimize(expr.left);
+    Expr right = optimize(expr.right);
+
+    // a literal on the left of a comma has no effect
+    if (fold && expr.operator.type == TokenType.COMMA && isLiteral(left)) return right;
+
+    if (fold && isLiteral(left) && isLiteral(right)) {
+      try {
+        return new Expr.Literal(
+            Interpreter.binaryOperation(expr.operator, valueOf(left), valueOf(right)));
+      } catch (RuntimeError error) {
+        // leave the error for the runtime
+      }
+    }
+
+    if (left == expr.left && right == expr.right) return expr;
+    return new Expr.Binary(left, expr.operator, right);
+  }
+
+  @Override
+  public Expr visitCallExpr(Expr.Call expr) {
+    Expr callee = optimize(expr.callee);
+    for (int i = 0; i < expr.arguments.size(); i++) {
+      expr.arguments.set(i, optimize(expr.arguments.get(i)));
+    }
+
+    Expr.Call call = expr;
+    if (callee != expr.callee) {
+      call = new Expr.Call(callee, expr.paren, expr.arguments);
+      call.tailCall = expr.tailCall;
+    }
+    Expr inlined = inline ? inline(call) : null;
+    return inlined != null ? inlined : call;
+  }
+
+  // the call with the callee's body copied in, or null if it isn't inlined
+  private Expr inline(Expr.Call call) {
+    if (!(call.callee instanceof Expr.Variable)) return null;
+    GlobalCell global = ((Expr.Variable)call.callee).global;
+    if (global == null || global.function == null) return null;
+
+    Expr.Function callee = global.function;
+    if (enclosing.contains(callee) || callee.params.size() != call.arguments.size()) {
+      return null;
+    }
+    // a body the Parser skipped is parsed now if it may be inlined
+    if (callee.lazy != null && callee.lazy.returnsOnly) Lox.parseBody(callee);
+    if (callee.body.size() != 1 || !(callee.body.get(0) instanceof Stmt.Return)) {
+      return null;
+    }
+    Expr value = ((Stmt.Return)callee.body.get(0)).value;
+    if (value == null) value = new Expr.Literal(null);
+
+    // a literal argument replaces the parameter, the others are evaluated
+    // into slots after the current function's own
+    Copier copier = new Copier(call.tailCall);
+    Local[] parameters = new Local[callee.parameters.length];
+    int slot = function == null ? frameSize : function.frameSize;
+    for (int i = 0; i < parameters.length; i++) {
+      Local parameter = callee.parameters[i];
+      Expr argument = call.arguments.get(i);
+      if (isLiteral(argument) && !parameter.assigned) {
+        copier.literals.put(parameter, valueOf(argument));
+      } else {
+        parameters[i] = new Local(slot++);
+        copier.temporaries.put(parameter, parameters[i]);
+      }
+    }
+
+    Expr body = copier.copy(value);
+    if (body == null || copier.size > INLINE_SIZE || copier.size > budget) return null;
+    budget -= copier.size;
+    if (function == null) {
+      frameSize = slot;
+    } else {
+      function.frameSize = slot;
+    }
+
+    // the copy folds with the literal arguments, and can inline the calls in it
+    enclosing.add(callee);
+    body = optimize(body);
+    enclosing.remove(callee);
+    return new Expr.Inline(call, global, callee, parameters, body);
+  }
+
+  @Override
+  public Expr visitFunctionExpr(Expr.Function expr) {
+    optimize(expr);
+    return expr;
+  }
+
+  @Override
+  public Expr visitGetExpr(Expr.Get expr) {
+    Expr object = optimize(expr.object);
+    if (object == expr.object) return expr;
+    return new Expr.Get(object, expr.name);
+  }
+
+  @Override
+  public Expr visitGroupingExpr(Expr.Grouping expr) {
+    Expr expression = optimize(expr.expression);
+    if (fold && isLiteral(expression)) return expression;
+    if (expression == expr.expression) return expr;
+    return new Expr.Grouping(expression);
+  }
+
+  @Override
+  public Expr visitInlineExpr(Expr.Inline expr) {
+    return expr; // already optimized when it's created
+  }
+
+  @Override
+  public Expr visitInvariantExpr(Expr.Invariant expr) {
+    return expr; // the Hoister runs after
+  }
+
+  @Override
+  public Expr visitLiteralExpr(Expr.Literal expr) {
+    return expr;
+  }
+
+  @Override
+  public Expr visitLogicalExpr(Expr.Logical expr) {
+    Expr left = optimize(expr.left);
+    Expr right = optimize(expr.right);
+
+    if (fold && isLiteral(left)) { // short-circuits the same way every time
+      boolean truthy = Interpreter.isTruthy(valueOf(left));
+      if (expr.operator.type == TokenType.OR) return truthy ? left : right;
+      return truthy ? right : left;
+    }
+
+    if (left == expr.left && right == expr.right) return expr;
+    return new Expr.Logical(left, expr.operator, right);
+  }
+
+  @Override
+  public Expr visitSetExpr(Expr.Set expr) {
+    Expr object = optimize(expr.object);
+    Expr value = optimize(expr.value);
+    if (object == expr.object && value == expr.value) return expr;
+    return new Expr.Set(object, expr.name, value);
+  }
+
+  @Override
+  public Expr visitSuperExpr(Expr.Super expr) {
+    return expr;
+  }
+
+  @Override
+  public Expr visitTernaryExpr(Expr.Ternary expr) {
+    Expr condition = optimize(expr.condition);
+    Expr thenBranch = optimize(expr.thenBranch);
+    Expr elseBranch = optimize(expr.elseBranch);
+
+    if (deadCode && isLiteral(condition)) { // only one branch can run
+      return Interpreter.isTruthy(valueOf(condition)) ? thenBranch : elseBranch;
+    }
+
+    if (condition == expr.condition && thenBranch == expr.thenBranch &&
+        elseBranch == expr.elseBranch) {
+      return expr;
+    }
+    return new Expr.Ternary(condition, thenBranch, elseBranch);
+  }
+
+  @Override
+  public Expr visitThisExpr(Expr.This expr) {
+    return expr;
+  }
+
+  @Override
+  public Expr visitUnaryExpr(Expr.Unary expr) {
+    Expr right = optimize(expr.right);
+
+    if (fold && isLiteral(right)) {
+      Object value = valueOf(right);
+      if (expr.operator.type == TokenType.BANG) return new Expr.Literal(!Interpreter.isTruthy(value));
+      if (value instanceof Double) return new Expr.Literal(-(double)value);
+      // negating anything else is a runtime error
+    }
+
+    if (right == expr.right) return expr;
+    return new Expr.Unary(expr.operator, right);
+  }
+
+  @Override
+  public Expr visitVariableExpr(Expr.Variable expr) {
+    // closures read captured locals through their cells
+    if (expr.local != null && constants.containsKey(expr.local)) {
+      return new Expr.Literal(constants.get(expr.local));
+    }
+    return expr;
+  }
+
+  @Override
+  public Stmt visitBlockStmt(Stmt.Block stmt) {
+    optimize(stmt.statements);
+    return stmt;
+  }
+
+  @Override
+  public Stmt visitBreakStmt(Stmt.Break stmt) {
+    return stmt;
+  }
+
+  @Override
+  public Stmt visitClassStmt(Stmt.Class stmt) {
+    for (Stmt.Function method : stmt.methods) {
+      optimize(method.function);
+    }
+    return stmt;
+  }
+
+  @Override
+  public Stmt visitContinueStmt(Stmt.Continue stmt) {
+    return stmt;
+  }
+
+  @Override
+  public Stmt visitExpressionStmt(Stmt.Expression stmt) {
+    Expr expression = optimize(stmt.expression);
+    if (expression == stmt.expression) return stmt;
+    return new Stmt.Expression(expression);
+  }
+
+  @Override
+  public Stmt visitFunctionStmt(Stmt.Function stmt) {
+    optimize(stmt.function);
+    return stmt;
+  }
+
+  @Override
+  public Stmt visitIfStmt(Stmt.If stmt) {
+    Expr condition = optimize(stmt.condition);
+    Stmt thenBranch = optimize(stmt.thenBranch);
+    Stmt elseBranch = stmt.elseBranch == null ? null : optimize(stmt.elseBranch);
+
+    if (deadCode && isLiteral(condition)) { // only one branch can run
+      if (Interpreter.isTruthy(valueOf(condition))) return thenBranch;
+      return elseBranch != null ? elseBranch : new Stmt.Block(new ArrayList<>());
+    }
+
+    if (condition == stmt.condition && thenBranch == stmt.thenBranch &&
+        elseBranch == stmt.elseBranch) {
+      return stmt;
+    }
+    return new Stmt.If(condition, thenBranch, elseBranch);
+  }
+
+  @Override
+  public Stmt visitPrintStmt(Stmt.Print stmt) {
+    Expr expression = optimize(stmt.expression);
+    if (expression == stmt.expression) return stmt;
+    return new Stmt.Print(expression);
+  }
+
+  @Override
+  public Stmt visitReturnStmt(Stmt.Return stmt) {
+    if (stmt.value == null) return stmt;
+    Expr value = optimize(stmt.value);
+    if (value == stmt.value) return stmt;
+    return new Stmt.Return(stmt.keyword, value);
+  }
+
+  @Override
+  public Stmt visitVarStmt(Stmt.Var stmt) {
+    Expr initializer = stmt.initializer == null ? null : optimize(stmt.initializer);
+
+    // every read of the local comes after its declaration, which always
+    // gives it the same value
+    if (fold && stmt.local != null && !stmt.local.assigned &&
+        (initializer == null || isLiteral(initializer))) {
+      constants.put(stmt.local, initializer == null ? null : valueOf(initializer));
+    }
+
+    if (initializer == stmt.initializer) return stmt;
+    Stmt.Var var = new Stmt.Var(stmt.name, initializer);
+    var.local = stmt.local;
+    return var;
+  }
+
+  @Override
+  public Stmt visitWhileStmt(Stmt.While stmt) {
+    Expr condition = optimize(stmt.condition);
+    Stmt body = optimize(stmt.body);
+
+    if (deadCode && isLiteral(condition) && !Interpreter.isTruthy(valueOf(condition))) {
+      return new Stmt.Block(new ArrayList<>()); // the body never runs
+    }
+
+    if (condition == stmt.condition && body == stmt.body) return stmt;
+    return new Stmt.While(condition, body);
+  }
+
+  // copies the body of a function being inlined, with its parameters replaced,
+  // counting the nodes (nodes can't be shared: the engines keep state in them)
+  private static class Copier implements Expr.Visitor<Expr> {
+    final Map<Local, Object> literals = new HashMap<>();
+    final Map<Local, Local> temporaries = new HashMap<>();
+    // the callee's tail calls stay tail calls if the call is one
+    private final boolean tailCall;
+    int size = 0;
+    private boolean inlinable = true;
+
+    Copier(boolean tailCall) {
+      this.tailCall = tailCall;
+    }
+
+    // null if the body can't be inlined: it declares a function, or uses
+    // "this" or "super" (which a global function can't do anyway)
+    Expr copy(Expr expr) {
+      Expr copy = copyOf(expr);
+      return inlinable ? copy : null;
+    }
+
+    private Expr copyOf(Expr expr) {
+      size++;
+      return expr.accept(this);
+    }
+
+    @Override
+    public Expr visitAssignExpr(Expr.Assign expr) {
+      Expr.Assign assign = new Expr.Assign(expr.name, copyOf(expr.value));
+      assign.local = expr.local == null ? null : temporaries.get(expr.local);
+      assign.global = expr.global;
+      return assign;
+    }
+
+    @Override
+    public Expr visitBinaryExpr(Expr.Binary expr) {
+      return new Expr.Binary(copyOf(expr.left), expr.operator, copyOf(expr.right));
+    }
+
+    @Override
+    public Expr visitCallExpr(Expr.Call expr) {
+      List<Expr> arguments = new ArrayList<>();
+      for (Expr argument : expr.arguments) {
+        arguments.add(copyOf(argument));
+      }
+      Expr.Call call = new Expr.Call(copyOf(expr.callee), expr.paren, arguments);
+      call.tailCall = tailCall && expr.tailCall;
+      return call;
+    }
+
+    @Override
+    public Expr visitFunctionExpr(Expr.Function expr) {
+      inlinable = false;
+      return expr;
+    }
+
+    @Override
+    public Expr visitGetExpr(Expr.Get expr) {
+      return new Expr.Get(copyOf(expr.object), expr.name);
+    }
+
+    @Override
+    public Expr visitGroupingExpr(Expr.Grouping expr) {
+      return new Expr.Grouping(copyOf(expr.expression));
+    }
+
+    @Override
+    public Expr visitInlineExpr(Expr.Inline expr) {
+      // its slots are in the callee's frame: copy the call, which is inlined again
+      return expr.call.accept(this);
+    }
+
+    @Override
+    public Expr visitInvariantExpr(Expr.Invariant expr) {
+      return expr.expression.accept(this); // same, for the slot of a hoisted expression
+    }
+
+    @Override
+    public Expr visitLiteralExpr(Expr.Literal expr) {
+      return expr;
+    }
+
+    @Override
+    public Expr visitLogicalExpr(Expr.Logical expr) {
+      return new Expr.Logical(copyOf(expr.left), expr.operator, copyOf(expr.right));
+    }
+
+    @Override
+    public Expr visitSetExpr(Expr.Set expr) {
+      return new Expr.Set(copyOf(expr.object), expr.name, copyOf(expr.value));
+    }
+
+    @Override
+    public Expr visitSuperExpr(Expr.Super expr) {
+      inlinable = false;
+      return expr;
+    }
+
+    @Override
+    public Expr visitTernaryExpr(Expr.Ternary expr) {
+      return new Expr.Ternary(copyOf(expr.condition), copyOf(expr.thenBranch),
+          copyOf(expr.elseBranch));
+    }
+
+    @Override
+    public Expr visitThisExpr(Expr.This expr) {
+      inlinable = false;
+      return expr;
+    }
+
+    @Override
+    public Expr visitUnaryExpr(Expr.Unary expr) {
+      return new Expr.Unary(expr.operator, copyOf(expr.right));
+    }
+
+    @Override
+    public Expr visitVariableExpr(Expr.Variable expr) {
+      // the only locals of a global function returning an expression are its
+      // parameters, and it has no upvalues
+      if (expr.local != null && literals.containsKey(expr.local)) {
+        return new Expr.Literal(literals.get(expr.local));
+      }
+      Expr.Variable variable = new Expr.Variable(expr.name);
+      variable.local = expr.local == null ? null : temporaries.get(expr.local);
+      variable.global = expr.global;
+      return variable;
+    }
+  }
+}
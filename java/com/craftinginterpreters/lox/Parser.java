@@ -2,75 +2,124 @@ package com.craftinginterpreters.lox;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 import static com.craftinginterpreters.lox.TokenType.*;
 
 class Parser {
   private static class ParseError extends RuntimeException {}
 
-  private final List<Token> tokens;
+  private final TokenBuffer tokens;
   private int current = 0;
-
-  Parser(List<Token> tokens) {
-    this.tokens = tokens; // list of tokens to parse
+  // whether the bodies of the functions declared at the top level are only
+  // pre-parsed (see skipBody), and how deep in blocks, loops and functions
+  // the current statement is (0 at the top level)
+  private final boolean lazy;
+  private int depth = 0;
+  // how deep in expressions and statements the node being parsed is: the
+  // Resolver, the passes and the engines all walk the tree recursively, so
+  // a tree deeper than they can all walk on the Java stack is an error. Only
+  // what nests counts: an operand parsed by a call of expression() of its
+  // own, the body of a statement and the body of a function; an operand
+  // chained to the left of an infix operator and an "else if" don't. On a
+  // stack of 1 MB, every engine walks at least 620 levels of the costliest
+  // of them (a loop in a loop, in the flat engine), about 1.7 KB a level, and
+  // a chain of 1500 operators or "else if"s. The limit allows 4 KB a level
+  // of the stack the script runs on (8192 levels, see Lox.STACK_SIZE).
+  private static final int MAX_NESTING = (int)(Lox.STACK_SIZE / 4096);
+  private int nesting = 0;
+  // whether the ParseError being thrown is for a tree nested too deep:
+  // parsing on from inside it would only report it again and again, so the
+  // rest of the source is skipped
+  private boolean tooDeep = false;
+
+  Parser(TokenBuffer tokens) {
+    this(tokens, false);
+  }
+
+  Parser(TokenBuffer tokens, boolean lazy) {
+    this.tokens = tokens; // the tokens to parse
+    this.lazy = lazy;
   }
 
   List<Stmt> parse() {
     List<Stmt> statements = new ArrayList<>();
-    while (!isAtEnd()) {
-      statements.add(declaration());
+    tokens.reach(current);
+    try {
+      while (!isAtEnd()) {
+        statements.add(declaration());
+      }
+    } catch (ParseError error) {
+      // reported (only an error for a tree too deep gets here)
     }
     return statements;
   }
 
-  // consume the current token if it is of one of the given types
-  private boolean match(TokenType... types) {
-    for (TokenType type : types) {
-      if (check(type)) {
-        advance();
-        return true;
-      }
-    }
-    return false;
+  // the body of a function the Parser skipped, from its '{' (see LazyBody)
+  List<Stmt> body() {
+    advance();
+    nest("Statement nesting too deep."); // as in functionBody
+    return block();
+  }
+
+  // consume the current token if it is of the given type
+  private boolean match(TokenType type) {
+    if (!check(type)) return false;
+    advance();
+    return true;
   }
 
   // check if the next token is of a certain type or throw an error
+  private void expect(TokenType type, String message) {
+    if (!check(type)) throw error(peek(), message);
+    advance();
+  }
+
+  // same, returning the token for the AST to keep
   private Token consume(TokenType type, String message) {
-    if (check(type)) return advance();
-    throw error(peek(), message);
+    expect(type, message);
+    return kept();
   }
 
   // check the type of the current (unconsumed) token
   private boolean check(TokenType type) {
     if (isAtEnd()) return false;
-    return peek().type == type;
+    return tokens.type(current) == type;
   }
 
   // check the type of the next token
   private boolean checkNext(TokenType type) {
-    if (isAtEnd() || tokens.get(current + 1).type == EOF)
+    if (isAtEnd() || tokens.type(current + 1) == EOF)
       return false;
-    return tokens.get(current + 1).type == type;
+    return tokens.type(current + 1) == type;
   }
 
-  // consume and return the current token
-  private Token advance() {
+  // consume the current token (the Scanner's errors before the next one are
+  // reported now, see TokenBuffer.reach)
+  private void advance() {
     if (!isAtEnd()) current++;
-    return previous();
+    tokens.reach(current);
   }
 
   private boolean isAtEnd() {
-    return peek().type == EOF;
+    return tokens.type(current) == EOF;
   }
 
-  // return the current token yet to be consumed
+  // the current token yet to be consumed, and the last one consumed (each
+  // call makes a new Token from the buffer)
   private Token peek() {
-    return tokens.get(current);
+    return tokens.token(current);
   }
 
   private Token previous() {
-    return tokens.get(current - 1);
+    return tokens.token(current - 1);
+  }
+
+  // the last token consumed, for the AST to keep (none when skipping)
+  private Token kept() {
+    return skipping ? null : previous();
   }
 
   private ParseError error(Token token, String message) {
@@ -78,12 +127,20 @@ class Parser {
     return new ParseError();
   }
 
+  // one level deeper (the caller restores the level when it's done)
+  private void nest(String message) {
+    if (++nesting > MAX_NESTING) {
+      tooDeep = true;
+      throw error(peek(), message);
+    }
+  }
+
   private void synchronize() {
     advance();
     // look for the next statement
     while (!isAtEnd()) {
-      if (previous().type == SEMICOLON) return;
-      switch (peek().type) {
+      if (tokens.type(current - 1) == SEMICOLON) return;
+      switch (tokens.type(current)) {
         case CLASS:
         case FUN:
         case VAR:
@@ -99,6 +156,7 @@ class Parser {
   }
 
   private Stmt declaration() {
+    int depth = this.depth;
     try {
       if (match(CLASS)) return classDeclaration();
       if (check(FUN) && checkNext(IDENTIFIER)) {
@@ -109,163 +167,164 @@ class Parser {
       if (match(VAR)) return varDeclaration();
       return statement();
     } catch (ParseError error) {
+      if (tooDeep) throw error;
+      this.depth = depth; // leave what the error left open
       synchronize();
       return null;
     }
   }
 
-  private Expr expression() {
-    return comma();
-  }
-
-  private Expr comma() {
-    Expr expr = assignment();
-
-    while (match(COMMA)) {
-      Token operator = previous();
-      Expr right = assignment();
-      expr = new Expr.Binary(expr, operator, right);
-    }
-
-    return expr;
-  }
-
-  private Expr assignment() {
-    Expr expr = ternary();
-
-    if (match(EQUAL)) {
-      Token equals = previous();
-      Expr value = assignment();
-
-      // convert the expression on the left to the correct AST node
-      if (expr instanceof Expr.Variable) {
-        Token name = ((Expr.Variable)expr).name;
-        return new Expr.Assign(name, value);
-      } else if (expr instanceof Expr.Get) {
-        Expr.Get get = (Expr.Get)expr;
-        return new Expr.Set(get.object, get.name, value);
-      }
-
-      error(equals, "Invalid assignment target.");
-    }
-    return expr;
-  }
-
-  private Expr ternary() {
-    Expr expr = or();
-
-    if (match(QUESTION)) {
-      Expr thenBranch = ternary(); // allow nesting 
-      consume(COLON, "Expect : after ? for ternary operator.");
-      Expr elseBranch = ternary();
-
-      return new Expr.Ternary(expr, thenBranch, elseBranch);
-    }
-
-    return expr;
+  // Expressions are parsed by precedence climbing (a Pratt parser): the
+  // precedence of each infix operator is looked up in a table indexed by its
+  // token type, so an operand takes one call whatever its precedence, instead
+  // of a method per level each looking at the token for its own operators.
+  // From the loosest to the tightest:
+  private static final int PREC_NONE = 0;       // not an infix operator
+  private static final int PREC_COMMA = 1;      // ,
+  private static final int PREC_ASSIGNMENT = 2; // =
+  private static final int PREC_TERNARY = 3;    // ?:
+  private static final int PREC_OR = 4;         // or
+  private static final int PREC_AND = 5;        // and
+  private static final int PREC_EQUALITY = 6;   // == !=
+  private static final int PREC_COMPARISON = 7; // < > <= >=
+  private static final int PREC_TERM = 8;      // + -
+  private static final int PREC_FACTOR = 9;     // * /
+  private static final int PREC_UNARY = 10;     // ! - (prefix)
+  private static final int PREC_CALL = 11;      // . ()
+
+  private static final int[] precedences =
+      new int[TokenType.values().length];
+
+  static {
+    precedences[COMMA.ordinal()] = PREC_COMMA;
+    precedences[EQUAL.ordinal()] = PREC_ASSIGNMENT;
+    precedences[QUESTION.ordinal()] = PREC_TERNARY;
+    precedences[OR.ordinal()] = PREC_OR;
+    precedences[AND.ordinal()] = PREC_AND;
+    precedences[BANG_EQUAL.ordinal()] = PREC_EQUALITY;
+    precedences[EQUAL_EQUAL.ordinal()] = PREC_EQUALITY;
+    precedences[GREATER.ordinal()] = PREC_COMPARISON;
+    precedences[GREATER_EQUAL.ordinal()] = PREC_COMPARISON;
+    precedences[LESS.ordinal()] = PREC_COMPARISON;
+    precedences[LESS_EQUAL.ordinal()] = PREC_COMPARISON;
+    precedences[MINUS.ordinal()] = PREC_TERM;
+    precedences[PLUS.ordinal()] = PREC_TERM;
+    precedences[SLASH.ordinal()] = PREC_FACTOR;
+    precedences[STAR.ordinal()] = PREC_FACTOR;
+    precedences[LEFT_PAREN.ordinal()] = PREC_CALL;
+    precedences[DOT.ordinal()] = PREC_CALL;
   }
 
-  private Expr or() {
-    Expr expr = and();
-
-    while (match(OR)) {
-      Token operator = previous();
-      Expr right = and();
-      expr = new Expr.Logical(expr, operator, right);
-    }
-
-    return expr;
-  }
-
-  private Expr and() {
-    Expr expr = equality();
-
-    while (match(AND)) {
-      Token operator = previous();
-      Expr right = equality();
-      expr = new Expr.Logical(expr, operator, right);
-    }
-
-    return expr;
-  }
-
-  private Expr equality() {
-    Expr expr = comparison();
-
-    // continue as long as != or == are found
-    while (match(BANG_EQUAL, EQUAL_EQUAL)) {
-      Token operator = previous();
-      Expr right = comparison();
-      expr = new Expr.Binary(expr, operator, right);
-    }
-
-    return expr;
+  private Expr expression() {
+    return expression(PREC_COMMA);
   }
 
-  private Expr comparison() {
-    Expr expr = term();
-
-    while (match(GREATER, GREATER_EQUAL, LESS, LESS_EQUAL)) {
-      Token operator = previous();
-      Expr right = term();
-      expr = new Expr.Binary(expr, operator, right);
+  // parse an expression whose infix operators bind at least as tightly as the
+  // given precedence
+  private Expr expression(int precedence) {
+    int nesting = this.nesting;
+    nest("Expression nesting too deep.");
+    try {
+      return infix(prefix(), precedence);
+    } finally {
+      this.nesting = nesting;
     }
-
-    return expr;
   }
 
-  private Expr term() {
-    Expr expr = factor();
-
-    while (match(MINUS, PLUS)) {
-      Token operator = previous();
-      Expr right = factor();
-      expr = new Expr.Binary(expr, operator, right);
+  // the operand, with its prefix operators
+  private Expr prefix() {
+    Expr expr;
+    switch (tokens.type(current)) {
+      case BANG:
+      case MINUS: {
+        advance();
+        Token operator = kept();
+        Expr right = expression(PREC_UNARY);
+        expr = skipping ? null : new Expr.Unary(operator, right);
+        break;
+      }
+      case PLUS: // error production
+        advance();
+        error(previous(), "Unary '+' expressions are not supported.");
+        expr = infix(primary(), PREC_CALL);
+        break;
+      default:
+        expr = primary();
+        break;
     }
-
     return expr;
   }
 
-  private Expr factor() {
-    Expr expr = unary();
+  // parse the infix operators following the left operand, as long as they
+  // bind at least as tightly as the given precedence
+  private Expr infix(Expr expr, int precedence) {
+    while (true) {
+      TokenType type = tokens.type(current);
+      int operatorPrecedence = precedences[type.ordinal()];
+      if (operatorPrecedence == PREC_NONE ||
+          operatorPrecedence < precedence) {
+        return expr;
+      }
+      advance();
 
-    while (match(SLASH, STAR)) {
-      Token operator = previous();
-      Expr right = unary();
-      expr = new Expr.Binary(expr, operator, right);
+      switch (type) {
+        case EQUAL:
+          expr = assignment(expr);
+          break;
+        case QUESTION: {
+          Expr thenBranch = expression(PREC_TERNARY); // allow nesting
+          expect(COLON, "Expect : after ? for ternary operator.");
+          Expr elseBranch = expression(PREC_TERNARY);
+          expr = skipping ? null : new Expr.Ternary(expr, thenBranch, elseBranch);
+          break;
+        }
+        case OR:
+        case AND: {
+          Token operator = kept();
+          Expr right = expression(operatorPrecedence + 1);
+          expr = skipping ? null : new Expr.Logical(expr, operator, right);
+          break;
+        }
+        case LEFT_PAREN:
+          expr = finishCall(expr);
+          break;
+        case DOT: {
+          Token name = consume(IDENTIFIER, "Expect property name after '.'.");
+          expr = skipping ? SKIPPED_GET : new Expr.Get(expr, name);
+          break;
+        }
+        default: {
+          // the left-associative binary operators, the comma included
+          Token operator = kept();
+          Expr right = expression(operatorPrecedence + 1);
+          expr = skipping ? null : new Expr.Binary(expr, operator, right);
+          break;
+        }
+      }
     }
-
-    return expr;
   }
 
-  private Expr unary() {
-    if (match(BANG, MINUS)) {
-      Token operator = previous();
-      Expr right = unary();
-      return new Expr.Unary(operator, right);
-    } else if (match(PLUS)) { // error production
-      Token operator = previous();
-      error(operator, "Unary '+' expressions are not supported.");
+  private Expr assignment(Expr target) {
+    Token equals = previous();
+    // the variable is the token before the '='
+    if (skipping && target == SKIPPED_VARIABLE) {
+      skipped.assigned.add(Symbols.intern(tokens.lexeme(current - 2)));
     }
+    Expr value = expression(PREC_ASSIGNMENT); // right-associative
 
-    return call();
-  }
-
-  public Expr call() {
-    Expr expr = primary();
-
-    while (true) {
-      if (match(LEFT_PAREN)) {
-        expr = finishCall(expr);
-      } else if (match(DOT)) {
-        Token name = consume(IDENTIFIER, "Expect property name after '.'.");
-        expr = new Expr.Get(expr, name);
-      } else {
-        break;
-      }
+    // convert the expression on the left to the correct AST node
+    if (target instanceof Expr.Variable) {
+      if (skipping) return null;
+      Token name = ((Expr.Variable)target).name;
+      return new Expr.Assign(name, value);
+    } else if (target instanceof Expr.Get) {
+      if (skipping) return null;
+      Expr.Get get = (Expr.Get)target;
+      return new Expr.Set(get.object, get.name, value);
     }
 
-    return expr;
+    error(equals, "Invalid assignment target.");
+    return target;
   }
 
   private Expr finishCall(Expr callee) {
@@ -276,66 +335,91 @@ class Parser {
         if (arguments.size() >= 255) {
           error(peek(), "Can't have more than 255 arguments.");
         }
-        arguments.add(assignment()); // skip comma operator
+        arguments.add(expression(PREC_ASSIGNMENT)); // skip comma operator
       } while (match(COMMA));
     }
 
     Token paren = consume(RIGHT_PAREN, "Expect ')' after arguments.");
-    return new Expr.Call(callee, paren, arguments);
+    return skipping ? null : new Expr.Call(callee, paren, arguments);
   }
 
   private Expr primary() {
-    if (match(FALSE)) return new Expr.Literal(false);
-    if (match(TRUE)) return new Expr.Literal(true);
-    if (match(NIL)) return new Expr.Literal(null);
+    switch (tokens.type(current)) {
+      case FALSE: advance(); return skipping ? null : new Expr.Literal(false);
+      case TRUE: advance(); return skipping ? null : new Expr.Literal(true);
+      case NIL: advance(); return skipping ? null : new Expr.Literal(null);
 
-    if (match(NUMBER, STRING)) {
-      return new Expr.Literal(previous().literal);
-    }
+      case NUMBER:
+      case STRING:
+        advance();
+        return skipping ? null : new Expr.Literal(tokens.literal(current - 1));
 
-    if (match(SUPER)) {
-      Token keyword = previous();
-      consume(DOT, "Expect '.' after 'super'.");
-      Token method = consume(IDENTIFIER, "Expect superclass method name.");
-      return new Expr.Super(keyword, method);
-    }
+      case SUPER: {
+        advance();
+        Token keyword = kept();
+        expect(DOT, "Expect '.' after 'super'.");
+        Token method = consume(IDENTIFIER, "Expect superclass method name.");
+        if (skipping) {
+          suspect(); // the Resolver checks the class has a superclass
+          return null;
+        }
+        return new Expr.Super(keyword, method);
+      }
 
-    if (match(THIS)) return new Expr.This(previous());
+      case THIS:
+        advance();
+        if (skipping) {
+          if (skippedType == Resolver.FunctionType.FUNCTION) suspect();
+          return null;
+        }
+        return new Expr.This(previous());
 
-    if (match(IDENTIFIER)) {
-      return new Expr.Variable(previous());
-    }
+      case IDENTIFIER:
+        advance();
+        if (skipping) {
+          if (tokens.lexeme(current - 1).equals(initializing)) suspect();
+          return SKIPPED_VARIABLE;
+        }
+        return new Expr.Variable(previous());
 
-    if (match(LEFT_PAREN)) {
-      Expr expr = expression();
-      // look for a closing ) or throw an error
-      consume(RIGHT_PAREN, "Expect ')' after expression.");
-      return new Expr.Grouping(expr);
-    }
+      case LEFT_PAREN: {
+        advance();
+        Expr expr = expression();
+        // look for a closing ) or throw an error
+        expect(RIGHT_PAREN, "Expect ')' after expression.");
+        return skipping ? null : new Expr.Grouping(expr);
+      }
 
-    if (match(FUN)) {
-      return lambda("function");
-    }
+      case FUN: advance(); return lambda("function", Resolver.FunctionType.FUNCTION);
 
-    // this token cannot start an expression
-    throw error(peek(), "Expect expression.");
+      default:
+        // this token cannot start an expression
+        throw error(peek(), "Expect expression.");
+    }
   }
 
   private Stmt statement() {
-    if (match(FOR)) return forStatement();
-    if (match(IF)) return ifStatement();
-    if (match(PRINT)) return printStatement();
-    if (match(RETURN)) return returnStatement();
-    if (match(WHILE)) return whileStatement();
-    if (match(LEFT_BRACE)) return new Stmt.Block(block());
-    if (match(BREAK)) return breakStatement();
-    if (match(CONTINUE)) return continueStatement();
+    int nesting = this.nesting;
+    nest("Statement nesting too deep.");
+    try {
+      if (match(FOR)) return forStatement();
+      if (match(IF)) return ifStatement();
+      if (match(PRINT)) return printStatement();
+      if (match(RETURN)) return returnStatement();
+      if (match(WHILE)) return whileStatement();
+      if (match(LEFT_BRACE)) return blockStatement();
+      if (match(BREAK)) return breakStatement();
+      if (match(CONTINUE)) return continueStatement();
 
-    return expressionStatement();
+      return expressionStatement();
+    } finally {
+      this.nesting = nesting;
+    }
   }
 
   private Stmt forStatement() {
-    consume(LEFT_PAREN, "Expect '(' after 'for'.");
+    depth++;
+    expect(LEFT_PAREN, "Expect '(' after 'for'.");
 
     Stmt initializer;
     if (match(SEMICOLON)) {
@@ -350,155 +434,280 @@ class Parser {
     if (!check(SEMICOLON)) {
       condition = expression();
     }
-    consume(SEMICOLON, "Expect ';' after loop condition.");
+    expect(SEMICOLON, "Expect ';' after loop condition.");
 
     Expr increment = null;
     if (!check(RIGHT_PAREN)) {
       increment = expression();
     }
-    consume(RIGHT_PAREN, "Expect ')' after for clauses.");
+    expect(RIGHT_PAREN, "Expect ')' after for clauses.");
     Stmt body = statement();
+    depth--;
+    if (skipping) return null;
 
+    // (the blocks' lists can shrink, as those of other blocks: the Optimizer
+    // removes what follows a statement that returns, breaks or continues)
     if (increment != null) { // append the increment to the body
-      body = new Stmt.Block(Arrays.asList(body, new Stmt.Expression(increment)));
+      body = new Stmt.Block(new ArrayList<>(
+          Arrays.asList(body, new Stmt.Expression(increment))));
     }
 
     // desugaring to while loop
     if (condition == null) condition = new Expr.Literal(true);
-    body = new Stmt.While(condition, body); 
+    body = new Stmt.While(condition, body);
 
     if (initializer != null) { // prepend the initializer to the body
-      body = new Stmt.Block(Arrays.asList(initializer, body));
+      body = new Stmt.Block(new ArrayList<>(Arrays.asList(initializer, body)));
     }
 
     return body;
   }
 
   private Stmt ifStatement() {
-    consume(LEFT_PAREN, "Expect '(' after 'if'.");
+    expect(LEFT_PAREN, "Expect '(' after 'if'.");
     Expr condition = expression();
-    consume(RIGHT_PAREN, "Expect ')' after if condition.");
+    expect(RIGHT_PAREN, "Expect ')' after if condition.");
     Stmt thenBranch = statement();
     Stmt elseBranch = null;
 
     if (match(ELSE)) {
-      elseBranch = statement();
+      // an "else if" continues the chain rather than nesting in it
+      elseBranch = match(IF) ? ifStatement() : statement();
     }
 
-    return new Stmt.If(condition, thenBranch, elseBranch);
+    return skipping ? null : new Stmt.If(condition, thenBranch, elseBranch);
   }
 
   private Stmt printStatement() {
     Expr value = expression();
-    consume(SEMICOLON, "Expect ';' after value.");
-    return new Stmt.Print(value);
+    expect(SEMICOLON, "Expect ';' after value.");
+    return skipping ? null : new Stmt.Print(value);
   }
 
   private Stmt returnStatement() {
-    Token keyword = previous();
+    Token keyword = kept();
     Expr value = null;
     if (!check(SEMICOLON)) {
+      if (skipping && skippedType == Resolver.FunctionType.INITIALIZER) suspect();
       value = expression();
     }
 
-    consume(SEMICOLON, "Expect ';' after return value.");
-    return new Stmt.Return(keyword, value);
+    expect(SEMICOLON, "Expect ';' after return value.");
+    return skipping ? null : new Stmt.Return(keyword, value);
   }
 
   private Stmt whileStatement() {
-    consume(LEFT_PAREN, "Expect '(' after 'while'.");
+    depth++;
+    expect(LEFT_PAREN, "Expect '(' after 'while'.");
     Expr condition = expression();
-    consume(RIGHT_PAREN, "Expect ')' after condition.");
+    expect(RIGHT_PAREN, "Expect ')' after condition.");
     Stmt body = statement();
-
-    return new Stmt.While(condition, body);
+    depth--;
+    return skipping ? null : new Stmt.While(condition, body);
   }
 
   private Stmt breakStatement() {
-    Token keyword = previous();
-    consume(SEMICOLON, "Expect ';' after 'break'.");
-    return new Stmt.Break(keyword);
+    Token keyword = kept();
+    if (skipping) suspect(); // the Resolver checks it's in a loop
+    expect(SEMICOLON, "Expect ';' after 'break'.");
+    return skipping ? null : new Stmt.Break(keyword);
   }
 
   private Stmt continueStatement() {
-    Token keyword = previous();
-    consume(SEMICOLON, "Expect ';' after 'continue'.");
-    return new Stmt.Continue(keyword);
+    Token keyword = kept();
+    if (skipping) suspect();
+    expect(SEMICOLON, "Expect ';' after 'continue'.");
+    return skipping ? null : new Stmt.Continue(keyword);
   }
 
   private Stmt expressionStatement() {
     Expr expr = expression();
-    consume(SEMICOLON, "Expect ';' after expression.");
-    return new Stmt.Expression(expr);
+    expect(SEMICOLON, "Expect ';' after expression.");
+    return skipping ? null : new Stmt.Expression(expr);
+  }
+
+  private Stmt blockStatement() {
+    List<Stmt> statements = block();
+    return skipping ? null : new Stmt.Block(statements);
   }
 
   private List<Stmt> block() {
     List<Stmt> statements = new ArrayList<>();
 
+    depth++;
     while (!check(RIGHT_BRACE) && !isAtEnd()) {
       statements.add(declaration());
     }
 
-    consume(RIGHT_BRACE, "Expect '}' after block.");
+    expect(RIGHT_BRACE, "Expect '}' after block.");
+    depth--;
     return statements;
   }
 
   private Stmt classDeclaration() {
     Token name = consume(IDENTIFIER, "Expect class name.");
+    int nameIndex = current - 1;
+    declare(nameIndex);
 
     Expr.Variable superclass = null;
-    if (match(LESS)) {
-      consume(IDENTIFIER, "Expect superclass name.");
-      superclass = new Expr.Variable(previous());
+    boolean hasSuperclass = match(LESS);
+    if (hasSuperclass) {
+      expect(IDENTIFIER, "Expect superclass name.");
+      if (skipping && tokens.lexeme(current - 1).equals(tokens.lexeme(nameIndex))) {
+        suspect();
+      }
+      if (!skipping) superclass = new Expr.Variable(previous());
     }
 
-    consume(LEFT_BRACE, "Expect '{' before class body.");
+    expect(LEFT_BRACE, "Expect '{' before class body.");
 
     List<Stmt.Function> methods = new ArrayList<>();
     while (!check(RIGHT_BRACE) && !isAtEnd()) {
       methods.add(function("method"));
     }
 
-    consume(RIGHT_BRACE, "Expect '}' after class body.");
-    return new Stmt.Class(name, superclass, methods);
+    expect(RIGHT_BRACE, "Expect '}' after class body.");
+    return skipping ? null : new Stmt.Class(name, superclass, methods);
   }
 
   private Stmt.Function function(String kind) {
     Token name = consume(IDENTIFIER, "Expect " + kind + " name.");
-    Expr.Function lambda = lambda(kind);
+    Resolver.FunctionType type = functionType(kind, tokens.lexeme(current - 1));
+    if (type == Resolver.FunctionType.FUNCTION) declare(current - 1);
+    Expr.Function lambda = lambda(kind, type);
+
+    return skipping ? null : new Stmt.Function(name, lambda);
+  }
 
-    return new Stmt.Function(name, lambda.params, lambda.body);
+  // what the Resolver resolves the function as
+  private static Resolver.FunctionType functionType(String kind, String name) {
+    if (!kind.equals("method")) return Resolver.FunctionType.FUNCTION;
+    return name.equals("init") ?
+        Resolver.FunctionType.INITIALIZER : Resolver.FunctionType.METHOD;
   }
 
   // parse the list of parameters and the body of a (possibly anonymous) function
-  private Expr.Function lambda(String kind) {
-    consume(LEFT_PAREN, "Expect '(' after " + kind + " name.");
+  private Expr.Function lambda(String kind, Resolver.FunctionType type) {
+    List<Token> parameters = parameters(kind);
+    expect(LEFT_BRACE, "Expect '{' before " + kind + " body.");
+    if (lazy && depth == 0) {
+      Expr.Function function = new Expr.Function(parameters, new ArrayList<>());
+      function.lazy = skipBody(type, parameters);
+      return function;
+    }
+    List<Stmt> body = functionBody(parameters);
+
+    return skipping ? null : new Expr.Function(parameters, body);
+  }
+
+  // the body of a function, after its '{' (a level deeper, as the body of a
+  // statement is)
+  private List<Stmt> functionBody(List<Token> parameters) {
+    int nesting = this.nesting;
+    nest("Statement nesting too deep.");
+    try {
+      for (Token parameter : parameters) declare(parameter.lexeme);
+      return block();
+    } finally {
+      this.nesting = nesting;
+    }
+  }
+
+  private List<Token> parameters(String kind) {
+    expect(LEFT_PAREN, "Expect '(' after " + kind + " name.");
     List<Token> parameters = new ArrayList<>();
     if (!check(RIGHT_PAREN)) {
       do {
         if (parameters.size() >= 255) {
           error(peek(), "Can't have more than 255 parameters.");
         }
-        parameters.add(consume(IDENTIFIER, "Expect parameter name."));
+        expect(IDENTIFIER, "Expect parameter name.");
+        parameters.add(previous()); // kept when skipping too, for their names
       } while (match(COMMA));
     }
-    consume(RIGHT_PAREN, "Expect ')' after parameters.");
-    consume(LEFT_BRACE, "Expect '{' before " + kind + " body.");
-    List<Stmt> body = block();
-
-    return new Expr.Function(parameters, body);
+    expect(RIGHT_PAREN, "Expect ')' after parameters.");
+    return parameters;
   }
 
   private Stmt varDeclaration() {
     Token name = consume(IDENTIFIER, "Expect variable name.");
+    declare(current - 1);
 
     // check if only declaration or with initialization
     Expr initializer = null;
     if (match(EQUAL)) {
+      String enclosing = initializing;
+      if (skipping) initializing = tokens.lexeme(current - 2);
       initializer = expression();
-    }
+      initializing = enclosing;
+    }
+
+    expect(SEMICOLON, "Expect ';' after variable declaration.");
+    return skipping ? null : new Stmt.Var(name, initializer);
+  }
+
+  // Pre-parsing: the body of a function declared at the top level is only
+  // scanned when the Parser is lazy, and parsed the first time the function
+  // runs (see Lox.parseBody). The scan is the parse above, reporting the same
+  // syntax errors, with skipping set: it makes no nodes (nor tokens, but for
+  // names), so it costs little more than scanning the tokens. The expressions
+  // it returns are null, but for the variables and properties, which can be
+  // assigned. The Resolver's errors are left to the Resolver: a body with
+  // anything in it that may be one is resolved with the rest of the program
+  // after all, so that its errors are reported there and in order. The scan
+  // doesn't track scopes, loops or classes to tell (see suspect).
+
+  private static final Expr SKIPPED_VARIABLE = new Expr.Variable(null);
+  private static final Expr SKIPPED_GET = new Expr.Get(null, null);
+
+  private boolean skipping = false;
+  private LazyBody skipped; // the body being scanned
+  private Resolver.FunctionType skippedType; // what it's the body of
+  // the names declared anywhere in the body, and the variable whose
+  // initializer is being scanned
+  private final Set<String> declared = new HashSet<>();
+  private String initializing = null;
+
+  // scan the body of a function, after its '{', keeping its source
+  private LazyBody skipBody(Resolver.FunctionType type, List<Token> parameters) {
+    skipped = new LazyBody();
+    skipped.line = tokens.line(current - 1);
+    tokens.keep(current - 1);
+    skipping = true;
+    skippedType = type;
 
-    consume(SEMICOLON, "Expect ';' after variable declaration.");
-    return new Stmt.Var(name, initializer);
+    try {
+      boolean returns = check(RETURN);
+      // a body that only returns may be inlined
+      skipped.returnsOnly = functionBody(parameters).size() == 1 && returns;
+      skipped.source = tokens.source(current - 1);
+      return skipped;
+    } finally { // a syntax error can leave an initializer open
+      tokens.release();
+      declared.clear();
+      initializing = null;
+      skipping = false;
+      skipped = null;
+    }
+  }
+
+  // The body may have an error the Resolver reports. The checks only need to
+  // find all of them, so they are coarse: any "super", "break" or "continue";
+  // "this" in a function that isn't a method; a value returned anywhere in an
+  // initializer; a class inheriting from a class of the same name; a name
+  // declared twice, in any scopes; a variable's name in its own initializer.
+  // test/run.sh checks that test/err_lazy_order.lox has every error the
+  // Resolver reports, so that a new one can't be missed here.
+  private void suspect() {
+    skipped.suspect = true;
+  }
+
+  // the name is the token at the index
+  private void declare(int index) {
+    if (skipping) declare(tokens.lexeme(index));
+  }
+
+  private void declare(String name) {
+    if (skipping && !declared.add(name)) suspect();
   }
 }
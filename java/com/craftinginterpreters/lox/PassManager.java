@@ -0,0 +1,50 @@
+package com.craftinginterpreters.lox;
+
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+
+// Runs the passes that rewrite the resolved AST before an engine runs it.
+// They are all enabled by default; each can be turned off on its own (Lox's
+// --no-<pass> option) to measure what it's worth.
+class PassManager {
+  enum Pass {
+    FOLD, // fold constant operations and propagate constant locals (Optimizer)
+    INLINE, // inline calls to small global functions (Optimizer)
+    DCE, // remove unreachable statements and branches (Optimizer)
+    TAILREC, // turn functions calling themselves in tail position into loops (Optimizer)
+    LICM // hoist loop-invariant expressions out of loops (Hoister)
+  }
+
+  private final Set<Pass> enabled = EnumSet.allOf(Pass.class);
+
+  void disable(Pass pass) {
+    enabled.remove(pass);
+  }
+
+  boolean isEnabled(Pass pass) {
+    return enabled.contains(pass);
+  }
+
+  // rewrites the statements in place, and returns the size the top level's
+  // frame needs (the passes add slots to the frames for their temporaries)
+  int run(List<Stmt> statements, int frameSize) {
+    Optimizer optimizer = new Optimizer(this, frameSize);
+    optimizer.optimize(statements);
+    frameSize = optimizer.frameSize();
+
+    if (isEnabled(Pass.LICM)) {
+      Hoister hoister = new Hoister(frameSize);
+      hoister.hoist(statements);
+      frameSize = hoister.frameSize();
+    }
+    return frameSize;
+  }
+
+  // the same for the body of a function the Parser skipped, once it's parsed
+  // and resolved (the temporaries go in the function's own frame)
+  void run(Expr.Function function) {
+    new Optimizer(this, 0).optimize(function);
+    if (isEnabled(Pass.LICM)) new Hoister(0).hoist(function);
+  }
+}
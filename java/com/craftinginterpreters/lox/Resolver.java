@@ -1,29 +1,68 @@
 package com.craftinginterpreters.lox;
 
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Stack;
 
 class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
-  private final Interpreter interpreter;
-  private final Stack<Map<String, Boolean>> scopes = new Stack<>();
+  private final Environment globals;
+  // in the REPL any later line may assign a global, so none of them is constant
+  private final boolean interactive;
+  private final Stack<Scope> scopes = new Stack<>();
+  private Frame frame = new Frame(null); // the top-level code has a frame too
   private FunctionType currentFunction = FunctionType.NONE;
   private ClassType currentClass = ClassType.NONE;
   private int loopDepth = 0;
 
-  Resolver(Interpreter interpreter) {
-    this.interpreter = interpreter;
+  Resolver(Environment globals, boolean interactive) {
+    this.globals = globals;
+    this.interactive = interactive;
   }
 
-  private enum FunctionType {
+  private static class Scope {
+    final Map<String, Local> locals = new HashMap<>();
+    final Frame frame; // the frame of the function the scope belongs to
+    final int firstSlot;
+
+    Scope(Frame frame) {
+      this.frame = frame;
+      firstSlot = frame.slots;
+    }
+  }
+
+  // the layout of the frame of the function being resolved
+  private static class Frame {
+    final Frame enclosing;
+    int slots = 0; // slots taken by the scopes open right now
+    int size = 0; // slots the function needs, as sibling scopes reuse theirs
+    // where a closure of the function gets each of its upvalues: a slot of the
+    // enclosing frame, or upvalue i of the enclosing closure encoded as -1 - i
+    final List<Integer> upvalues = new ArrayList<>();
+    final Map<Local, Integer> upvalueIndexes = new HashMap<>();
+
+    Frame(Frame enclosing) {
+      this.enclosing = enclosing;
+    }
+
+    Local allocate() {
+      Local local = new Local(slots++);
+      size = Math.max(size, slots);
+      return local;
+    }
+  }
+
+  // the Parser uses these too, to find what the Resolver may report an error
+  // for in the bodies it skips
+  enum FunctionType {
     NONE,
     FUNCTION,
     INITIALIZER,
     METHOD
   }
 
-  private enum ClassType {
+  enum ClassType {
     NONE,
     CLASS,
     SUBCLASS // class with a superclass
@@ -42,7 +81,7 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     ClassType enclosingClass = currentClass;
     currentClass = ClassType.CLASS;
 
-    declare(stmt.name);
+    stmt.local = declare(stmt.name);
     define(stmt.name);
 
     if (stmt.superclass != null && stmt.name.lexeme.equals(stmt.superclass.name.lexeme)) {
@@ -56,24 +95,18 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 
     if (stmt.superclass != null) {
       beginScope(); // create a scope to bind "super" to the superclass
-      scopes.peek().put("super", true);
+      stmt.superLocal = defineName("super"); // the methods capture it
     }
 
-    beginScope(); 
-    scopes.peek().put("this", true);
-    // when a 'this' expression is found inside a method, it will resolve to this scope
-
     for (Stmt.Function method : stmt.methods) { // resolve method declarations
       FunctionType declaration = FunctionType.METHOD;
       if (method.name.lexeme.equals("init")) {
         declaration = FunctionType.INITIALIZER;
       }
 
-      resolveFunction(method.params, method.body, declaration);
+      resolveFunction(method.function, declaration);
     }
 
-    endScope(); // "this" scope
-
     if (stmt.superclass != null) endScope(); // "super" scope
 
     currentClass = enclosingClass;
@@ -87,10 +120,17 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
       return null;
     }
 
-    resolveLocal(expr, expr.keyword);
+    // "this" is slot 0 of the method's frame
+    expr.local = local("this");
+    if (expr.local == null) expr.upvalue = upvalue("this");
     return null;
   }
 
+  // the number of slots the top-level code needs for the locals of its blocks
+  int frameSize() {
+    return frame.size;
+  }
+
   void resolve(List<Stmt> statements) {
     for (Stmt statement : statements) {
       resolve(statement);
@@ -106,16 +146,17 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
   }
 
   private void beginScope() {
-    scopes.push(new HashMap<String, Boolean>());
+    scopes.push(new Scope(frame));
   }
 
   private void endScope() {
-    scopes.pop();
+    // the slots of the scope's locals are free for the next scope
+    frame.slots = scopes.pop().firstSlot;
   }
 
   @Override
   public Void visitVarStmt(Stmt.Var stmt) {
-    declare(stmt.name);
+    stmt.local = declare(stmt.name);
     if (stmt.initializer != null) {
       resolve(stmt.initializer);
     }
@@ -123,76 +164,201 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     return null;
   }
 
-  private void declare(Token name) {
-    if (scopes.isEmpty()) return;
-    Map<String, Boolean> scope = scopes.peek();
+  // returns null for a global
+  private Local declare(Token name) {
+    if (scopes.isEmpty()) {
+      GlobalCell cell = global(name);
+      if (cell.declared) cell.constant = false; // defined again
+      cell.declared = true;
+      cell.function = null;
+      return null;
+    }
+    Map<String, Local> scope = scopes.peek().locals;
     if (scope.containsKey(name.lexeme)) {
       // don't allow multiple local variables with the same name
       Lox.error(name, "Already a variable with this name in this scope.");
     }
-    scope.put(name.lexeme, false);
+    Local local = frame.allocate();
+    scope.put(name.lexeme, local);
+    return local;
   }
 
   private void define(Token name) {
     if (scopes.isEmpty()) return;
-    scopes.peek().put(name.lexeme, true);
+    scopes.peek().locals.get(name.lexeme).defined = true;
+  }
+
+  // declare and define a variable introduced implicitly ("this" and "super")
+  private Local defineName(String name) {
+    Local local = frame.allocate();
+    local.defined = true;
+    scopes.peek().locals.put(name, local);
+    return local;
   }
 
   @Override
   public Void visitVariableExpr(Expr.Variable expr) {
-    if (!scopes.isEmpty() && scopes.peek().get(expr.name.lexeme) == Boolean.FALSE) {
+    if (!scopes.isEmpty() && scopes.peek().locals.containsKey(expr.name.lexeme)
+        && !scopes.peek().locals.get(expr.name.lexeme).defined) {
       Lox.error(expr.name, "Can't read local variable in its own initializer.");
     }
-    resolveLocal(expr, expr.name);
+    expr.local = local(expr.name.lexeme);
+    if (expr.local == null) expr.upvalue = upvalue(expr.name.lexeme);
+    if (expr.local == null && expr.upvalue == -1) expr.global = global(expr.name);
     return null;
   }
 
-  private void resolveLocal(Expr expr, Token name) {
+  // a name that isn't declared in any enclosing scope is assumed to be global
+  private GlobalCell global(Token name) {
+    GlobalCell cell = globals.cell(name.symbol);
+    if (interactive) cell.constant = false;
+    return cell;
+  }
+
+  // the local the name refers to, in any enclosing function, or null if it's global
+  private Local declaration(String name) {
     for (int i = scopes.size() - 1; i >= 0; i--) {
-      if (scopes.get(i).containsKey(name.lexeme)) {
-        interpreter.resolve(expr, scopes.size() - 1 - i);
-        return;
+      Local local = scopes.get(i).locals.get(name);
+      if (local != null) return local;
+    }
+    return null;
+  }
+
+  // the variable if it's a local of the current function, otherwise null
+  private Local local(String name) {
+    for (int i = scopes.size() - 1; i >= 0; i--) {
+      Local local = scopes.get(i).locals.get(name);
+      if (local != null) return scopes.get(i).frame == frame ? local : null;
+    }
+    return null;
+  }
+
+  // the index of the current function's upvalue for a variable declared by an
+  // enclosing function, or -1 if it isn't one (it's assumed to be global)
+  private int upvalue(String name) {
+    for (int i = scopes.size() - 1; i >= 0; i--) {
+      Local local = scopes.get(i).locals.get(name);
+      if (local != null) {
+        Frame owner = scopes.get(i).frame;
+        return owner == frame ? -1 : upvalue(frame, local, owner);
       }
     }
+    return -1;
+  }
+
+  // like clox, each function between the owner of the variable and the one using
+  // it gets an upvalue for it, so closures only copy cells from their enclosing one
+  private int upvalue(Frame frame, Local local, Frame owner) {
+    Integer index = frame.upvalueIndexes.get(local);
+    if (index != null) return index;
+
+    int source;
+    if (frame.enclosing == owner) {
+      local.captured = true;
+      source = local.slot;
+    } else {
+      source = -1 - upvalue(frame.enclosing, local, owner);
+    }
+    frame.upvalues.add(source);
+    frame.upvalueIndexes.put(local, frame.upvalues.size() - 1);
+    return frame.upvalues.size() - 1;
   }
 
   @Override
   public Void visitAssignExpr(Expr.Assign expr) {
     resolve(expr.value);
-    resolveLocal(expr, expr.name);
+    expr.local = local(expr.name.lexeme);
+    if (expr.local == null) expr.upvalue = upvalue(expr.name.lexeme);
+    if (declaration(expr.name.lexeme) != null) declaration(expr.name.lexeme).assigned = true;
+    if (expr.local == null && expr.upvalue == -1) {
+      expr.global = global(expr.name);
+      expr.global.constant = false;
+    }
     return null;
   }
 
   @Override
   public Void visitFunctionStmt(Stmt.Function stmt) {
-    declare(stmt.name);
+    stmt.local = declare(stmt.name);
     define(stmt.name);
     // the function name is available inside its body for recursive functions
+    if (stmt.local == null) globals.cell(stmt.name.symbol).function = stmt.function;
 
-    resolveFunction(stmt.params, stmt.body, FunctionType.FUNCTION);
+    resolveFunction(stmt.function, FunctionType.FUNCTION);
     return null;
   }
 
   @Override
   public Void visitFunctionExpr(Expr.Function expr) {
-    resolveFunction(expr.params, expr.body, FunctionType.FUNCTION);
+    resolveFunction(expr, FunctionType.FUNCTION);
     return null;
   }
 
-  private void resolveFunction(List<Token> params, List<Stmt> body, FunctionType type) {
+  private void resolveFunction(Expr.Function function, FunctionType type) {
+    if (function.lazy != null) {
+      if (!function.lazy.suspect) {
+        skipped(function, type);
+        return;
+      }
+      // resolved now, so its errors are reported here and in order
+      function.body.addAll(function.lazy.parse());
+      function.lazy = null;
+    }
+
     FunctionType enclosingFunction = currentFunction; // for nested functions
     currentFunction = type;
+    // a break or continue can't leave the function for a loop around it
+    int enclosingLoopDepth = loopDepth;
+    loopDepth = 0;
+    Frame enclosingFrame = frame;
+    frame = new Frame(enclosingFrame);
 
     beginScope();
-    for (Token param : params) {
-      declare(param);
-      define(param);
+    if (type == FunctionType.METHOD || type == FunctionType.INITIALIZER) {
+      function.receiver = defineName("this");
     }
-    resolve(body);
+    function.parameters = new Local[function.params.size()];
+    for (int i = 0; i < function.params.size(); i++) {
+      function.parameters[i] = declare(function.params.get(i));
+      define(function.params.get(i));
+    }
+    resolve(function.body);
     endScope();
+
+    function.frameSize = frame.size;
+    function.upvalues = new int[frame.upvalues.size()];
+    for (int i = 0; i < function.upvalues.length; i++) {
+      function.upvalues[i] = frame.upvalues.get(i);
+    }
+    frame = enclosingFrame;
+    loopDepth = enclosingLoopDepth;
     currentFunction = enclosingFunction;
   }
 
+  // a function whose body the Parser skipped only sees globals (a body
+  // using "super" isn't skipped): its closures capture nothing, and its body
+  // is resolved when it first runs (see resolveBody). The Parser's scan found
+  // nothing in it the Resolver reports an error for
+  private void skipped(Expr.Function function, FunctionType type) {
+    LazyBody lazy = function.lazy;
+    for (int symbol : lazy.assigned) { // if it's a global
+      globals.cell(symbol).constant = false;
+    }
+
+    lazy.type = type;
+    lazy.enclosingClass = currentClass;
+    function.upvalues = new int[0];
+  }
+
+  // resolve the body of a function the Parser skipped, once it's parsed, as
+  // if in the class it was declared in
+  void resolveBody(Expr.Function function) {
+    LazyBody lazy = function.lazy;
+    function.lazy = null;
+    currentClass = lazy.enclosingClass;
+    resolveFunction(function, lazy.type);
+  }
+
   @Override
   public Void visitExpressionStmt(Stmt.Expression stmt) {
     resolve(stmt.expression);
@@ -224,10 +390,29 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
         Lox.error(stmt.keyword, "Can't return a value from an initializer.");
       }
       resolve(stmt.value);
+      markTailCalls(stmt.value);
     }
     return null;
   }
 
+  // the calls whose value is the value the function returns: nothing is left
+  // to do in the function after them, so the callee can take over its frame
+  private static void markTailCalls(Expr expr) {
+    if (expr instanceof Expr.Call) {
+      ((Expr.Call)expr).tailCall = true;
+    } else if (expr instanceof Expr.Grouping) {
+      markTailCalls(((Expr.Grouping)expr).expression);
+    } else if (expr instanceof Expr.Ternary) {
+      markTailCalls(((Expr.Ternary)expr).thenBranch);
+      markTailCalls(((Expr.Ternary)expr).elseBranch);
+    } else if (expr instanceof Expr.Logical) { // the value of the right operand
+      markTailCalls(((Expr.Logical)expr).right);
+    } else if (expr instanceof Expr.Binary &&
+        ((Expr.Binary)expr).operator.type == TokenType.COMMA) {
+      markTailCalls(((Expr.Binary)expr).right);
+    }
+  }
+
   @Override
   public Void visitContinueStmt(Stmt.Continue stmt) {
     if (loopDepth < 1) {
@@ -279,6 +464,18 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     return null;
   }
 
+  @Override
+  public Void visitInlineExpr(Expr.Inline expr) {
+    resolve(expr.call); // only the Optimizer creates them, after resolving
+    return null;
+  }
+
+  @Override
+  public Void visitInvariantExpr(Expr.Invariant expr) {
+    resolve(expr.expression); // only the Hoister creates them, after resolving
+    return null;
+  }
+
   @Override
   public Void visitGetExpr(Expr.Get expr) {
     resolve(expr.object);
@@ -314,11 +511,16 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
   public Void visitSuperExpr(Expr.Super expr) {
     if (currentClass == ClassType.NONE) {
       Lox.error(expr.keyword, "Can't use 'super' outside of a class.");
+      return null;
     } else if (currentClass != ClassType.SUBCLASS) {
       Lox.error(expr.keyword, "Can't use 'super' in a class with no superclass.");
     }
 
-    resolveLocal(expr, expr.keyword);
+    expr.local = local("super");
+    if (expr.local == null) expr.upvalue = upvalue("super");
+    // the method is bound to the instance the enclosing method was called on
+    expr.receiver = new Expr.This(expr.keyword);
+    resolve(expr.receiver);
     return null;
   }
 
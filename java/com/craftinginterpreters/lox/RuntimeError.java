@@ -1,10 +1,18 @@
 package com.craftinginterpreters.lox;
 
 class RuntimeError extends RuntimeException {
-  final Token token;
+  final Token token; // null for errors raised by the VM
+  final int line;
 
   RuntimeError(Token token, String message) {
     super(message);
     this.token = token;
+    this.line = token.line;
+  }
+
+  RuntimeError(int line, String message) {
+    super(message);
+    this.token = null;
+    this.line = line;
   }
 }
@@ -1,72 +1,129 @@
 package com.craftinginterpreters.lox;
 
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
 
 import static com.craftinginterpreters.lox.TokenType.*;
 
 class Scanner {
-  private final String source;
-  private final List<Token> tokens = new ArrayList<>();
+  private static final int BUFFER_SIZE = 8192;
+
+  private final Reader source;
+  private final TokenBuffer tokens;
   private int start = 0;
   private int current = 0;
   private int line = 1;
+  // the part of the source read but not yet left behind: chars from
+  // bufferStart to bufferEnd (offsets in the whole source), from the lexeme of
+  // the oldest token in the TokenBuffer on
+  private char[] buffer = new char[BUFFER_SIZE];
+  private int bufferStart = 0;
+  private int bufferEnd = 0;
+  private boolean endOfSource = false;
+  // the source from this offset on is kept until the Parser takes it (the
+  // text of a function body it skips), or -1
+  private int kept = -1;
+
+  Scanner(Reader source) {
+    this(source, 1);
+  }
 
-  private static final Map<String, TokenType> keywords;
-  static {
-    keywords = new HashMap<>();
-    keywords.put("and",    AND);
-    keywords.put("break",  BREAK);
-    keywords.put("class",  CLASS);
-    keywords.put("continue", CONTINUE);
-    keywords.put("else",   ELSE);
-    keywords.put("false",  FALSE);
-    keywords.put("for",    FOR);
-    keywords.put("fun",    FUN);
-    keywords.put("if",     IF);
-    keywords.put("nil",    NIL);
-    keywords.put("or",     OR);
-    keywords.put("print",  PRINT);
-    keywords.put("return", RETURN);
-    keywords.put("super",  SUPER);
-    keywords.put("this",   THIS);
-    keywords.put("true",   TRUE);
-    keywords.put("var",    VAR);
-    keywords.put("while",  WHILE);
-  }
-
-  Scanner(String source) {
+  // scan a part of a source, which starts on the given line
+  Scanner(Reader source, int line) {
     this.source = source;
+    this.line = line;
+    tokens = new TokenBuffer(this);
+  }
+
+  // the tokens, which are scanned as the parser reads them
+  TokenBuffer tokens() {
+    return tokens;
   }
 
-  List<Token> scanTokens() {
-    while (!isAtEnd()) {
+  // scan until the buffer has that many tokens
+  void scan(int count) {
+    while (tokens.size() < count) {
+      if (isAtEnd()) { // add EOF after the file is over
+        tokens.add(EOF, current, 0, line);
+        continue;
+      }
       // start of the next lexeme
       start = current;
       scanToken();
     }
-    // add EOF after the file is over
-    tokens.add(new Token(EOF, "", null, line));
-    return tokens;
   }
 
-  private boolean isAtEnd() {
-    return current >= source.length();
+  // the text of a lexeme still in the buffer
+  String text(int start, int length) {
+    return new String(buffer, start - bufferStart, length);
   }
 
-  private char advance() {
-    return source.charAt(current++);
+  // keep the source from the offset on (-1 to stop keeping it)
+  void keep(int offset) {
+    kept = offset;
+  }
+
+  // the source kept, up to the offset, which stops keeping it
+  String takeKept(int end) {
+    String text = text(kept, end - kept);
+    kept = -1;
+    return text;
   }
 
-  private void addToken(TokenType type) { // calls itself with literal=null
-    addToken(type, null);
+  // whether the char at the offset is in the buffer, reading more of the
+  // source if needed
+  private boolean available(int offset) {
+    while (offset >= bufferEnd) {
+      if (!fill()) return false;
+    }
+    return true;
+  }
+
+  private boolean fill() {
+    if (endOfSource) return false;
+
+    // leave behind what no token refers to anymore
+    int keep = Math.min(start, tokens.oldestStart());
+    if (kept != -1) keep = Math.min(keep, kept);
+    if (keep > bufferStart) {
+      System.arraycopy(buffer, keep - bufferStart, buffer, 0, bufferEnd - keep);
+      bufferStart = keep;
+    }
+    int used = bufferEnd - bufferStart;
+    if (used > buffer.length / 2) buffer = Arrays.copyOf(buffer, buffer.length * 2);
+
+    int read;
+    try {
+      read = source.read(buffer, used, buffer.length - used);
+    } catch (IOException error) {
+      throw new UncheckedIOException(error);
+    }
+    if (read == -1) {
+      endOfSource = true;
+      return false;
+    }
+    bufferEnd += read;
+    return true;
   }
 
-  private void addToken(TokenType type, Object literal) {
-    String text = source.substring(start, current);
-    tokens.add(new Token(type, text, literal, line));
+  private char charAt(int offset) {
+    return buffer[offset - bufferStart];
+  }
+
+  private boolean isAtEnd() {
+    return current >= bufferEnd && !available(current);
+  }
+
+  private char advance() {
+    if (isAtEnd()) return '\0'; // in an unterminated block comment
+    return charAt(current++);
+  }
+
+  // the lexeme is from start to current (the literal is read from it later)
+  private void addToken(TokenType type) {
+    tokens.add(type, start, current - start, line);
   }
 
   private void scanToken() {
@@ -129,7 +186,7 @@ class Scanner {
         } else if (isAlpha(c)) {
           identifier();
         } else { // report an error
-          Lox.error(line, "Unexpected character.");
+          tokens.error(line, "Unexpected character.");
         }
         break;
     }
@@ -141,16 +198,14 @@ class Scanner {
       advance();
     }
     if (isAtEnd()) {
-      Lox.error(line, "Unterminated string.");
+      tokens.error(line, "Unterminated string.");
       return;
     }
     // closing "
     advance();
-    // remove the surrounding quotes
-    String value = source.substring(start + 1, current - 1);
     // TODO: add support for escape sequences (eg. \n)
 
-    addToken(STRING, value);
+    addToken(STRING);
   }
 
   private void number() {
@@ -159,34 +214,82 @@ class Scanner {
       advance(); // consume the dot
       while (isDigit(peek())) advance();
     }
-    // all numbers are represented as Java Double
-    addToken(NUMBER, Double.parseDouble(source.substring(start, current)));
+    addToken(NUMBER);
   }
 
   private void identifier() {
     while (isAlphaNumeric(peek())) advance();
 
-    String text = source.substring(start, current);
-    TokenType type = keywords.get(text);
-    if (type == null) type = IDENTIFIER;
-    addToken(type);
+    addToken(identifierType());
+  }
+
+  // the keywords are recognized from their characters, one at a time, without
+  // taking the lexeme out of the source
+  private TokenType identifierType() {
+    switch (charAt(start)) {
+      case 'a': return checkKeyword(1, "nd", AND);
+      case 'b': return checkKeyword(1, "reak", BREAK);
+      case 'c':
+        if (current - start > 1) {
+          switch (charAt(start + 1)) {
+            case 'l': return checkKeyword(2, "ass", CLASS);
+            case 'o': return checkKeyword(2, "ntinue", CONTINUE);
+          }
+        }
+        break;
+      case 'e': return checkKeyword(1, "lse", ELSE);
+      case 'f':
+        if (current - start > 1) {
+          switch (charAt(start + 1)) {
+            case 'a': return checkKeyword(2, "lse", FALSE);
+            case 'o': return checkKeyword(2, "r", FOR);
+            case 'u': return checkKeyword(2, "n", FUN);
+          }
+        }
+        break;
+      case 'i': return checkKeyword(1, "f", IF);
+      case 'n': return checkKeyword(1, "il", NIL);
+      case 'o': return checkKeyword(1, "r", OR);
+      case 'p': return checkKeyword(1, "rint", PRINT);
+      case 'r': return checkKeyword(1, "eturn", RETURN);
+      case 's': return checkKeyword(1, "uper", SUPER);
+      case 't':
+        if (current - start > 1) {
+          switch (charAt(start + 1)) {
+            case 'h': return checkKeyword(2, "is", THIS);
+            case 'r': return checkKeyword(2, "ue", TRUE);
+          }
+        }
+        break;
+      case 'v': return checkKeyword(1, "ar", VAR);
+      case 'w': return checkKeyword(1, "hile", WHILE);
+    }
+    return IDENTIFIER;
+  }
+
+  private TokenType checkKeyword(int offset, String rest, TokenType type) {
+    if (current - start != offset + rest.length()) return IDENTIFIER;
+    for (int i = 0; i < rest.length(); i++) {
+      if (charAt(start + offset + i) != rest.charAt(i)) return IDENTIFIER;
+    }
+    return type;
   }
 
   private boolean match(char expected) {
     if (isAtEnd()) return false;
-    if (source.charAt(current) != expected) return false;
+    if (charAt(current) != expected) return false;
     current++;
     return true;
   }
 
   private char peek() { // lookahead
     if (isAtEnd()) return '\0';
-    return source.charAt(current);
+    return charAt(current);
   }
 
   private char peekNext() { // lookahead of 2 chars
-    if (current + 1 >= source.length()) return '\0';
-    return source.charAt(current + 1);
+    if (!available(current + 1)) return '\0';
+    return charAt(current + 1);
   }
 
   private boolean isDigit(char c) {
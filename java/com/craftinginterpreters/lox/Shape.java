@@ -0,0 +1,46 @@
+package com.craftinginterpreters.lox;
+
+// The layout of an instance's fields (a hidden class, as V8 calls it): which
+// index of the instance's array holds each field. Every class has its own
+// empty shape, and instances that add the same fields in the same order walk
+// the same chain of transitions, so they end up sharing one shape.
+class Shape {
+  // instances with more fields than this store them in a SymbolMap instead
+  static final int MAX_FIELDS = 64;
+
+  private final SymbolMap<Integer> indexes;
+  private final SymbolMap<Shape> transitions = new SymbolMap<>();
+
+  Shape() { // the empty shape of a class
+    indexes = new SymbolMap<>();
+  }
+
+  private Shape(Shape parent, int symbol) {
+    indexes = new SymbolMap<>(parent.indexes);
+    indexes.put(symbol, parent.size());
+  }
+
+  int size() {
+    return indexes.size();
+  }
+
+  int[] symbols() {
+    return indexes.keys();
+  }
+
+  // returns -1 if the shape has no field with this name
+  int indexOf(int symbol) {
+    Integer index = indexes.get(symbol);
+    return index == null ? -1 : index;
+  }
+
+  // the shape of an instance with this shape after adding a field
+  Shape withField(int symbol) {
+    Shape shape = transitions.get(symbol);
+    if (shape == null) {
+      shape = new Shape(this, symbol);
+      transitions.put(symbol, shape);
+    }
+    return shape;
+  }
+}
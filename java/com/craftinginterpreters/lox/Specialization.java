@@ -0,0 +1,20 @@
+package com.craftinginterpreters.lox;
+
+// The operation a Binary, Unary, Logical or Call node has rewritten itself to.
+// Nodes start UNINITIALIZED, pick a variant from the operand types seen on
+// their first execution, and fall back to GENERIC for good as soon as a
+// specialized variant sees operands it doesn't handle.
+enum Specialization {
+  UNINITIALIZED,
+  GENERIC,
+  // Binary
+  NUMBER_ADD, NUMBER_SUBTRACT, NUMBER_MULTIPLY, NUMBER_DIVIDE,
+  NUMBER_GREATER, NUMBER_GREATER_EQUAL, NUMBER_LESS, NUMBER_LESS_EQUAL,
+  STRING_CONCAT, EQUAL, NOT_EQUAL, COMMA,
+  // Unary
+  NUMBER_NEGATE, NOT,
+  // Logical
+  BOOLEAN_AND, BOOLEAN_OR,
+  // Call
+  MONOMORPHIC // always the same callee, with the right arity
+}
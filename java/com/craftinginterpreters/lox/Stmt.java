@@ -58,6 +58,8 @@ abstract class Stmt {
 		final Token name;
 		final Expr.Variable superclass;
 		final List<Stmt.Function> methods;
+		Local local;
+		Local superLocal;
 	}
 
 	static class Continue extends Stmt {
@@ -87,10 +89,9 @@ abstract class Stmt {
 	}
 
 	static class Function extends Stmt {
-		Function(Token name, List<Token> params, List<Stmt> body) {
+		Function(Token name, Expr.Function function) {
 			this.name = name;
-			this.params = params;
-			this.body = body;
+			this.function = function;
 		}
 
 		@Override
@@ -99,8 +100,8 @@ abstract class Stmt {
 		}
 
 		final Token name;
-		final List<Token> params;
-		final List<Stmt> body;
+		final Expr.Function function;
+		Local local;
 	}
 
 	static class If extends Stmt {
@@ -161,6 +162,7 @@ abstract class Stmt {
 
 		final Token name;
 		final Expr initializer;
+		Local local;
 	}
 
 	static class While extends Stmt {
@@ -176,6 +178,9 @@ abstract class Stmt {
 
 		final Expr condition;
 		final Stmt body;
+		Local[] invariants = new Local[0];
+		int iterations;
+		ClosureCompiler.CompiledStmt compiled;
 	}
 
 	abstract <R> R accept(Visitor<R> visitor);
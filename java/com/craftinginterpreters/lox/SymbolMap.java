@@ -0,0 +1,95 @@
+package com.craftinginterpreters.lox;
+
+import java.util.Arrays;
+
+// A map keyed by symbols (see Symbols), stored in two parallel arrays with
+// open addressing and linear probing, so a lookup is a few int compares and
+// nothing is boxed or hashed.
+class SymbolMap<V> {
+  private static final int EMPTY = -1;
+
+  private int[] keys;
+  private Object[] values;
+  private int size = 0;
+
+  SymbolMap() {
+    keys = new int[8]; // always a power of 2
+    Arrays.fill(keys, EMPTY);
+    values = new Object[8];
+  }
+
+  SymbolMap(SymbolMap<V> other) {
+    keys = other.keys.clone();
+    values = other.values.clone();
+    size = other.size;
+  }
+
+  int size() {
+    return size;
+  }
+
+  boolean containsKey(int symbol) {
+    return keys[find(symbol)] != EMPTY;
+  }
+
+  @SuppressWarnings("unchecked")
+  V get(int symbol) { // null if the symbol isn't in the map
+    return (V)values[find(symbol)];
+  }
+
+  void put(int symbol, V value) {
+    int index = find(symbol);
+    if (keys[index] == EMPTY) {
+      // keep at least half of the entries empty so probe sequences stay short
+      if ((size + 1) * 2 > keys.length) {
+        grow();
+        index = find(symbol);
+      }
+      keys[index] = symbol;
+      size++;
+    }
+    values[index] = value;
+  }
+
+  @SuppressWarnings("unchecked")
+  void putAll(SymbolMap<V> other) {
+    for (int i = 0; i < other.keys.length; i++) {
+      if (other.keys[i] != EMPTY) put(other.keys[i], (V)other.values[i]);
+    }
+  }
+
+  // the symbols in the map, in no particular order
+  int[] keys() {
+    int[] symbols = new int[size];
+    int count = 0;
+    for (int key : keys) {
+      if (key != EMPTY) symbols[count++] = key;
+    }
+    return symbols;
+  }
+
+  // the index of the symbol's entry, or of the empty entry where it would go
+  private int find(int symbol) {
+    int mask = keys.length - 1;
+    int index = symbol & mask; // symbols are small consecutive ints already
+    while (keys[index] != symbol && keys[index] != EMPTY) {
+      index = (index + 1) & mask;
+    }
+    return index;
+  }
+
+  private void grow() {
+    int[] oldKeys = keys;
+    Object[] oldValues = values;
+    keys = new int[oldKeys.length * 2];
+    Arrays.fill(keys, EMPTY);
+    values = new Object[oldKeys.length * 2];
+    for (int i = 0; i < oldKeys.length; i++) {
+      if (oldKeys[i] != EMPTY) {
+        int index = find(oldKeys[i]);
+        keys[index] = oldKeys[i];
+        values[index] = oldValues[i];
+      }
+    }
+  }
+}
@@ -0,0 +1,37 @@
+package com.craftinginterpreters.lox;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// The process-wide symbol table. Every identifier Token is interned (see
+// TokenBuffer.token), so each name is a single String and a small int
+// (Token.symbol) that the runtime uses as the key of its maps instead of
+// hashing the name again.
+final class Symbols {
+  private static final Map<String, Integer> symbols = new HashMap<>();
+  private static final List<String> names = new ArrayList<>();
+
+  static final int INIT = intern("init");
+
+  private Symbols() {}
+
+  static int intern(String name) {
+    Integer symbol = symbols.get(name);
+    if (symbol == null) {
+      symbol = names.size();
+      symbols.put(name, symbol);
+      names.add(name);
+    }
+    return symbol;
+  }
+
+  static String name(int symbol) {
+    return names.get(symbol);
+  }
+
+  static int count() {
+    return names.size();
+  }
+}
@@ -5,12 +5,18 @@ class Token {
   final String lexeme;
   final Object literal;
   final int line;
+  final int symbol; // the interned lexeme of an identifier, -1 for other tokens
 
   Token(TokenType type, String lexeme, Object literal, int line) {
+    this(type, lexeme, literal, line, -1);
+  }
+
+  Token(TokenType type, String lexeme, Object literal, int line, int symbol) {
     this.type = type;
     this.lexeme = lexeme;
     this.literal = literal;
     this.line = line;
+    this.symbol = symbol;
   }
 
   public String toString() {
@@ -0,0 +1,142 @@
+package com.craftinginterpreters.lox;
+
+import java.util.ArrayDeque;
+
+// The tokens the Parser reads, scanned on demand: instead of a Token object
+// per token, parallel arrays hold each token's type, the start and length of
+// its lexeme in the source, and its line, so scanning allocates nothing per
+// token. The lexeme, literal and symbol of a token are only made when the
+// Parser asks for its Token, which it does for the tokens the AST keeps.
+// Only the last WINDOW tokens are kept (the Parser never looks back further
+// than the token it just consumed), so memory doesn't grow with the source.
+class TokenBuffer {
+  private static final TokenType[] TYPES = TokenType.values();
+  private static final int WINDOW = 1024; // a power of two
+  // how many tokens are scanned at a time: scanning a few tokens ahead of the
+  // Parser is much faster than switching between the two for each token
+  private static final int BATCH = WINDOW / 2;
+
+  private final Scanner scanner;
+  private final int[] types = new int[WINDOW];
+  private final int[] starts = new int[WINDOW];
+  private final int[] lengths = new int[WINDOW];
+  private final int[] lines = new int[WINDOW];
+  private int size = 0; // the number of tokens scanned so far
+  // The Scanner's errors, reported when the Parser reaches the token after
+  // each rather than when the Scanner meets it, up to a batch ahead: so they
+  // come in source order among the Parser's own errors. The index of each is
+  // that of the token after it, and the first of them is at nextError.
+  private final ArrayDeque<ScanError> errors = new ArrayDeque<>();
+  private int nextError = Integer.MAX_VALUE;
+
+  private static class ScanError {
+    final int index;
+    final int line;
+    final String message;
+
+    ScanError(int index, int line, String message) {
+      this.index = index;
+      this.line = line;
+      this.message = message;
+    }
+  }
+
+  TokenBuffer(Scanner scanner) {
+    this.scanner = scanner;
+  }
+
+  void add(TokenType type, int start, int length, int line) {
+    int slot = size & (WINDOW - 1);
+    types[slot] = type.ordinal();
+    starts[slot] = start;
+    lengths[slot] = length;
+    lines[slot] = line;
+    size++;
+  }
+
+  int size() {
+    return size;
+  }
+
+  // an error before the next token added
+  void error(int line, String message) {
+    errors.add(new ScanError(size, line, message));
+    nextError = errors.peek().index;
+  }
+
+  // report the errors before the token at the index, which the Parser has
+  // reached
+  void reach(int index) {
+    slot(index); // scan it, and the errors before it
+    if (index < nextError) return;
+    while (!errors.isEmpty() && errors.peek().index <= index) {
+      ScanError error = errors.remove();
+      Lox.error(error.line, error.message);
+    }
+    nextError = errors.isEmpty() ? Integer.MAX_VALUE : errors.peek().index;
+  }
+
+  // where the lexeme of the oldest token kept starts (the Scanner keeps the
+  // source from there on)
+  int oldestStart() {
+    if (size < WINDOW) return 0;
+    return starts[size & (WINDOW - 1)];
+  }
+
+  // the slot of the token at the index, scanning up to it if needed (after
+  // the end, the Scanner keeps adding EOF)
+  private int slot(int index) {
+    if (index >= size) scanner.scan(index + BATCH);
+    return index & (WINDOW - 1);
+  }
+
+  // keep the source from the token at the index on, until source takes it
+  // (or release lets it go)
+  void keep(int index) {
+    scanner.keep(starts[slot(index)]);
+  }
+
+  void release() {
+    scanner.keep(-1);
+  }
+
+  // the source kept, up to the end of the token at the index
+  String source(int index) {
+    int slot = slot(index);
+    return scanner.takeKept(starts[slot] + lengths[slot]);
+  }
+
+  TokenType type(int index) {
+    return TYPES[types[slot(index)]];
+  }
+
+  int line(int index) {
+    return lines[slot(index)];
+  }
+
+  String lexeme(int index) {
+    int slot = slot(index);
+    return scanner.text(starts[slot], lengths[slot]);
+  }
+
+  Object literal(int index) {
+    int slot = slot(index);
+    switch (TYPES[types[slot]]) {
+      case NUMBER: return Double.parseDouble(lexeme(index));
+      case STRING: // without the quotes
+        return scanner.text(starts[slot] + 1, lengths[slot] - 2);
+      default: return null;
+    }
+  }
+
+  Token token(int index) {
+    TokenType type = type(index);
+    int line = lines[slot(index)];
+    if (type == TokenType.IDENTIFIER) {
+      // every occurrence of a name shares the symbol table's String
+      int symbol = Symbols.intern(lexeme(index));
+      return new Token(type, Symbols.name(symbol), null, line, symbol);
+    }
+    return new Token(type, lexeme(index), literal(index), line);
+  }
+}
@@ -0,0 +1,559 @@
+package com.craftinginterpreters.lox;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static com.craftinginterpreters.lox.OpCode.*;
+
+// Stack-based virtual machine running the bytecode produced by the
+// BytecodeCompiler (see clox's vm.c). All values live in one contiguous stack,
+// each call frame is a window over it, and no Environment is ever allocated.
+class VM {
+  private static final int FRAMES_MAX = 100000;
+  // pushed over the value of a field called as a method (see OP_FIND_METHOD)
+  private static final Object FIELD = new Object();
+
+  private static class CallFrame {
+    Obj.Closure closure;
+    int ip;
+    int slots; // index of the frame's first slot in the stack
+  }
+
+  private CallFrame[] frames = new CallFrame[64];
+  private int frameCount = 0;
+  private Object[] stack = new Object[1024];
+  private int stackTop = 0; // index of the cell after the last element
+  private final SymbolMap<Object> globals = new SymbolMap<>();
+  private Obj.Upvalue openUpvalues = null;
+
+  VM() {
+    // native function clock() to tell the time
+    globals.put(Symbols.intern("clock"), new Obj.Native(0,
+        (stack, first) -> (double)System.currentTimeMillis() / 1000.0));
+  }
+
+  void interpret(List<Stmt> statements) {
+    Obj.Function function = new BytecodeCompiler().compile(statements);
+    if (function == null) return; // compile error
+
+    Obj.Closure script = new Obj.Closure(function);
+    push(script);
+    try {
+      call(script, 0);
+      run();
+    } catch (RuntimeError error) {
+      Lox.runtimeError(error);
+      resetStack();
+    }
+  }
+
+  private void resetStack() {
+    Arrays.fill(stack, 0, stackTop, null);
+    stackTop = 0;
+    frameCount = 0;
+    openUpvalues = null;
+  }
+
+  // add one element to the stack
+  private void push(Object value) {
+    stack[stackTop++] = value;
+  }
+
+  // remove one element from the stack
+  private Object pop() {
+    return stack[--stackTop];
+  }
+
+  private Object peek(int distance) {
+    return stack[stackTop - 1 - distance];
+  }
+
+  private RuntimeError error(String message) {
+    CallFrame frame = frames[frameCount - 1];
+    int line = frame.closure.function.chunk.lines[frame.ip - 1];
+    return new RuntimeError(line, message);
+  }
+
+  private void run() {
+    CallFrame frame = frames[frameCount - 1];
+    byte[] code = frame.closure.function.chunk.code;
+    Object[] constants = frame.closure.function.chunk.constants;
+    int ip = frame.ip;
+    int slots = frame.slots;
+
+    for (;;) {
+      byte instruction = code[ip++];
+      switch (instruction) {
+        case OP_CONSTANT:
+          push(constants[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)]);
+          ip += 2;
+          break;
+        case OP_NIL: push(null); break;
+        case OP_TRUE: push(true); break;
+        case OP_FALSE: push(false); break;
+        case OP_POP: stack[--stackTop] = null; break;
+        case OP_GET_LOCAL:
+          push(stack[slots + (code[ip++] & 0xff)]);
+          break;
+        case OP_SET_LOCAL:
+          stack[slots + (code[ip++] & 0xff)] = peek(0);
+          break;
+        case OP_GET_GLOBAL: {
+          int symbol = (int)constants[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+          ip += 2;
+          Object value = globals.get(symbol);
+          if (value == null && !globals.containsKey(symbol)) {
+            frame.ip = ip;
+            throw error("Undefined variable '" + Symbols.name(symbol) + "'.");
+          }
+          push(value);
+          break;
+        }
+        case OP_DEFINE_GLOBAL: {
+          int symbol = (int)constants[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+          ip += 2;
+          globals.put(symbol, pop());
+          break;
+        }
+        case OP_SET_GLOBAL: {
+          int symbol = (int)constants[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+          ip += 2;
+          if (!globals.containsKey(symbol)) {
+            frame.ip = ip;
+            throw error("Undefined variable '" + Symbols.name(symbol) + "'.");
+          }
+          globals.put(symbol, peek(0));
+          break;
+        }
+        case OP_GET_UPVALUE: {
+          Obj.Upvalue upvalue = frame.closure.upvalues[code[ip++] & 0xff];
+          push(upvalue.slot == -1 ? upvalue.closed : stack[upvalue.slot]);
+          break;
+        }
+        case OP_SET_UPVALUE: {
+          Obj.Upvalue upvalue = frame.closure.upvalues[code[ip++] & 0xff];
+          if (upvalue.slot == -1) {
+            upvalue.closed = peek(0);
+          } else {
+            stack[upvalue.slot] = peek(0);
+          }
+          break;
+        }
+        case OP_GET_PROPERTY: {
+          int symbol = (int)constants[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+          ip += 2;
+          if (!(peek(0) instanceof Obj.Instance)) {
+            frame.ip = ip;
+            throw error("Only instances have properties.");
+          }
+
+          Obj.Instance instance = (Obj.Instance)peek(0);
+          Object value = instance.fields.get(symbol);
+          if (value != null || instance.fields.containsKey(symbol)) {
+            stack[stackTop - 1] = value;
+            break;
+          }
+
+          frame.ip = ip;
+          bindMethod(instance.klass, symbol);
+          break;
+        }
+        case OP_SET_PROPERTY: {
+          int symbol = (int)constants[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+          ip += 2;
+          if (!(peek(1) instanceof Obj.Instance)) {
+            frame.ip = ip;
+            throw error("Only instances have fields.");
+          }
+
+          Object value = pop();
+          ((Obj.Instance)pop()).fields.put(symbol, value);
+          push(value);
+          break;
+        }
+        case OP_GET_SUPER: {
+          int symbol = (int)constants[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+          ip += 2;
+          Obj.Class superclass = (Obj.Class)pop();
+          frame.ip = ip;
+          bindMethod(superclass, symbol);
+          break;
+        }
+        case OP_EQUAL: {
+          Object b = pop();
+          stack[stackTop - 1] = Interpreter.isEqual(stack[stackTop - 1], b);
+          break;
+        }
+        case OP_NOT_EQUAL: {
+          Object b = pop();
+          stack[stackTop - 1] = !Interpreter.isEqual(stack[stackTop - 1], b);
+          break;
+        }
+        case OP_GREATER:
+        case OP_GREATER_EQUAL:
+        case OP_LESS:
+        case OP_LESS_EQUAL:
+        case OP_SUBTRACT:
+        case OP_MULTIPLY:
+        case OP_DIVIDE: {
+          Object b = stack[stackTop - 1];
+          Object a = stack[stackTop - 2];
+          if (!(a instanceof Double && b instanceof Double)) {
+            frame.ip = ip;
+            throw error("Operands must be numbers.");
+          }
+          stack[--stackTop] = null;
+          stack[stackTop - 1] = numberOperation(instruction, (double)a, (double)b, frame, ip);
+          break;
+        }
+        case OP_ADD: {
+          Object b = stack[stackTop - 1];
+          Object a = stack[stackTop - 2];
+          Object result;
+          if (a instanceof Double && b instanceof Double) {
+            result = (double)a + (double)b;
+          } else if (a instanceof String && b instanceof String) {
+            result = (String)a + (String)b;
+          } else {
+            frame.ip = ip;
+            throw error("Operands must be two numbers or two strings.");
+          }
+          stack[--stackTop] = null;
+          stack[stackTop - 1] = result;
+          break;
+        }
+        case OP_NOT:
+          stack[stackTop - 1] = !Interpreter.isTruthy(stack[stackTop - 1]);
+          break;
+        case OP_NEGATE:
+          if (!(peek(0) instanceof Double)) {
+            frame.ip = ip;
+            throw error("Operand must be a number.");
+          }
+          stack[stackTop - 1] = -(double)stack[stackTop - 1];
+          break;
+        case OP_PRINT:
+          System.out.println(Interpreter.stringify(pop()));
+          break;
+        case OP_JUMP:
+          ip += ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff);
+          ip += 2;
+          break;
+        case OP_JUMP_IF_FALSE: {
+          int offset = ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff);
+          ip += 2;
+          if (!Interpreter.isTruthy(peek(0))) ip += offset;
+          break;
+        }
+        case OP_LOOP: {
+          int offset = ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff);
+          ip += 2;
+          ip -= offset;
+          break;
+        }
+        case OP_CALL: {
+          int argCount = code[ip++] & 0xff;
+          frame.ip = ip;
+          callValue(peek(argCount), argCount);
+          frame = frames[frameCount - 1];
+          code = frame.closure.function.chunk.code;
+          constants = frame.closure.function.chunk.constants;
+          ip = frame.ip;
+          slots = frame.slots;
+          break;
+        }
+        case OP_INVOKE: {
+          int symbol = (int)constants[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+          int argCount = code[ip + 2] & 0xff;
+          ip += 3;
+          frame.ip = ip;
+          invoke(symbol, argCount);
+          frame = frames[frameCount - 1];
+          code = frame.closure.function.chunk.code;
+          constants = frame.closure.function.chunk.constants;
+          ip = frame.ip;
+          slots = frame.slots;
+          break;
+        }
+        case OP_SUPER_INVOKE: {
+          int symbol = (int)constants[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+          int argCount = code[ip + 2] & 0xff;
+          ip += 3;
+          frame.ip = ip;
+          Obj.Class superclass = (Obj.Class)pop();
+          invokeFromClass(superclass, symbol, argCount);
+          frame = frames[frameCount - 1];
+          code = frame.closure.function.chunk.code;
+          constants = frame.closure.function.chunk.constants;
+          ip = frame.ip;
+          slots = frame.slots;
+          break;
+        }
+        case OP_CLOSURE: {
+          Obj.Function function = (Obj.Function)constants[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+          ip += 2;
+          Obj.Closure closure = new Obj.Closure(function);
+          push(closure);
+          for (int i = 0; i < closure.upvalues.length; i++) {
+            int isLocal = code[ip];
+            int index = ((code[ip + 1] & 0xff) << 8) | (code[ip + 2] & 0xff);
+            ip += 3;
+            if (isLocal == 1) {
+              closure.upvalues[i] = captureUpvalue(slots + index);
+            } else {
+              closure.upvalues[i] = frame.closure.upvalues[index];
+            }
+          }
+          break;
+        }
+        case OP_CLOSE_UPVALUE:
+          closeUpvalues(stackTop - 1);
+          stack[--stackTop] = null;
+          break;
+        case OP_RETURN: {
+          Object result = pop();
+          closeUpvalues(slots);
+          frameCount--;
+          Arrays.fill(stack, slots, stackTop, null);
+          stackTop = slots;
+          if (frameCount == 0) return; // the script is done
+
+          push(result);
+          frame = frames[frameCount - 1];
+          code = frame.closure.function.chunk.code;
+          constants = frame.closure.function.chunk.constants;
+          ip = frame.ip;
+          slots = frame.slots;
+          break;
+        }
+        case OP_CLASS: {
+          int symbol = (int)constants[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+          ip += 2;
+          push(new Obj.Class(Symbols.name(symbol)));
+          break;
+        }
+        case OP_INHERIT: {
+          Object superclass = peek(1);
+          if (!(superclass instanceof Obj.Class)) {
+            frame.ip = ip;
+            throw error("Superclass must be a class.");
+          }
+
+          // copy the inherited methods down, classes can't change after creation
+          Obj.Class subclass = (Obj.Class)peek(0);
+          subclass.methods.putAll(((Obj.Class)superclass).methods);
+          pop(); // subclass
+          break;
+        }
+        case OP_FIND_METHOD: {
+          int symbol = (int)constants[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+          ip += 2;
+          if (!(peek(0) instanceof Obj.Instance)) {
+            frame.ip = ip;
+            throw error("Only instances have properties.");
+          }
+
+          // a field is read now, before the arguments can assign it: its value
+          // replaces the instance, under a marker for OP_INVOKE. A method is
+          // looked up again by OP_INVOKE, since classes don't change
+          Obj.Instance instance = (Obj.Instance)peek(0);
+          Object value = instance.fields.get(symbol);
+          if (value != null || instance.fields.containsKey(symbol)) {
+            stack[stackTop - 1] = value;
+            push(FIELD);
+          } else if (instance.klass.methods.get(symbol) == null) {
+            frame.ip = ip;
+            throw error("Undefined property '" + Symbols.name(symbol) + "'.");
+          }
+          break;
+        }
+        case OP_FIND_SUPER_METHOD: {
+          int symbol = (int)constants[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+          ip += 2;
+          Obj.Class superclass = (Obj.Class)pop();
+          if (superclass.methods.get(symbol) == null) {
+            frame.ip = ip;
+            throw error("Undefined property '" + Symbols.name(symbol) + "'.");
+          }
+          break;
+        }
+        case OP_GET_LOCAL_LONG:
+          push(stack[slots + (((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff))]);
+          ip += 2;
+          break;
+        case OP_SET_LOCAL_LONG:
+          stack[slots + (((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff))] = peek(0);
+          ip += 2;
+          break;
+        case OP_GET_UPVALUE_LONG: {
+          Obj.Upvalue upvalue =
+              frame.closure.upvalues[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+          ip += 2;
+          push(upvalue.slot == -1 ? upvalue.closed : stack[upvalue.slot]);
+          break;
+        }
+        case OP_SET_UPVALUE_LONG: {
+          Obj.Upvalue upvalue =
+              frame.closure.upvalues[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+          ip += 2;
+          if (upvalue.slot == -1) {
+            upvalue.closed = peek(0);
+          } else {
+            stack[upvalue.slot] = peek(0);
+          }
+          break;
+        }
+        case OP_JUMP_LONG:
+          ip += readInt(code, ip) + 4;
+          break;
+        case OP_JUMP_IF_FALSE_LONG: {
+          int offset = readInt(code, ip);
+          ip += 4;
+          if (!Interpreter.isTruthy(peek(0))) ip += offset;
+          break;
+        }
+        case OP_LOOP_LONG:
+          ip += 4 - readInt(code, ip);
+          break;
+        case OP_METHOD: {
+          int symbol = (int)constants[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+          ip += 2;
+          Obj.Closure method = (Obj.Closure)pop();
+          ((Obj.Class)peek(0)).methods.put(symbol, method);
+          break;
+        }
+      }
+    }
+  }
+
+  // the u32 operand of a wide jump
+  private static int readInt(byte[] code, int ip) {
+    return ((code[ip] & 0xff) << 24) | ((code[ip + 1] & 0xff) << 16) |
+        ((code[ip + 2] & 0xff) << 8) | (code[ip + 3] & 0xff);
+  }
+
+  private Object numberOperation(byte instruction, double a, double b, CallFrame frame, int ip) {
+    switch (instruction) {
+      case OP_GREATER: return a > b;
+      case OP_GREATER_EQUAL: return a >= b;
+      case OP_LESS: return a < b;
+      case OP_LESS_EQUAL: return a <= b;
+      case OP_SUBTRACT: return a - b;
+      case OP_MULTIPLY: return a * b;
+      case OP_DIVIDE:
+        if (b == 0) {
+          frame.ip = ip;
+          throw error("Division by zero.");
+        }
+        return a / b;
+    }
+    throw new IllegalStateException("Not a number operation: " + instruction);
+  }
+
+  private void callValue(Object callee, int argCount) {
+    if (callee instanceof Obj.Closure) {
+      call((Obj.Closure)callee, argCount);
+    } else if (callee instanceof Obj.BoundMethod) {
+      Obj.BoundMethod bound = (Obj.BoundMethod)callee;
+      stack[stackTop - argCount - 1] = bound.receiver;
+      call(bound.method, argCount);
+    } else if (callee instanceof Obj.Class) {
+      Obj.Class klass = (Obj.Class)callee;
+      stack[stackTop - argCount - 1] = new Obj.Instance(klass);
+      Obj.Closure initializer = klass.methods.get(Symbols.INIT);
+      if (initializer != null) {
+        call(initializer, argCount);
+      } else if (argCount != 0) {
+        throw error("Expected 0 arguments but got " + argCount + ".");
+      }
+    } else if (callee instanceof Obj.Native) {
+      Obj.Native nativeFn = (Obj.Native)callee;
+      if (argCount != nativeFn.arity) {
+        throw error("Expected " + nativeFn.arity + " arguments but got " + argCount + ".");
+      }
+
+      Object result = nativeFn.function.call(stack, stackTop - argCount);
+      Arrays.fill(stack, stackTop - argCount - 1, stackTop, null);
+      stackTop -= argCount + 1;
+      push(result);
+    } else {
+      throw error("Can only call functions and classes.");
+    }
+  }
+
+  private void call(Obj.Closure closure, int argCount) {
+    if (argCount != closure.function.arity) {
+      throw error("Expected " + closure.function.arity + " arguments but got " + argCount + ".");
+    }
+
+    if (frameCount == FRAMES_MAX) throw error("Stack overflow.");
+    if (frameCount == frames.length) frames = Arrays.copyOf(frames, frameCount * 2);
+    if (frames[frameCount] == null) frames[frameCount] = new CallFrame();
+
+    // a function can't push more values than it has instructions
+    int needed = stackTop + closure.function.chunk.count + 1;
+    if (needed > stack.length) stack = Arrays.copyOf(stack, Math.max(needed, stack.length * 2));
+
+    CallFrame frame = frames[frameCount++];
+    frame.closure = closure;
+    frame.ip = 0;
+    frame.slots = stackTop - argCount - 1;
+  }
+
+  // OP_FIND_METHOD has checked the receiver, and found the property
+  private void invoke(int symbol, int argCount) {
+    int receiver = stackTop - argCount - 1;
+    if (stack[receiver] == FIELD) { // the field's value is under the marker
+      System.arraycopy(stack, receiver + 1, stack, receiver, argCount);
+      stack[--stackTop] = null;
+      callValue(peek(argCount), argCount);
+      return;
+    }
+
+    invokeFromClass(((Obj.Instance)stack[receiver]).klass, symbol, argCount);
+  }
+
+  private void invokeFromClass(Obj.Class klass, int symbol, int argCount) {
+    Obj.Closure method = klass.methods.get(symbol);
+    if (method == null) throw error("Undefined property '" + Symbols.name(symbol) + "'.");
+    call(method, argCount);
+  }
+
+  // replace the instance on top of the stack with one of its methods bound to it
+  private void bindMethod(Obj.Class klass, int symbol) {
+    Obj.Closure method = klass.methods.get(symbol);
+    if (method == null) throw error("Undefined property '" + Symbols.name(symbol) + "'.");
+
+    stack[stackTop - 1] = new Obj.BoundMethod(peek(0), method);
+  }
+
+  private Obj.Upvalue captureUpvalue(int slot) {
+    Obj.Upvalue previous = null;
+    Obj.Upvalue upvalue = openUpvalues;
+    while (upvalue != null && upvalue.slot > slot) {
+      previous = upvalue;
+      upvalue = upvalue.next;
+    }
+
+    if (upvalue != null && upvalue.slot == slot) return upvalue;
+
+    Obj.Upvalue created = new Obj.Upvalue(slot);
+    created.next = upvalue;
+    if (previous == null) {
+      openUpvalues = created;
+    } else {
+      previous.next = created;
+    }
+    return created;
+  }
+
+  // move the variables at or above the given slot off the stack
+  private void closeUpvalues(int last) {
+    while (openUpvalues != null && openUpvalues.slot >= last) {
+      Obj.Upvalue upvalue = openUpvalues;
+      upvalue.closed = stack[upvalue.slot];
+      upvalue.slot = -1;
+      openUpvalues = upvalue.next;
+    }
+  }
+}
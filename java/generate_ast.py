@@ -14,7 +14,8 @@ def define_visitor(file, base_name, types):
 
 
 # define subclasses
-def define_type(file, base_name, class_name, fields):
+# state is a list of mutable fields (eg. "int depth = -1") that later passes fill in
+def define_type(file, base_name, class_name, fields, state):
    file.write(f"\n\tstatic class {class_name} extends {base_name} {{\n")
 
    # write constructor
@@ -36,6 +37,9 @@ def define_type(file, base_name, class_name, fields):
       if field != "":
          file.write(f"\t\tfinal {field};\n")
 
+   for field in state:
+      file.write(f"\t\t{field};\n")
+
    file.write("\t}\n")
 
 
@@ -55,9 +59,13 @@ def generate(base_name, types):
 
       # write subclasses
       for t in types:
-         class_name = t.split(":")[0].strip()
-         fields = t.split(":")[1].strip()
-         define_type(f, base_name, class_name, fields)
+         parts = t.split(":")
+         class_name = parts[0].strip()
+         fields = parts[1].strip()
+         state = []
+         if len(parts) > 2:
+            state = [field.strip() for field in parts[2].split(",")]
+         define_type(f, base_name, class_name, fields, state)
 
       # write base accept method
       f.write("\n\tabstract <R> R accept(Visitor<R> visitor);\n")
@@ -65,34 +73,47 @@ def generate(base_name, types):
       f.write("}\n")
 
 
+# an optional third section lists mutable fields set by the Resolver or the Interpreter
+# (local, upvalue and global say where a variable lives; tailCall marks a call
+# whose value the function returns, which reuses its frame; calls, iterations and
+# compiled are the profile and code used for tiering up, cache is the inline cache
+# of a property access, lazy is the source of a function body the Parser skipped,
+# which stays empty until the function first runs)
+# Inline is created by the Optimizer, never by the Parser: it stands for a call
+# to a small global function, with the callee's body copied into the caller
+# Invariant is created by the Hoister: an expression of a loop whose value is
+# kept in a slot of the frame once it's evaluated, until the loop is entered
+# again (invariants are the slots a While resets)
 expr_types = [
-   "Assign : Token name, Expr value",
-   "Binary : Expr left, Token operator, Expr right",
-   "Call : Expr callee, Token paren, List<Expr> arguments",
-   "Function : List<Token> params, List<Stmt> body",
-   "Get : Expr object, Token name",
+   "Assign : Token name, Expr value : Local local, int upvalue = -1, GlobalCell global",
+   "Binary : Expr left, Token operator, Expr right : Specialization specialization = Specialization.UNINITIALIZED",
+   "Call : Expr callee, Token paren, List<Expr> arguments : boolean tailCall, Specialization specialization = Specialization.UNINITIALIZED, LoxCallable cachedCallee",
+   "Function : List<Token> params, List<Stmt> body : int frameSize, Local receiver, Local[] parameters, int[] upvalues, int calls, ClosureCompiler.CompiledStmt compiled, LazyBody lazy",
+   "Get : Expr object, Token name : final InlineCache cache = new InlineCache()",
    "Grouping : Expr expression",
+   "Inline : Expr.Call call, GlobalCell global, Expr.Function function, Local[] parameters, Expr body",
+   "Invariant : Expr expression, Local local",
    "Literal : Object value",
-   "Logical : Expr left, Token operator, Expr right",
-   "Set : Expr object, Token name, Expr value",
-   "Super : Token keyword, Token method",
+   "Logical : Expr left, Token operator, Expr right : Specialization specialization = Specialization.UNINITIALIZED",
+   "Set : Expr object, Token name, Expr value : final InlineCache cache = new InlineCache()",
+   "Super : Token keyword, Token method : Local local, int upvalue = -1, Expr.This receiver",
    "Ternary: Expr condition, Expr thenBranch, Expr elseBranch",
-   "This : Token keyword",
-   "Unary : Token operator, Expr right",
-   "Variable : Token name",
+   "This : Token keyword : Local local, int upvalue = -1",
+   "Unary : Token operator, Expr right : Specialization specialization = Specialization.UNINITIALIZED",
+   "Variable : Token name : Local local, int upvalue = -1, GlobalCell global",
 ]
 stmt_types = [
    "Block : List<Stmt> statements",
    "Break : Token keyword",
-   "Class : Token name, Expr.Variable superclass, List<Stmt.Function> methods",
+   "Class : Token name, Expr.Variable superclass, List<Stmt.Function> methods : Local local, Local superLocal",
    "Continue : Token keyword",
    "Expression : Expr expression",
-   "Function : Token name, List<Token> params, List<Stmt> body",
+   "Function : Token name, Expr.Function function : Local local",
    "If : Expr condition, Stmt thenBranch, Stmt elseBranch",
    "Print : Expr expression",
    "Return : Token keyword, Expr value",
-   "Var : Token name, Expr initializer",
-   "While : Expr condition, Stmt body",
+   "Var : Token name, Expr initializer : Local local",
+   "While : Expr condition, Stmt body : Local[] invariants = new Local[0], int iterations, ClosureCompiler.CompiledStmt compiled",
 ]
 
 generate("Expr", expr_types)